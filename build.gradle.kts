@@ -1,7 +1,11 @@
 plugins {
     java
+    `java-test-fixtures`
+    id("me.champeau.jmh") version "0.7.3"
     id("org.springframework.boot") version "3.5.7"
     id("io.spring.dependency-management") version "1.1.7"
+    // adds processAot, whose output goes into the boot jar; nativeCompile builds a GraalVM native image
+    id("org.graalvm.buildtools.native") version "0.10.6"
 }
 
 group = "kz.ai.lab"
@@ -26,14 +30,29 @@ repositories {
 
 extra["springCloudVersion"] = "2025.0.0"
 
+// end-to-end load test, the application with its main dependencies plus the fakes from testFixtures
+val loadTest: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations[loadTest.implementationConfigurationName].extendsFrom(configurations.implementation.get())
+configurations[loadTest.runtimeOnlyConfigurationName].extendsFrom(configurations.runtimeOnly.get())
+
 dependencies {
     implementation("org.springframework.boot:spring-boot-starter-webflux")
     implementation("org.springframework.boot:spring-boot-starter-security")
     implementation("org.springframework.boot:spring-boot-starter-oauth2-resource-server")
     implementation("org.springframework.security:spring-security-oauth2-client")
+    implementation("org.springframework.boot:spring-boot-starter-actuator")
+    implementation("com.github.ben-manes.caffeine:caffeine")
+    // pure Java zstd, precompressed variants need no native library
+    implementation("io.airlift:aircompressor:0.27")
+    runtimeOnly("io.micrometer:micrometer-registry-prometheus")
 
     implementation(platform("software.amazon.awssdk:bom:2.38.2"))
     implementation("software.amazon.awssdk:s3:2.38.2")
+    implementation("software.amazon.awssdk:netty-nio-client:2.38.2")
     implementation("software.amazon.awssdk:auth:2.38.2")
     implementation("software.amazon.awssdk:core:2.38.2")
 
@@ -43,7 +62,19 @@ dependencies {
     testImplementation("org.springframework.boot:spring-boot-starter-test")
     testImplementation("io.projectreactor:reactor-test")
     testImplementation("org.springframework.security:spring-security-test")
+    testImplementation("io.projectreactor.tools:blockhound:1.0.9.RELEASE")
     testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+
+    testFixturesImplementation(platform("software.amazon.awssdk:bom:2.38.2"))
+    testFixturesImplementation("software.amazon.awssdk:s3:2.38.2")
+    testFixturesImplementation("software.amazon.awssdk:netty-nio-client:2.38.2")
+    testFixturesImplementation("com.nimbusds:nimbus-jose-jwt")
+
+    "loadTestImplementation"(testFixtures(project))
+    "loadTestImplementation"("org.hdrhistogram:HdrHistogram:2.2.2")
+
+    jmh(testFixtures(project))
+    jmh("org.springframework:spring-test")
 }
 
 dependencyManagement {
@@ -54,4 +85,101 @@ dependencyManagement {
 
 tasks.withType<Test> {
     useJUnitPlatform()
+    // BlockHound instruments JDK classes, which needs this flag since JDK 13
+    jvmArgs("-XX:+AllowRedefinitionToAddDeleteMethods")
+}
+
+// ./gradlew jmh, optionally narrowed with -Pjmh.includes=StorageServiceBenchmark
+jmh {
+    jmhVersion = "1.37"
+    profilers = listOf("gc")
+    fork = 1
+    warmupIterations = 2
+    iterations = 5
+    // the 1 GiB cases hold the file, the fake S3 copy and the parts in flight on heap
+    jvmArgs = listOf("-Xms2g", "-Xmx6g")
+    resultFormat = "JSON"
+    (findProperty("jmh.includes") as String?)?.let { includes = listOf(it) }
+}
+
+// AOT-processed bean definitions are used with -Dspring.aot.enabled=true. Conditions are evaluated at build
+// time, so the AOT build always runs with the s3 storage backend.
+//
+// ./gradlew cdsArchive extracts the boot jar into build/cds/application and records the classes loaded
+// during a startup in build/cds/application.jsa, for
+// java -XX:SharedArchiveFile=build/cds/application.jsa -Dspring.aot.enabled=true -jar build/cds/application/<jar>
+val cdsDirectory = layout.buildDirectory.dir("cds")
+val extractedDirectory = cdsDirectory.map { it.dir("application") }
+val cdsArchiveFile = cdsDirectory.map { it.file("application.jsa") }
+val applicationJarName = tasks.bootJar.flatMap { it.archiveFileName }
+val toolchainJava = javaToolchains.launcherFor(java.toolchain).map { it.executablePath.asFile.absolutePath }
+
+val extractBootJar by tasks.registering(Exec::class) {
+    group = "build"
+    description = "Extracts the boot jar into the layout CDS needs, the application jar next to its lib directory."
+    val bootJar = tasks.bootJar.flatMap { it.archiveFile }
+    inputs.file(bootJar)
+    outputs.dir(extractedDirectory)
+    doFirst { executable = toolchainJava.get() }
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf("-Djarmode=tools", "-jar", bootJar.get().asFile.absolutePath,
+                "extract", "--destination", extractedDirectory.get().asFile.absolutePath, "--force")
+    })
+}
+
+val cdsArchive by tasks.registering(Exec::class) {
+    group = "build"
+    description = "Records a CDS archive of the classes loaded until the application context is refreshed."
+    dependsOn(extractBootJar)
+    inputs.dir(extractedDirectory)
+    outputs.file(cdsArchiveFile)
+    workingDir(extractedDirectory)
+    // the training run only refreshes the context, S3 and Keycloak are not contacted
+    environment("AWS_ACCESS_KEY_ID", "training")
+    environment("AWS_SECRET_ACCESS_KEY", "training")
+    doFirst { executable = toolchainJava.get() }
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf("-XX:ArchiveClassesAtExit=" + cdsArchiveFile.get().asFile.absolutePath,
+                "-Dspring.context.exit=onRefresh", "-Dspring.aot.enabled=true",
+                "-jar", applicationJarName.get())
+    })
+}
+
+// ./gradlew startupBenchmark [-Pstartup.runs=10], time from process start to the first answered retrieve
+// request against the in-process fake S3, with and without AOT and CDS
+tasks.register<JavaExec>("startupBenchmark") {
+    group = "benchmark"
+    description = "Measures the time to the first successful retrieve request of fresh application processes."
+    dependsOn(cdsArchive)
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass = "kz.ai.lab.inlivefilemanager.benchmark.StartupBenchmark"
+    javaLauncher = javaToolchains.launcherFor(java.toolchain)
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf(extractedDirectory.get().file(applicationJarName.get()).asFile.absolutePath,
+                cdsArchiveFile.get().asFile.absolutePath,
+                (findProperty("startup.runs") as String?) ?: "5")
+    })
+}
+
+// ./gradlew loadTest --args="--rate=500 --duration=60s --mix=download:80,upload:20", open-model load against
+// the application running in process with a fake S3 and a fake Keycloak; latency distributions go to
+// build/load-test/<operation>.hgrm
+tasks.register<JavaExec>("loadTest") {
+    group = "benchmark"
+    description = "Drives uploads and downloads at a fixed arrival rate and reports latency percentiles."
+    classpath = loadTest.runtimeClasspath
+    mainClass = "kz.ai.lab.inlivefilemanager.loadtest.LoadTest"
+    javaLauncher = javaToolchains.launcherFor(java.toolchain)
+    workingDir = projectDir
+    // the fake S3 keeps every object on the same heap as the application
+    jvmArgs("-Xms2g", "-Xmx4g")
+}
+
+graalvmNative {
+    binaries {
+        named("main") {
+            // reflection and resource hints beyond Spring's own are in NativeHints
+            imageName = "inlive-file-manager"
+        }
+    }
 }
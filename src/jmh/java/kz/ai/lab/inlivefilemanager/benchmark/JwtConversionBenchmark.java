@@ -0,0 +1,81 @@
+package kz.ai.lab.inlivefilemanager.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import kz.ai.lab.inlivefilemanager.config.keycloak.CachingJwtAuthenticationManager;
+import kz.ai.lab.inlivefilemanager.config.keycloak.KeycloakGrantedAuthoritiesConverter;
+import kz.ai.lab.inlivefilemanager.config.keycloak.ReactiveKeycloakJwtAuthenticationConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.authentication.BearerTokenAuthenticationToken;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authority extraction from a Keycloak access token, and the same token served from the
+ * authentication cache as it is for every request after the first one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JwtConversionBenchmark {
+    private static final String CLIENT_ID = "inlive";
+
+    private Jwt jwt;
+    private KeycloakGrantedAuthoritiesConverter authoritiesConverter;
+    private ReactiveKeycloakJwtAuthenticationConverter authenticationConverter;
+    private CachingJwtAuthenticationManager cachingAuthenticationManager;
+    private BearerTokenAuthenticationToken bearerToken;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Instant now = Instant.now();
+        jwt = Jwt.withTokenValue("token")
+                .header("alg", "RS256")
+                .subject("3f1c2a7e-0000-0000-0000-000000000000")
+                .issuedAt(now)
+                .expiresAt(now.plusSeconds(300))
+                .claim("preferred_username", "benchmark")
+                .claim("scope", "openid profile email")
+                .claim("realm_access", Map.of("roles", List.of("offline_access", "uma_authorization", "default-roles-master")))
+                .claim("resource_access", Map.of(
+                        CLIENT_ID, Map.of("roles", List.of("ADMIN", "SUPER_MANAGER")),
+                        "account", Map.of("roles", List.of("manage-account", "view-profile"))))
+                .build();
+
+        authoritiesConverter = new KeycloakGrantedAuthoritiesConverter(CLIENT_ID);
+        authenticationConverter = new ReactiveKeycloakJwtAuthenticationConverter(authoritiesConverter);
+        cachingAuthenticationManager = new CachingJwtAuthenticationManager(
+                authentication -> authenticationConverter.convert(jwt).cast(Authentication.class),
+                1000, new SimpleMeterRegistry());
+        bearerToken = new BearerTokenAuthenticationToken(jwt.getTokenValue());
+    }
+
+    @Benchmark
+    public Collection<GrantedAuthority> grantedAuthorities() {
+        return authoritiesConverter.convert(jwt);
+    }
+
+    @Benchmark
+    public AbstractAuthenticationToken authenticationToken() {
+        return authenticationConverter.convert(jwt).block();
+    }
+
+    @Benchmark
+    public Authentication cachedAuthentication() {
+        return cachingAuthenticationManager.authenticate(bearerToken).block();
+    }
+}
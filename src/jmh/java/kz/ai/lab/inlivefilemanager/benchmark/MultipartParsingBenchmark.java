@@ -0,0 +1,117 @@
+package kz.ai.lab.inlivefilemanager.benchmark;
+
+import kz.ai.lab.inlivefilemanager.config.CodecsConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.HttpMessageReader;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.multipart.Part;
+import org.springframework.http.codec.multipart.PartEvent;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a multipart upload with a single file part by the readers {@link CodecsConfig} sets up:
+ * the streaming {@link PartEvent} reader the upload route uses, and the {@link Part} reader.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MultipartParsingBenchmark {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final String BOUNDARY = "benchmark-boundary";
+    private static final ResolvableType PART_EVENT = ResolvableType.forClass(PartEvent.class);
+    private static final ResolvableType PART = ResolvableType.forClass(Part.class);
+
+    @Param({"1024", "1048576", "67108864"})
+    public int size;
+
+    private byte[] body;
+    private HttpMessageReader<?> partEventReader;
+    private HttpMessageReader<?> partReader;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ServerCodecConfigurer configurer = ServerCodecConfigurer.create();
+        new CodecsConfig(1000, 1024L * 1024 * 1024, 1024 * 1024 * 1024).configureHttpMessageCodecs(configurer);
+
+        MediaType multipart = MediaType.MULTIPART_FORM_DATA;
+        partEventReader = configurer.getReaders().stream()
+                .filter(reader -> reader.canRead(PART_EVENT, multipart))
+                .findFirst()
+                .orElseThrow();
+        partReader = configurer.getReaders().stream()
+                .filter(reader -> reader.canRead(PART, multipart))
+                .findFirst()
+                .orElseThrow();
+
+        byte[] content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 512);
+        out.writeBytes(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"files\"; filename=\"file.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.writeBytes(content);
+        out.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        body = out.toByteArray();
+    }
+
+    @Benchmark
+    public long partEvents() {
+        return partEventReader.read(PART_EVENT, request(), Map.of())
+                .cast(PartEvent.class)
+                .map(PartEvent::content)
+                .map(MultipartParsingBenchmark::releasedLength)
+                .reduce(0L, Long::sum)
+                .block();
+    }
+
+    @Benchmark
+    public long parts() {
+        return partReader.read(PART, request(), Map.of())
+                .cast(Part.class)
+                .concatMap(Part::content)
+                .map(MultipartParsingBenchmark::releasedLength)
+                .reduce(0L, Long::sum)
+                .block();
+    }
+
+    private MockServerHttpRequest request() {
+        Flux<DataBuffer> chunks = Flux.range(0, (body.length + CHUNK_SIZE - 1) / CHUNK_SIZE)
+                .map(index -> {
+                    int offset = index * CHUNK_SIZE;
+                    int length = Math.min(CHUNK_SIZE, body.length - offset);
+                    return DefaultDataBufferFactory.sharedInstance.wrap(ByteBuffer.wrap(body, offset, length));
+                });
+
+        return MockServerHttpRequest.post("/bench/upload/files")
+                .contentType(MediaType.parseMediaType("multipart/form-data; boundary=" + BOUNDARY))
+                .body(chunks);
+    }
+
+    private static long releasedLength(DataBuffer buffer) {
+        long length = buffer.readableByteCount();
+        DataBufferUtils.release(buffer);
+        return length;
+    }
+}
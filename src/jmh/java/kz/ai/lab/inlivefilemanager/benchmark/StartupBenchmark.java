@@ -0,0 +1,139 @@
+package kz.ai.lab.inlivefilemanager.benchmark;
+
+import kz.ai.lab.inlivefilemanager.s3.FakeS3Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from starting a fresh application process to its first successful retrieve request, served from
+ * {@link FakeS3Server}. Every configuration is started {@code runs} times after one discarded warm-up
+ * start that brings the jar files into the page cache; reported are min, median and max in milliseconds.
+ * <p>
+ * Not a JMH benchmark, what is measured is a JVM start. Run with {@code ./gradlew startupBenchmark},
+ * which builds the extracted jar and the CDS archive first.
+ */
+public final class StartupBenchmark {
+    private static final String DIRECTORY = "bench";
+    private static final String FILENAME = "hello.txt";
+    private static final Duration TIMEOUT = Duration.ofMinutes(2);
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(5);
+
+    private record Configuration(String name, List<String> jvmArgs) {
+    }
+
+    private StartupBenchmark() {
+    }
+
+    /**
+     * @param args the extracted application jar, the CDS archive and the number of runs per configuration
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            throw new IllegalArgumentException("Usage: StartupBenchmark <application jar> <cds archive> <runs>");
+        }
+        Path jar = Path.of(args[0]);
+        Path archive = Path.of(args[1]);
+        int runs = Integer.parseInt(args[2]);
+
+        List<Configuration> configurations = List.of(
+                new Configuration("plain", List.of()),
+                new Configuration("aot", List.of("-Dspring.aot.enabled=true")),
+                new Configuration("cds", List.of("-XX:SharedArchiveFile=" + archive)),
+                new Configuration("aot+cds", List.of("-Dspring.aot.enabled=true", "-XX:SharedArchiveFile=" + archive)));
+
+        try (FakeS3Server s3Server = FakeS3Server.start()) {
+            s3Server.putObject(DIRECTORY + "/" + FILENAME, "hello".getBytes(StandardCharsets.UTF_8), "text/plain");
+            HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+
+            timeToFirstResponse(jar, configurations.get(0), s3Server, httpClient);
+            System.out.printf("%-10s %8s %8s %8s%n", "config", "min", "median", "max");
+            for (Configuration configuration : configurations) {
+                List<Long> millis = new ArrayList<>();
+                for (int run = 0; run < runs; run++) {
+                    millis.add(timeToFirstResponse(jar, configuration, s3Server, httpClient));
+                }
+                millis.sort(null);
+                System.out.printf("%-10s %8d %8d %8d%n", configuration.name(),
+                        millis.get(0), millis.get(millis.size() / 2), millis.get(millis.size() - 1));
+            }
+        }
+    }
+
+    private static long timeToFirstResponse(Path jar,
+                                            Configuration configuration,
+                                            FakeS3Server s3Server,
+                                            HttpClient httpClient) throws Exception {
+        int port = freePort();
+        Path log = Files.createTempFile("startup-" + configuration.name().replace('+', '-'), ".log");
+
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(configuration.jvmArgs());
+        command.addAll(List.of("-jar", jar.toString(),
+                "--server.port=" + port,
+                "--server.address=127.0.0.1",
+                "--aws.s3.endpoint=" + s3Server.endpoint(),
+                "--aws.s3.bucket=" + FakeS3Server.BUCKET,
+                "--application.cache.disk.max-size=0"));
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command)
+                .directory(jar.getParent().toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile());
+        Map<String, String> environment = processBuilder.environment();
+        environment.put("AWS_ACCESS_KEY_ID", "fake");
+        environment.put("AWS_SECRET_ACCESS_KEY", "fake");
+
+        HttpRequest request = HttpRequest.newBuilder(
+                        URI.create("http://127.0.0.1:" + port + "/" + DIRECTORY + "/retrieve/files/" + FILENAME))
+                .timeout(Duration.ofSeconds(5))
+                .build();
+
+        long start = System.nanoTime();
+        Process process = processBuilder.start();
+        try {
+            while (System.nanoTime() - start < TIMEOUT.toNanos()) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("Application exited with " + process.exitValue() + ", see " + log);
+                }
+                try {
+                    HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+                    if (response.statusCode() == 200) {
+                        long elapsed = Duration.ofNanos(System.nanoTime() - start).toMillis();
+                        Files.deleteIfExists(log);
+                        return elapsed;
+                    }
+                } catch (IOException ex) {
+                    // not listening yet
+                }
+                Thread.sleep(POLL_INTERVAL);
+            }
+            throw new IllegalStateException("No successful response within " + TIMEOUT + ", see " + log);
+        } finally {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package kz.ai.lab.inlivefilemanager.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import kz.ai.lab.inlivefilemanager.s3.FakeS3Server;
+import kz.ai.lab.inlivefilemanager.services.DedupService;
+import kz.ai.lab.inlivefilemanager.services.DeleteBatcher;
+import kz.ai.lab.inlivefilemanager.services.FetchCoalescer;
+import kz.ai.lab.inlivefilemanager.services.FileCache;
+import kz.ai.lab.inlivefilemanager.services.MetadataIndex;
+import kz.ai.lab.inlivefilemanager.services.ParallelDownloadService;
+import kz.ai.lab.inlivefilemanager.services.StorageMetrics;
+import kz.ai.lab.inlivefilemanager.services.StorageService;
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import kz.ai.lab.inlivefilemanager.storage.S3StorageBackend;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.util.FileSystemUtils;
+import reactor.core.publisher.Flux;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload and download throughput of {@link StorageService} against {@link FakeS3Server}, with the
+ * file cache disabled so every download goes to the fake S3. Bodies are fed in 64 KiB buffers, like
+ * Reactor Netty hands them over.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StorageServiceBenchmark {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final String DIRECTORY = "bench";
+    private static final String FILENAME = "file.bin";
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public int size;
+
+    /**
+     * Whether downloads of 64 MiB and more are split into parallel ranges.
+     */
+    @Param({"false", "true"})
+    public boolean parallelDownload;
+
+    private FakeS3Server s3Server;
+    private S3AsyncClient s3Client;
+    private Path cacheDirectory;
+    private StorageService storageService;
+    private byte[] content;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        s3Server = FakeS3Server.start();
+        s3Client = s3Server.newClient();
+        cacheDirectory = Files.createTempDirectory("bench-cache");
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        FileCache fileCache = new FileCache(0, 0, 0, 0, cacheDirectory, 1000, Duration.ofMinutes(10), meterRegistry);
+        KeyLayout keyLayout = new KeyLayout("flat");
+        DedupService dedupService = new DedupService(s3Client, keyLayout, FakeS3Server.BUCKET, false);
+        StorageMetrics storageMetrics = new StorageMetrics(meterRegistry);
+        StorageBackend storageBackend = new S3StorageBackend(s3Client, dedupService, storageMetrics,
+                keyLayout, FakeS3Server.BUCKET, 8 * 1024 * 1024, 4);
+        MetadataIndex metadataIndex = new MetadataIndex(storageBackend, Duration.ofDays(1), Duration.ofSeconds(30));
+
+        ParallelDownloadService parallelDownloadService = new ParallelDownloadService(storageBackend,
+                8 * 1024 * 1024, 4, parallelDownload ? 64 * 1024 * 1024 : Long.MAX_VALUE);
+        storageService = new StorageService(storageBackend, fileCache, dedupService, metadataIndex, storageMetrics,
+                parallelDownloadService, new FetchCoalescer(meterRegistry, 128),
+                new DeleteBatcher(storageBackend, meterRegistry, Duration.ofMillis(10), 4));
+
+        content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+        s3Server.putObject(DIRECTORY + "/" + FILENAME, content, "application/octet-stream");
+        // indexed like an upload through the service would be, downloads do not pay for a HeadObject
+        metadataIndex.refresh(DIRECTORY + "/" + FILENAME).block();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        s3Client.close();
+        s3Server.close();
+        FileSystemUtils.deleteRecursively(cacheDirectory);
+    }
+
+    @Benchmark
+    public String uploadFile() {
+        return storageService.uploadFile(chunks(), "upload.bin", DIRECTORY, false).block();
+    }
+
+    @Benchmark
+    public long getFile() {
+        S3Blob blob = storageService.getFile(FILENAME, DIRECTORY).block();
+        return blob.content()
+                .map(buffer -> {
+                    int length = buffer.readableByteCount();
+                    DataBufferUtils.release(buffer);
+                    return (long) length;
+                })
+                .reduce(0L, Long::sum)
+                .block();
+    }
+
+    private Flux<DataBuffer> chunks() {
+        return Flux.range(0, (size + CHUNK_SIZE - 1) / CHUNK_SIZE)
+                .map(index -> {
+                    int offset = index * CHUNK_SIZE;
+                    int length = Math.min(CHUNK_SIZE, size - offset);
+                    return DefaultDataBufferFactory.sharedInstance.wrap(ByteBuffer.wrap(content, offset, length));
+                });
+    }
+}
@@ -0,0 +1,270 @@
+package kz.ai.lab.inlivefilemanager.loadtest;
+
+import kz.ai.lab.inlivefilemanager.InliveFileManagerApplication;
+import kz.ai.lab.inlivefilemanager.auth.FakeJwtIssuer;
+import kz.ai.lab.inlivefilemanager.s3.FakeS3Server;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Load test of the whole HTTP stack: the application runs in this JVM against {@link FakeS3Server} and
+ * {@link FakeJwtIssuer}, and {@link OpenLoadGenerator} drives it over loopback HTTP at a fixed arrival
+ * rate. Uploads go through the security filter chain with a token of one of {@code users} users, the
+ * multipart codec and the upload admission; downloads read files seeded into the fake S3 up front.
+ * <p>
+ * Run with {@code ./gradlew loadTest --args="--rate=500 --duration=60s --mix=download:80,upload:20"}.
+ * Throughput, latency percentiles, heap and GC figures are printed, and the latency distribution of each
+ * operation is written as HdrHistogram percentile output ({@code <operation>.hgrm}) to {@code --output}.
+ * Heap and GC figures cover the whole JVM, the fake S3 keeps its objects on the same heap.
+ */
+public final class LoadTest {
+    private static final String DIRECTORY = "load";
+    private static final String CLIENT_ID = "inlive";
+    private static final long HEAP_SAMPLE_MILLIS = 100;
+
+    private static final Map<String, String> DEFAULTS = Map.of(
+            "rate", "200",
+            "duration", "60s",
+            "warmup", "15s",
+            "mix", "download:80,upload:20",
+            "upload-size", "65536",
+            "download-size", "1048576",
+            "files", "100",
+            "users", "64",
+            "max-in-flight", "10000",
+            "output", "build/load-test");
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        double rate = Double.parseDouble(options.get("rate"));
+        Duration duration = Duration.parse("PT" + options.get("duration"));
+        Duration warmup = Duration.parse("PT" + options.get("warmup"));
+        int uploadSize = Integer.parseInt(options.get("upload-size"));
+        int downloadSize = Integer.parseInt(options.get("download-size"));
+        int files = Integer.parseInt(options.get("files"));
+        int users = Integer.parseInt(options.get("users"));
+        Path output = Path.of(options.get("output"));
+
+        try (FakeS3Server s3Server = FakeS3Server.start();
+             FakeJwtIssuer jwtIssuer = FakeJwtIssuer.start();
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            byte[] download = randomBytes(downloadSize);
+            for (int i = 0; i < files; i++) {
+                s3Server.putObject(DIRECTORY + "/download-" + i + ".bin", download, "application/octet-stream");
+            }
+
+            ConfigurableApplicationContext application = new SpringApplicationBuilder(InliveFileManagerApplication.class)
+                    .run("--server.port=0",
+                            "--server.address=127.0.0.1",
+                            "--aws.s3.endpoint=" + s3Server.endpoint(),
+                            "--aws.s3.bucket=" + FakeS3Server.BUCKET,
+                            "--aws.credentials.access-key=fake",
+                            "--aws.credentials.secret-key=fake",
+                            "--spring.security.oauth2.resourceserver.jwt.issuer-uri=" + jwtIssuer.issuer(),
+                            "--spring.security.oauth2.resourceserver.jwt.jwk-set-uri=" + jwtIssuer.jwkSetUri(),
+                            "--application.client-id=" + CLIENT_ID,
+                            "--application.cache.disk.max-size=0",
+                            "--logging.level.root=WARN");
+            try {
+                URI base = URI.create("http://127.0.0.1:" + application.getEnvironment().getProperty("local.server.port"));
+                HttpClient httpClient = HttpClient.newBuilder()
+                        .version(HttpClient.Version.HTTP_1_1)
+                        .executor(executor)
+                        .connectTimeout(Duration.ofSeconds(5))
+                        .build();
+
+                List<String> tokens = new ArrayList<>();
+                for (int i = 0; i < users; i++) {
+                    tokens.add(jwtIssuer.token("load-user-" + i, CLIENT_ID, List.of("ADMIN"), duration.plus(warmup).plusHours(1)));
+                }
+
+                List<OpenLoadGenerator.Operation> operations = operations(options.get("mix"), base, httpClient,
+                        tokens, randomBytes(uploadSize), files);
+                System.out.printf("Driving %s at %.0f requests/s for %s after %s of warmup%n",
+                        options.get("mix"), rate, duration, warmup);
+
+                run(new OpenLoadGenerator(rate, Integer.parseInt(options.get("max-in-flight")), operations),
+                        warmup, duration, output);
+            } finally {
+                application.close();
+            }
+        }
+    }
+
+    private static void run(OpenLoadGenerator generator, Duration warmup, Duration duration, Path output)
+            throws IOException {
+        Histogram heap = new Histogram(3);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        sampler.scheduleAtFixedRate(() -> {
+            synchronized (heap) {
+                heap.recordValue(memory.getHeapMemoryUsage().getUsed() / (1024 * 1024));
+            }
+        }, warmup.toMillis(), HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        // the warmup ends inside run, the GC counters are taken when it does
+        AtomicReference<GcTotals> gcBefore = new AtomicReference<>(GcTotals.read());
+        sampler.schedule(() -> gcBefore.set(GcTotals.read()), warmup.toMillis(), TimeUnit.MILLISECONDS);
+
+        List<OpenLoadGenerator.Result> results;
+        try {
+            results = generator.run(warmup, duration, Duration.ofSeconds(30));
+        } finally {
+            sampler.shutdownNow();
+        }
+        GcTotals gcAfter = GcTotals.read();
+        long gcCount = gcAfter.count() - gcBefore.get().count();
+        long gcMillis = gcAfter.millis() - gcBefore.get().millis();
+
+        Files.createDirectories(output);
+        double seconds = duration.toMillis() / 1000.0;
+        System.out.printf("%n%-10s %10s %10s %10s %10s %10s %10s %8s %8s %10s%n", "operation", "count", "req/s",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors", "dropped", "unfinished");
+        for (OpenLoadGenerator.Result result : results) {
+            Histogram latencies = result.latencies();
+            System.out.printf("%-10s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %8d %8d %10d%n", result.name(),
+                    latencies.getTotalCount(), latencies.getTotalCount() / seconds,
+                    millis(latencies.getValueAtPercentile(50)),
+                    millis(latencies.getValueAtPercentile(99)),
+                    millis(latencies.getValueAtPercentile(99.9)),
+                    millis(latencies.getMaxValue()),
+                    result.errors(), result.dropped(), result.unfinished());
+
+            try (PrintStream out = new PrintStream(Files.newOutputStream(output.resolve(result.name() + ".hgrm")),
+                    false, StandardCharsets.UTF_8)) {
+                latencies.outputPercentileDistribution(out, 1000.0);
+            }
+        }
+
+        synchronized (heap) {
+            System.out.printf("%nheap used MiB: p50 %d, p99 %d, max %d%n", heap.getValueAtPercentile(50),
+                    heap.getValueAtPercentile(99), heap.getMaxValue());
+        }
+        System.out.printf("gc: %d collections, %d ms paused or concurrent, %.1f%% of the measured time%n",
+                gcCount, gcMillis, 100.0 * gcMillis / duration.toMillis());
+        System.out.printf("latency distributions written to %s%n", output.toAbsolutePath());
+    }
+
+    private record GcTotals(long count, long millis) {
+        static GcTotals read() {
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, collector.getCollectionCount());
+                millis += Math.max(0, collector.getCollectionTime());
+            }
+            return new GcTotals(count, millis);
+        }
+    }
+
+    /**
+     * @param mix comma separated {@code operation:weight}, operations are {@code download} and {@code upload}
+     */
+    private static List<OpenLoadGenerator.Operation> operations(String mix,
+                                                                URI base,
+                                                                HttpClient httpClient,
+                                                                List<String> tokens,
+                                                                byte[] upload,
+                                                                int files) {
+        List<OpenLoadGenerator.Operation> operations = new ArrayList<>();
+        for (String element : mix.split(",")) {
+            String[] parts = element.trim().split(":");
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            operations.add(switch (parts[0]) {
+                case "download" -> new OpenLoadGenerator.Operation("download", weight, () -> {
+                    int file = ThreadLocalRandom.current().nextInt(files);
+                    HttpRequest request = HttpRequest.newBuilder(
+                                    base.resolve("/" + DIRECTORY + "/retrieve/files/download-" + file + ".bin"))
+                            .timeout(Duration.ofSeconds(30))
+                            .build();
+                    return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+                });
+                case "upload" -> new OpenLoadGenerator.Operation("upload", weight,
+                        () -> upload(base, httpClient, tokens, upload, files));
+                default -> throw new IllegalArgumentException("Unknown operation [" + parts[0] + "] in the mix");
+            });
+        }
+        return operations;
+    }
+
+    /**
+     * Overwrites one of {@code files} upload targets, which keeps the fake S3 from growing with the run.
+     */
+    private static CompletableFuture<HttpResponse<Void>> upload(URI base,
+                                                                HttpClient httpClient,
+                                                                List<String> tokens,
+                                                                byte[] content,
+                                                                int files) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String boundary = UUID.randomUUID().toString();
+        byte[] head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"files\"; filename=\"upload-" + random.nextInt(files) + ".bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+
+        HttpRequest request = HttpRequest.newBuilder(base.resolve("/" + DIRECTORY + "/upload/files"))
+                .timeout(Duration.ofSeconds(30))
+                .header("Authorization", "Bearer " + tokens.get(random.nextInt(tokens.size())))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.concat(
+                        HttpRequest.BodyPublishers.ofByteArray(head),
+                        HttpRequest.BodyPublishers.ofByteArray(content),
+                        HttpRequest.BodyPublishers.ofByteArray(tail)))
+                .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Options are given as --name=value, not [" + arg + "]");
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            if (!DEFAULTS.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown option [" + name + "], known are " + DEFAULTS.keySet());
+            }
+            options.put(name, arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return bytes;
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+}
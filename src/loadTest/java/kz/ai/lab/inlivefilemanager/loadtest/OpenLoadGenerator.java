@@ -0,0 +1,150 @@
+package kz.ai.lab.inlivefilemanager.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Sends requests at a fixed arrival rate regardless of how fast they are answered, an open model.
+ * Each request has an intended start time on the schedule and its latency is measured from there, so a
+ * stalled server or a late sender shows up as latency instead of as fewer requests, which is what
+ * avoids coordinated omission.
+ * <p>
+ * Requests are not sent once {@code maxInFlight} are outstanding, they are counted as dropped; a run
+ * with drops measured a server that could not keep up with the rate.
+ */
+final class OpenLoadGenerator {
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+    private final double ratePerSecond;
+    private final int maxInFlight;
+    private final List<Operation> operations;
+    private final int totalWeight;
+
+    /**
+     * @param weight share of the arrivals, relative to the weights of the other operations
+     * @param send   sends one request, a response with another status than 2xx counts as an error
+     */
+    record Operation(String name, int weight, Supplier<CompletableFuture<HttpResponse<Void>>> send) {
+    }
+
+    /**
+     * @param latencies  in microseconds, of the requests scheduled in the measured interval
+     * @param unfinished requests still unanswered when the run gave up waiting, not in the latencies
+     */
+    record Result(String name, Histogram latencies, long errors, long dropped, long unfinished) {
+    }
+
+    OpenLoadGenerator(double ratePerSecond, int maxInFlight, List<Operation> operations) {
+        this.ratePerSecond = ratePerSecond;
+        this.maxInFlight = maxInFlight;
+        this.operations = operations;
+        this.totalWeight = operations.stream().mapToInt(Operation::weight).sum();
+        if (totalWeight <= 0) {
+            throw new IllegalArgumentException("The operation mix needs a positive weight");
+        }
+    }
+
+    /**
+     * Runs the schedule for {@code warmup} and then {@code duration}, recording only requests scheduled
+     * after the warmup, and waits up to {@code drainTimeout} for the last responses.
+     */
+    List<Result> run(Duration warmup, Duration duration, Duration drainTimeout) {
+        Map<Operation, Recorder> recorders = new LinkedHashMap<>();
+        Map<Operation, AtomicLong> errors = new LinkedHashMap<>();
+        Map<Operation, AtomicLong> dropped = new LinkedHashMap<>();
+        Map<Operation, AtomicLong> outstanding = new LinkedHashMap<>();
+        for (Operation operation : operations) {
+            recorders.put(operation, new Recorder(HIGHEST_LATENCY_MICROS, 3));
+            errors.put(operation, new AtomicLong());
+            dropped.put(operation, new AtomicLong());
+            outstanding.put(operation, new AtomicLong());
+        }
+
+        AtomicInteger inFlight = new AtomicInteger();
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        long start = System.nanoTime();
+        long measuredFrom = start + warmup.toNanos();
+        long end = measuredFrom + duration.toNanos();
+
+        for (long arrival = 0; ; arrival++) {
+            long intended = start + (long) (arrival * intervalNanos);
+            if (intended >= end) {
+                break;
+            }
+            // a sender that fell behind catches up without waiting, the latency still counts from intended
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            Operation operation = pick();
+            boolean measured = intended >= measuredFrom;
+            if (inFlight.get() >= maxInFlight) {
+                if (measured) {
+                    dropped.get(operation).incrementAndGet();
+                }
+                continue;
+            }
+
+            inFlight.incrementAndGet();
+            if (measured) {
+                outstanding.get(operation).incrementAndGet();
+            }
+            CompletableFuture<HttpResponse<Void>> response;
+            try {
+                response = operation.send().get();
+            } catch (RuntimeException ex) {
+                response = CompletableFuture.failedFuture(ex);
+            }
+            response.whenComplete((result, ex) -> {
+                long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended);
+                inFlight.decrementAndGet();
+                if (!measured) {
+                    return;
+                }
+                outstanding.get(operation).decrementAndGet();
+                if (ex != null || result.statusCode() / 100 != 2) {
+                    errors.get(operation).incrementAndGet();
+                }
+                recorders.get(operation).recordValue(Math.min(latencyMicros, HIGHEST_LATENCY_MICROS));
+            });
+        }
+
+        long drainDeadline = System.nanoTime() + drainTimeout.toNanos();
+        while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        return operations.stream()
+                .map(operation -> new Result(operation.name(),
+                        recorders.get(operation).getIntervalHistogram(),
+                        errors.get(operation).get(),
+                        dropped.get(operation).get(),
+                        outstanding.get(operation).get()))
+                .toList();
+    }
+
+    private Operation pick() {
+        int choice = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Operation operation : operations) {
+            choice -= operation.weight();
+            if (choice < 0) {
+                return operation;
+            }
+        }
+        return operations.get(operations.size() - 1);
+    }
+}
@@ -1,9 +1,16 @@
 package kz.ai.lab.inlivefilemanager;
 
+import kz.ai.lab.inlivefilemanager.config.NativeHints;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
+import org.springframework.context.annotation.ImportRuntimeHints;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@ConfigurationPropertiesScan
+@EnableScheduling
+@ImportRuntimeHints(NativeHints.class)
 public class InliveFileManagerApplication {
 
     public static void main(String[] args) {
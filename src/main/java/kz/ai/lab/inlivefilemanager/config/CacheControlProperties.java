@@ -0,0 +1,33 @@
+package kz.ai.lab.inlivefilemanager.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Cache-Control policies for retrieved files.
+ *
+ * @param defaultPolicy   used unless one of the more specific policies applies
+ * @param generatedPolicy used for names produced by {@code generate-file-name=true}, such keys are never
+ *                        overwritten, so they can be cached as immutable
+ * @param directories     per-directory overrides of the default policy
+ */
+@ConfigurationProperties("application.cache-control")
+public record CacheControlProperties(String defaultPolicy,
+                                     String generatedPolicy,
+                                     Map<String, String> directories) {
+    private static final Pattern GENERATED_NAME = Pattern.compile(
+            "^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}(\\.[^.]*)?$");
+
+    public CacheControlProperties {
+        directories = directories != null ? Map.copyOf(directories) : Map.of();
+    }
+
+    public String policyFor(String directory, String filename) {
+        if (generatedPolicy != null && GENERATED_NAME.matcher(filename).matches()) {
+            return generatedPolicy;
+        }
+        return directories.getOrDefault(directory, defaultPolicy);
+    }
+}
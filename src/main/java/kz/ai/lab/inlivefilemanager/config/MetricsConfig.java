@@ -0,0 +1,32 @@
+package kz.ai.lab.inlivefilemanager.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class MetricsConfig {
+
+    /**
+     * Memory held by the pooled allocator Reactor Netty reads request bodies into, which is where
+     * DataBuffers of uploads and downloads live until they are released.
+     */
+    @Bean
+    public MeterBinder nettyAllocatorMetrics() {
+        return registry -> {
+            ByteBufAllocatorMetric metric = PooledByteBufAllocator.DEFAULT.metric();
+
+            Gauge.builder("netty.allocator.memory.used", metric, ByteBufAllocatorMetric::usedDirectMemory)
+                    .tag("type", "direct")
+                    .baseUnit("bytes")
+                    .register(registry);
+            Gauge.builder("netty.allocator.memory.used", metric, ByteBufAllocatorMetric::usedHeapMemory)
+                    .tag("type", "heap")
+                    .baseUnit("bytes")
+                    .register(registry);
+        };
+    }
+}
@@ -0,0 +1,87 @@
+package kz.ai.lab.inlivefilemanager.config;
+
+import kz.ai.lab.inlivefilemanager.dto.FileEntry;
+import kz.ai.lab.inlivefilemanager.dto.FileListing;
+import kz.ai.lab.inlivefilemanager.dto.FolderDeletionStatus;
+import kz.ai.lab.inlivefilemanager.dto.PresignedMultipartUpload;
+import kz.ai.lab.inlivefilemanager.dto.PresignedUrl;
+import kz.ai.lab.inlivefilemanager.dto.ResumableUpload;
+import kz.ai.lab.inlivefilemanager.dto.UploadedPart;
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.aot.hint.TypeReference;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * What a native image cannot find out by itself: the functional routers write and read the DTOs with
+ * Jackson without a handler signature AOT could inspect, and the AWS SDK instantiates the execution
+ * interceptors listed in classpath resources reflectively. Nimbus JOSE parses the JWKS with its shaded
+ * Gson into map types created reflectively.
+ * <p>
+ * The JVM ignores these hints, they only matter for {@code ./gradlew nativeCompile}.
+ */
+public class NativeHints implements RuntimeHintsRegistrar {
+    private static final List<String> INTERCEPTOR_RESOURCES = List.of(
+            "software/amazon/awssdk/global/handlers/execution.interceptors",
+            "software/amazon/awssdk/services/s3/execution.interceptors");
+
+    private static final List<String> NIMBUS_TYPES = List.of(
+            "com.nimbusds.jose.shaded.gson.internal.LinkedTreeMap",
+            "com.nimbusds.jose.shaded.gson.internal.bind.ObjectTypeAdapter");
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        new BindingReflectionHintsRegistrar().registerReflectionHints(hints.reflection(),
+                FileEntry.class,
+                FileListing.class,
+                FolderDeletionStatus.class,
+                PresignedMultipartUpload.class,
+                PresignedUrl.class,
+                ResumableUpload.class,
+                UploadedPart.class);
+
+        // the interceptors are read from the same resources at build time, so the list stays in sync with the SDK
+        for (String resource : INTERCEPTOR_RESOURCES) {
+            hints.resources().registerPattern(resource);
+            for (String interceptor : interceptors(classLoader, resource)) {
+                hints.reflection().registerType(TypeReference.of(interceptor),
+                        MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS);
+            }
+        }
+
+        for (String type : NIMBUS_TYPES) {
+            hints.reflection().registerTypeIfPresent(classLoader, type,
+                    MemberCategory.INVOKE_DECLARED_CONSTRUCTORS, MemberCategory.DECLARED_FIELDS);
+        }
+    }
+
+    private static List<String> interceptors(ClassLoader classLoader, String resource) {
+        try {
+            Enumeration<URL> urls = classLoader.getResources(resource);
+            List<String> interceptors = new ArrayList<>();
+            while (urls.hasMoreElements()) {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(urls.nextElement().openStream(), StandardCharsets.UTF_8))) {
+                    reader.lines()
+                            .map(String::trim)
+                            .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                            .forEach(interceptors::add);
+                }
+            }
+            return interceptors;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package kz.ai.lab.inlivefilemanager.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.metrics.SdkMetric;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns the metrics the AWS SDK collects for every call into Micrometer meters: call latency by
+ * operation and outcome, errors by operation and type, and the state of the HTTP connection pool
+ * as of the latest call. Publishing runs on the SDK's threads and only updates meters.
+ */
+@Component
+public class S3ClientMetrics implements MetricPublisher {
+    private final MeterRegistry registry;
+    private final AtomicLong leasedConnections = new AtomicLong();
+    private final AtomicLong availableConnections = new AtomicLong();
+    private final AtomicLong pendingAcquires = new AtomicLong();
+
+    public S3ClientMetrics(MeterRegistry registry) {
+        this.registry = registry;
+
+        Gauge.builder("s3.client.pool.leased", leasedConnections, AtomicLong::get)
+                .description("Connections to S3 in use")
+                .register(registry);
+        Gauge.builder("s3.client.pool.available", availableConnections, AtomicLong::get)
+                .description("Idle connections to S3 that can be reused")
+                .register(registry);
+        Gauge.builder("s3.client.pool.pending", pendingAcquires, AtomicLong::get)
+                .description("Requests waiting for a connection to S3")
+                .register(registry);
+    }
+
+    @Override
+    public void publish(MetricCollection metrics) {
+        String operation = first(metrics, CoreMetric.OPERATION_NAME, "unknown");
+        boolean successful = first(metrics, CoreMetric.API_CALL_SUCCESSFUL, false);
+        Duration duration = first(metrics, CoreMetric.API_CALL_DURATION, null);
+
+        if (duration != null) {
+            Timer.builder("s3.client.requests")
+                    .description("S3 calls including retries")
+                    .tag("operation", operation)
+                    .tag("outcome", successful ? "success" : "error")
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(duration);
+        }
+
+        if (!successful) {
+            Counter.builder("s3.client.errors")
+                    .tag("operation", operation)
+                    .tag("type", last(metrics, CoreMetric.ERROR_TYPE, "Unknown"))
+                    .register(registry)
+                    .increment();
+        }
+
+        Integer leased = last(metrics, HttpMetric.LEASED_CONCURRENCY, null);
+        if (leased != null) {
+            leasedConnections.set(leased);
+            availableConnections.set(last(metrics, HttpMetric.AVAILABLE_CONCURRENCY, 0));
+            pendingAcquires.set(last(metrics, HttpMetric.PENDING_CONCURRENCY_ACQUIRES, 0));
+        }
+    }
+
+    private static <T> T first(MetricCollection metrics, SdkMetric<T> metric, T defaultValue) {
+        List<T> values = metrics.metricValues(metric);
+        return values.isEmpty() ? defaultValue : values.get(0);
+    }
+
+    /**
+     * Attempt and HTTP level values live in child collections, the last attempt is the one that counts.
+     */
+    private static <T> T last(MetricCollection metrics, SdkMetric<T> metric, T defaultValue) {
+        T value = defaultValue;
+        List<T> values = metrics.metricValues(metric);
+        if (!values.isEmpty()) {
+            value = values.get(values.size() - 1);
+        }
+        for (MetricCollection child : metrics.children()) {
+            value = last(child, metric, value);
+        }
+        return value;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -1,68 +1,47 @@
 package kz.ai.lab.inlivefilemanager.config;
 
-import com.nimbusds.jose.shaded.gson.internal.LinkedTreeMap;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.core.convert.converter.Converter;
-import org.springframework.security.authentication.AbstractAuthenticationToken;
-import org.springframework.security.config.Customizer;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
 import org.springframework.security.config.annotation.method.configuration.EnableReactiveMethodSecurity;
 import org.springframework.security.config.annotation.web.reactive.EnableWebFluxSecurity;
 import org.springframework.security.config.web.server.ServerHttpSecurity;
-import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
-import org.springframework.security.oauth2.jwt.Jwt;
-import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationConverter;
 import org.springframework.security.web.server.SecurityWebFilterChain;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.reactive.CorsWebFilter;
 import org.springframework.web.cors.reactive.UrlBasedCorsConfigurationSource;
-import reactor.core.publisher.Mono;
-
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 @Slf4j
 @EnableWebFluxSecurity
 @Configuration
 @EnableReactiveMethodSecurity
 public class SecurityConfig {
-    @Value("${application.client-id}")
-    private String clientId;
-
     @Bean
-    public SecurityWebFilterChain securityWebFilterChain(ServerHttpSecurity http, Converter<Jwt, Mono<AbstractAuthenticationToken>> jwtAuthenticationConverter) {
+    public SecurityWebFilterChain securityWebFilterChain(ServerHttpSecurity http, ReactiveAuthenticationManager jwtAuthenticationManager) {
         http
                 .csrf(ServerHttpSecurity.CsrfSpec::disable)
                 .cors(ServerHttpSecurity.CorsSpec::disable)
 
+                // decoding and authority conversion happen in the caching manager, see KeycloakConfiguration
                 .oauth2ResourceServer((oauth2) -> oauth2
-                        .jwt(Customizer.withDefaults())
+                        .jwt(jwtSpec -> jwtSpec.authenticationManager(jwtAuthenticationManager))
                 );
 
         http
                 .authorizeExchange(authorizeExchangeSpec -> {
                     authorizeExchangeSpec
                             .pathMatchers("/*/remove/**").hasAnyAuthority("ADMIN", "SUPER_MANAGER")
+                            // folder deletions and their jobs are not under a directory
+                            .pathMatchers("/remove/**").hasAnyAuthority("ADMIN", "SUPER_MANAGER")
                             .pathMatchers("/*/upload/**").hasAnyAuthority("ADMIN", "SUPER_MANAGER")
+                            // a whole folder gives away file names that are otherwise unguessable
+                            .pathMatchers("/*/archive").authenticated()
+                            .pathMatchers("/*/files").authenticated()
                             .anyExchange()
                             .permitAll();
                 });
 
-
-        http.oauth2ResourceServer(authorizeExchangeSpec -> {
-            authorizeExchangeSpec.jwt(jwtSpec -> {
-                jwtSpec.jwtAuthenticationConverter(jwtAuthenticationConverter);
-            });
-        });
-
-
-
         return http.build();
     }
 
@@ -79,34 +58,4 @@ public class SecurityConfig {
 
         return new CorsWebFilter(source);
     }
-
-    @Bean
-    public JwtAuthenticationConverter jwtAuthenticationConverterForKeycloak() {
-        Converter<Jwt, Collection<GrantedAuthority>> jwtGrantedAuthoritiesConverter = jwt -> {
-            Map<String, Object> resourceAccess = jwt.getClaim("resource_access");
-            Object client = resourceAccess.get(clientId);
-
-            if (client == null)
-                return List.of();
-
-
-            @SuppressWarnings("unchecked")
-            LinkedTreeMap<String, List<String>> clientRoleMap = (LinkedTreeMap<String, List<String>>) client;
-
-            List<String> clientRoles = new ArrayList<>(clientRoleMap.get("roles"));
-
-            log.info("client roles: {}", clientRoles);
-
-
-            return clientRoles.stream()
-                    .map(SimpleGrantedAuthority::new)
-                    .collect(Collectors.toList());
-        };
-
-        JwtAuthenticationConverter jwtAuthenticationConverter = new JwtAuthenticationConverter();
-
-        jwtAuthenticationConverter.setJwtGrantedAuthoritiesConverter(jwtGrantedAuthoritiesConverter);
-
-        return jwtAuthenticationConverter;
-    }
 }
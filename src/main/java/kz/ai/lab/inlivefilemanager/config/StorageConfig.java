@@ -4,13 +4,19 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.StringUtils;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.retries.AwsRetryStrategy;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 import java.net.URI;
+import java.time.Duration;
 
 @Slf4j
 @Configuration
@@ -24,13 +30,74 @@ public class StorageConfig {
     @Value("${aws.credentials.secret-key}")
     private String secretKey;
 
+    @Value("${aws.s3.endpoint}")
+    private String endpoint;
+
+    @Value("${aws.s3.client.max-concurrency}")
+    private int maxConcurrency;
+
+    @Value("${aws.s3.client.max-pending-acquires}")
+    private int maxPendingAcquires;
+
+    @Value("${aws.s3.client.connection-timeout}")
+    private Duration connectionTimeout;
+
+    @Value("${aws.s3.client.acquire-timeout}")
+    private Duration acquireTimeout;
+
+    @Value("${aws.s3.client.read-timeout}")
+    private Duration readTimeout;
+
+    @Value("${aws.s3.client.write-timeout}")
+    private Duration writeTimeout;
+
+    @Value("${aws.s3.client.max-attempts}")
+    private int maxAttempts;
+
     @Bean
-    public S3Client s3Client() {
+    public S3AsyncClient s3Client(S3ClientMetrics s3ClientMetrics) {
         AwsBasicCredentials creds = AwsBasicCredentials.create(accessKey, secretKey);
 
-        return S3Client.builder()
+        log.info("S3 client pool: max-concurrency={}, max-pending-acquires={}", maxConcurrency, maxPendingAcquires);
+
+        S3AsyncClientBuilder builder = S3AsyncClient.builder();
+        if (StringUtils.hasText(endpoint)) {
+            log.info("S3 endpoint overridden with [{}], path-style access", endpoint);
+            builder.endpointOverride(URI.create(endpoint)).forcePathStyle(true);
+        }
+
+        return builder
+                .region(Region.of(region))
+                .credentialsProvider(StaticCredentialsProvider.create(creds))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(maxConcurrency)
+                        .maxPendingConnectionAcquires(maxPendingAcquires)
+                        .connectionTimeout(connectionTimeout)
+                        .connectionAcquisitionTimeout(acquireTimeout)
+                        .readTimeout(readTimeout)
+                        .writeTimeout(writeTimeout))
+                .overrideConfiguration(configuration -> configuration
+                        .addMetricPublisher(s3ClientMetrics)
+                        // backs off with jitter and slows the client down on SlowDown and other throttling
+                        .retryStrategy(AwsRetryStrategy.adaptiveRetryStrategy().toBuilder()
+                                .maxAttempts(maxAttempts)
+                                .build()))
+                .build();
+    }
+
+    @Bean
+    public S3Presigner s3Presigner() {
+        AwsBasicCredentials creds = AwsBasicCredentials.create(accessKey, secretKey);
+
+        S3Presigner.Builder builder = S3Presigner.builder();
+        if (StringUtils.hasText(endpoint)) {
+            builder.endpointOverride(URI.create(endpoint))
+                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build());
+        }
+
+        return builder
                 .region(Region.of(region))
                 .credentialsProvider(StaticCredentialsProvider.create(creds))
                 .build();
     }
-}
\ No newline at end of file
+}
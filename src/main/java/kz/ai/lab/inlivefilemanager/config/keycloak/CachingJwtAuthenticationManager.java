@@ -0,0 +1,120 @@
+package kz.ai.lab.inlivefilemanager.config.keycloak;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.server.resource.authentication.BearerTokenAuthenticationToken;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+
+/**
+ * Remembers authenticated bearer tokens until they expire, so a client sending the same token again
+ * skips signature verification, claim validation and authority conversion. Tokens are keyed by their
+ * SHA-256; only successful authentications are cached.
+ */
+public class CachingJwtAuthenticationManager implements ReactiveAuthenticationManager {
+    private final ReactiveAuthenticationManager delegate;
+    private final Cache<String, JwtAuthenticationToken> cache;
+    private final Timer hits;
+    private final Timer misses;
+
+    public CachingJwtAuthenticationManager(ReactiveAuthenticationManager delegate, long maxEntries, MeterRegistry registry) {
+        this.delegate = delegate;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfter(new Expiry<String, JwtAuthenticationToken>() {
+                    @Override
+                    public long expireAfterCreate(String key, JwtAuthenticationToken token, long currentTime) {
+                        return untilExpiry(token).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, JwtAuthenticationToken token, long currentTime,
+                                                  long currentDuration) {
+                        return untilExpiry(token).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, JwtAuthenticationToken token, long currentTime,
+                                                long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "auth.tokens");
+
+        this.hits = Timer.builder("auth.authentication")
+                .description("Bearer token authentication")
+                .tag("cache", "hit")
+                .register(registry);
+        this.misses = Timer.builder("auth.authentication")
+                .description("Bearer token authentication")
+                .tag("cache", "miss")
+                .register(registry);
+    }
+
+    @Override
+    public Mono<Authentication> authenticate(Authentication authentication) {
+        if (!(authentication instanceof BearerTokenAuthenticationToken bearer)) {
+            return delegate.authenticate(authentication);
+        }
+
+        return Mono.defer(() -> {
+            long startedAt = System.nanoTime();
+            String key = hash(bearer.getToken());
+
+            JwtAuthenticationToken cached = cache.getIfPresent(key);
+            if (cached != null && !isExpired(cached)) {
+                hits.record(Duration.ofNanos(System.nanoTime() - startedAt));
+                return Mono.just(cached);
+            }
+
+            return delegate.authenticate(bearer)
+                    .doOnNext(authenticated -> {
+                        if (authenticated instanceof JwtAuthenticationToken token
+                                && token.getToken().getExpiresAt() != null) {
+                            cache.put(key, token);
+                        }
+                    })
+                    .doFinally(signal -> misses.record(Duration.ofNanos(System.nanoTime() - startedAt)));
+        });
+    }
+
+    private static Duration untilExpiry(JwtAuthenticationToken token) {
+        Instant expiresAt = token.getToken().getExpiresAt();
+        if (expiresAt == null || !expiresAt.isAfter(Instant.now())) {
+            return Duration.ZERO;
+        }
+        return Duration.between(Instant.now(), expiresAt);
+    }
+
+    /**
+     * Eviction is lazy, an entry may outlive its token by a moment.
+     */
+    private static boolean isExpired(JwtAuthenticationToken token) {
+        Instant expiresAt = token.getToken().getExpiresAt();
+        return expiresAt == null || !expiresAt.isAfter(Instant.now());
+    }
+
+    private static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package kz.ai.lab.inlivefilemanager.config.keycloak;
+
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jwt.SignedJWT;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the realm's JSON Web Key Set in memory. The set is fetched on startup and refreshed in the
+ * background, so no request waits for Keycloak; a token signed with a key that is not in the set yet
+ * triggers one refetch, at most once per {@code minRefetchInterval}.
+ */
+@Slf4j
+public class JwkSetCache {
+    private final WebClient webClient;
+    private final String jwkSetUri;
+    private final Duration minRefetchInterval;
+
+    private final AtomicReference<JWKSet> jwkSet = new AtomicReference<>();
+    private final AtomicReference<Mono<JWKSet>> inFlight = new AtomicReference<>();
+    private volatile Instant fetchedAt = Instant.EPOCH;
+
+    public JwkSetCache(WebClient webClient, String jwkSetUri, Duration minRefetchInterval) {
+        this.webClient = webClient;
+        this.jwkSetUri = jwkSetUri;
+        this.minRefetchInterval = minRefetchInterval;
+    }
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${application.auth.jwks-refresh-interval}")
+    public void scheduleRefresh() {
+        refresh()
+                .doOnError(ex -> log.warn("Unable to fetch JWKS from [{}]: {}", jwkSetUri, ex.getMessage()))
+                .onErrorResume(ex -> Mono.empty())
+                .subscribe();
+    }
+
+    /**
+     * @return the keys matching the token header, used as the key source of the JWT decoder
+     */
+    public Flux<JWK> keys(SignedJWT jwt) {
+        JWKSelector selector = new JWKSelector(JWKMatcher.forJWSHeader(jwt.getHeader()));
+
+        JWKSet current = jwkSet.get();
+        if (current != null) {
+            List<JWK> keys = selector.select(current);
+            if (!keys.isEmpty() || fetchedAt.plus(minRefetchInterval).isAfter(Instant.now())) {
+                return Flux.fromIterable(keys);
+            }
+        }
+
+        // the key was rotated since the last fetch, or the startup fetch failed
+        return refresh().flatMapIterable(selector::select);
+    }
+
+    /**
+     * Concurrent callers share one fetch.
+     */
+    private Mono<JWKSet> refresh() {
+        Mono<JWKSet> fetch = inFlight.get();
+        if (fetch != null) {
+            return fetch;
+        }
+
+        Mono<JWKSet> created = webClient.get()
+                .uri(jwkSetUri)
+                .retrieve()
+                .bodyToMono(String.class)
+                .map(JwkSetCache::parse)
+                .doOnNext(fetched -> {
+                    jwkSet.set(fetched);
+                    fetchedAt = Instant.now();
+                    log.debug("JWKS fetched from [{}], {} keys", jwkSetUri, fetched.getKeys().size());
+                })
+                .doFinally(signal -> inFlight.set(null))
+                .cache();
+
+        return inFlight.compareAndSet(null, created) ? created : Mono.defer(this::refresh);
+    }
+
+    private static JWKSet parse(String body) {
+        try {
+            return JWKSet.parse(body);
+        } catch (ParseException ex) {
+            throw new IllegalStateException("Malformed JWKS: " + ex.getMessage(), ex);
+        }
+    }
+}
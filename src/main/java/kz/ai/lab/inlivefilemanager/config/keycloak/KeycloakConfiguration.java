@@ -1,14 +1,22 @@
 package kz.ai.lab.inlivefilemanager.config.keycloak;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.convert.converter.Converter;
 import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtValidators;
+import org.springframework.security.oauth2.jwt.NimbusReactiveJwtDecoder;
+import org.springframework.security.oauth2.jwt.ReactiveJwtDecoder;
+import org.springframework.security.oauth2.server.resource.authentication.JwtReactiveAuthenticationManager;
+import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
 import java.util.Collection;
 
 @Configuration
@@ -22,4 +30,33 @@ public class KeycloakConfiguration {
     Converter<Jwt, Mono<AbstractAuthenticationToken>> keycloakJwtAuthenticationConverter(Converter<Jwt, Collection<GrantedAuthority>> converter) {
         return new ReactiveKeycloakJwtAuthenticationConverter(converter);
     }
+
+    @Bean
+    JwkSetCache jwkSetCache(WebClient.Builder webClientBuilder,
+                            @Value("${spring.security.oauth2.resourceserver.jwt.jwk-set-uri}") String jwkSetUri,
+                            @Value("${application.auth.jwks-min-refetch-interval}") Duration minRefetchInterval) {
+        return new JwkSetCache(webClientBuilder.build(), jwkSetUri, minRefetchInterval);
+    }
+
+    /**
+     * Replaces the auto-configured decoder so keys come from {@link JwkSetCache} instead of being fetched
+     * on the first request.
+     */
+    @Bean
+    ReactiveJwtDecoder jwtDecoder(JwkSetCache jwkSetCache,
+                                  @Value("${spring.security.oauth2.resourceserver.jwt.issuer-uri}") String issuerUri) {
+        NimbusReactiveJwtDecoder decoder = NimbusReactiveJwtDecoder.withJwkSource(jwkSetCache::keys).build();
+        decoder.setJwtValidator(JwtValidators.createDefaultWithIssuer(issuerUri));
+        return decoder;
+    }
+
+    @Bean
+    ReactiveAuthenticationManager jwtAuthenticationManager(ReactiveJwtDecoder jwtDecoder,
+                                                           Converter<Jwt, Mono<AbstractAuthenticationToken>> keycloakJwtAuthenticationConverter,
+                                                           MeterRegistry meterRegistry,
+                                                           @Value("${application.auth.token-cache-max-entries}") long maxEntries) {
+        JwtReactiveAuthenticationManager authenticationManager = new JwtReactiveAuthenticationManager(jwtDecoder);
+        authenticationManager.setJwtAuthenticationConverter(keycloakJwtAuthenticationConverter);
+        return new CachingJwtAuthenticationManager(authenticationManager, maxEntries, meterRegistry);
+    }
 }
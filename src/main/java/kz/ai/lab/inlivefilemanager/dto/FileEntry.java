@@ -0,0 +1,13 @@
+package kz.ai.lab.inlivefilemanager.dto;
+
+import java.time.Instant;
+
+/**
+ * @param filename path of the file relative to its directory
+ */
+public record FileEntry(String filename,
+                        String contentType,
+                        long contentLength,
+                        String eTag,
+                        Instant lastModified) {
+}
@@ -0,0 +1,10 @@
+package kz.ai.lab.inlivefilemanager.dto;
+
+import java.util.List;
+
+/**
+ * @param nextCursor passed as {@code cursor} to get the next page, {@code null} on the last page
+ */
+public record FileListing(List<FileEntry> files,
+                          String nextCursor) {
+}
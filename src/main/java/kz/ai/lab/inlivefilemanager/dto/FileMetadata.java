@@ -0,0 +1,9 @@
+package kz.ai.lab.inlivefilemanager.dto;
+
+import java.time.Instant;
+
+public record FileMetadata(String contentType,
+                           long contentLength,
+                           String eTag,
+                           Instant lastModified) {
+}
@@ -0,0 +1,23 @@
+package kz.ai.lab.inlivefilemanager.dto;
+
+import java.time.Instant;
+
+/**
+ * @param listed     keys found under the folder so far
+ * @param etaSeconds estimated time to finish, {@code null} while the folder is still being listed
+ */
+public record FolderDeletionStatus(String jobId,
+                                   String folder,
+                                   State state,
+                                   long listed,
+                                   long deleted,
+                                   long failed,
+                                   double deletedPerSecond,
+                                   Long etaSeconds,
+                                   Instant startedAt,
+                                   Instant finishedAt) {
+
+    public enum State {
+        RUNNING, COMPLETED, FAILED
+    }
+}
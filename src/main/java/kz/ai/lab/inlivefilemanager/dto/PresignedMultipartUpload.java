@@ -0,0 +1,17 @@
+package kz.ai.lab.inlivefilemanager.dto;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * @param partSize every part but the last one has to be exactly this many bytes
+ */
+public record PresignedMultipartUpload(String filename,
+                                       String uploadId,
+                                       long partSize,
+                                       List<Part> parts,
+                                       Instant expiresAt) {
+
+    public record Part(int partNumber, String url) {
+    }
+}
@@ -0,0 +1,15 @@
+package kz.ai.lab.inlivefilemanager.dto;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @param headers headers that were signed into the URL, the client has to send them unchanged
+ */
+public record PresignedUrl(String filename,
+                           String method,
+                           String url,
+                           Map<String, List<String>> headers,
+                           Instant expiresAt) {
+}
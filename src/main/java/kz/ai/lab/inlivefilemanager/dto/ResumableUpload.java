@@ -0,0 +1,17 @@
+package kz.ai.lab.inlivefilemanager.dto;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * @param chunkSize      every chunk but the last one has to be exactly this many bytes, at an offset that is
+ *                       a multiple of it
+ * @param receivedOffsets offsets of the chunks stored so far, in ascending order
+ */
+public record ResumableUpload(String id,
+                              String filename,
+                              long size,
+                              long chunkSize,
+                              List<Long> receivedOffsets,
+                              Instant expiresAt) {
+}
@@ -1,4 +1,31 @@
 package kz.ai.lab.inlivefilemanager.dto;
 
-public record S3Blob(byte[] content, String contentType) {
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.support.ResourceRegion;
+import reactor.core.publisher.Flux;
+
+import java.time.Instant;
+
+/**
+ * @param contentLength number of bytes in {@code content}, for a ranged fetch that is the length of the range
+ * @param contentRange  {@code Content-Range} of a ranged fetch, {@code null} when the whole object is streamed
+ * @param fileRegion    the same bytes as {@code content} when they sit in a local file, so they can be sent
+ *                      zero-copy; {@code null} otherwise
+ */
+public record S3Blob(Flux<DataBuffer> content,
+                     String contentType,
+                     long contentLength,
+                     String contentRange,
+                     String eTag,
+                     Instant lastModified,
+                     ResourceRegion fileRegion) {
+
+    public S3Blob(Flux<DataBuffer> content,
+                  String contentType,
+                  long contentLength,
+                  String contentRange,
+                  String eTag,
+                  Instant lastModified) {
+        this(content, contentType, contentLength, contentRange, eTag, lastModified, null);
+    }
 }
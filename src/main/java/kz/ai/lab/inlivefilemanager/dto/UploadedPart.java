@@ -0,0 +1,7 @@
+package kz.ai.lab.inlivefilemanager.dto;
+
+/**
+ * @param eTag the ETag header S3 returned for the part PUT
+ */
+public record UploadedPart(int partNumber, String eTag) {
+}
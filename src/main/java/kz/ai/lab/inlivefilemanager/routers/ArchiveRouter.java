@@ -0,0 +1,59 @@
+package kz.ai.lab.inlivefilemanager.routers;
+
+import io.micrometer.common.lang.NonNull;
+import kz.ai.lab.inlivefilemanager.services.ArchiveService;
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ArchiveRouter {
+    private final ArchiveService archiveService;
+
+    @Bean
+    public RouterFunction<ServerResponse> archiveRouterFunction() {
+        return route()
+                .GET("/{directory}/archive", this::handleArchive)
+                .build();
+    }
+
+    /**
+     * Streams the directory as a ZIP, optionally narrowed with repeated {@code include} and
+     * {@code exclude} globs such as {@code *.jpg} or {@code photos/**}. The length is not known
+     * up front, the response is sent chunked.
+     */
+    @NonNull
+    public Mono<ServerResponse> handleArchive(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var includes = serverRequest.queryParams().getOrDefault("include", List.of());
+        var excludes = serverRequest.queryParams().getOrDefault("exclude", List.of());
+
+        log.debug("archiving directory: {}", directory);
+
+        if (KeyLayout.isInternal(directory)) {
+            return ServerResponse.notFound().build();
+        }
+
+        return ServerResponse.ok()
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .headers(headers -> headers.setContentDisposition(ContentDisposition.attachment()
+                        .filename(directory + ".zip")
+                        .build()))
+                .body(archiveService.archive(directory, includes, excludes), DataBuffer.class);
+    }
+}
@@ -2,24 +2,48 @@ package kz.ai.lab.inlivefilemanager.routers;
 
 import io.micrometer.common.lang.NonNull;
 import io.micrometer.common.util.StringUtils;
+import kz.ai.lab.inlivefilemanager.config.CacheControlProperties;
+import kz.ai.lab.inlivefilemanager.dto.FileMetadata;
 import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import kz.ai.lab.inlivefilemanager.services.CompressionService;
+import kz.ai.lab.inlivefilemanager.services.FolderDeletionService;
+import kz.ai.lab.inlivefilemanager.services.ImageDerivativeService;
+import kz.ai.lab.inlivefilemanager.services.MetadataIndex;
+import kz.ai.lab.inlivefilemanager.services.StorageMetrics;
 import kz.ai.lab.inlivefilemanager.services.StorageService;
+import kz.ai.lab.inlivefilemanager.services.UploadAdmission;
+import kz.ai.lab.inlivefilemanager.services.UploadInspection;
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.codec.multipart.FilePart;
-import org.springframework.http.codec.multipart.Part;
+import org.springframework.http.ReactiveHttpOutputMessage;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.codec.multipart.FilePartEvent;
+import org.springframework.http.codec.multipart.PartEvent;
 import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyInserter;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.server.RouterFunction;
 import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
-import reactor.core.publisher.Flux;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Mono;
 
+import java.security.Principal;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.springframework.web.reactive.function.server.RouterFunctions.route;
@@ -28,15 +52,33 @@ import static org.springframework.web.reactive.function.server.RouterFunctions.r
 @Component
 @RequiredArgsConstructor
 public class FileRouter {
+    private static final String FILES_PART = "files";
+    static final String ANONYMOUS = "anonymous";
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_DELETE_COUNT = 10_000;
+
     private final StorageService storageService;
+    private final FolderDeletionService folderDeletionService;
+    private final ImageDerivativeService imageDerivativeService;
+    private final CompressionService compressionService;
+    private final MetadataIndex metadataIndex;
+    private final StorageMetrics storageMetrics;
+    private final UploadAdmission uploadAdmission;
+    private final CacheControlProperties cacheControlProperties;
 
     @Bean
     public RouterFunction<ServerResponse> apiRouterFunction() {
         return route()
                 .POST("/{directory}/upload/files", this::handleFileUpload)
+                .POST("/{directory}/upload/dedup", this::handleDedupUpload)
+                .HEAD("/{directory}/retrieve/files/{filename}", this::handleFileMetadata)
                 .GET("/{directory}/retrieve/files/{filename}", this::handleFetchFile)
+                .GET("/{directory}/files", this::handleListFiles)
                 .DELETE("/{directory}/remove/files/{filename}", this::handleDeleteFile)
+                .POST("/{directory}/remove/files", this::handleDeleteFiles)
                 .DELETE("/remove/folders/{directory}", this::handleDeleteFolder)
+                .GET("/remove/folders/jobs/{jobId}", this::handleFolderDeletionStatus)
                 .build();
     }
 
@@ -45,44 +87,391 @@ public class FileRouter {
         var directory = serverRequest.pathVariable("directory");
         var generateFileName = Boolean.parseBoolean(serverRequest.queryParam("generate-file-name").orElse("false"));
 
-        log.info("directory: {}", directory);
+        log.debug("directory: {}", directory);
 
-        Mono<List<String>> fileResponseMono = serverRequest.multipartData()
-                .flatMap(parts -> {
-                    log.info("parts.size(): {}", parts.size());
-                    List<Part> fileParts = parts.get("files");
+        // Parts are consumed as a stream of events so file content is piped to S3 as it arrives
+        // instead of being collected (in memory or on disk) before the handler sees it.
+        Mono<List<String>> fileResponseMono = serverRequest.bodyToFlux(PartEvent.class)
+                .windowUntil(PartEvent::isLast)
+                .concatMap(partEvents -> partEvents.switchOnFirst((signal, events) -> {
+                    if (signal.hasValue()
+                            && signal.get() instanceof FilePartEvent fileEvent
+                            && FILES_PART.equals(fileEvent.name())) {
+                        log.debug("uploading part: {}", fileEvent.filename());
+                        // variants of a stored file are compressed in the background from a copy, the response
+                        // does not wait for them
+                        CompressionService.Capture capture = compressionService.capture(fileEvent.filename(), directory,
+                                serverRequest.headers().contentLength());
+                        // checksums of a file travel in its part headers, the request's own cover the whole body
+                        return storageService.uploadFile(capture.tee(events.map(PartEvent::content)),
+                                        fileEvent.filename(), directory, generateFileName,
+                                        UploadInspection.Expected.from(fileEvent.headers()), capture::generate)
+                                .doFinally(signal -> capture.discard());
+                    }
 
-                    log.info("fileParts.size: {}", fileParts.size());
+                    return events.map(PartEvent::content)
+                            .doOnNext(DataBufferUtils::release)
+                            .then(Mono.<String>empty());
+                }))
+                .filter(StringUtils::isNotBlank)
+                .collectList();
 
-                    List<FilePart> filePartList = fileParts.stream()
-                            .map(p -> (FilePart) p)
-                            .toList();
+        // the request is admitted as a whole, its files are stored one after another
+        long reservation = uploadAdmission.reservation(serverRequest.headers().contentLength());
+        return serverRequest.principal()
+                .map(Principal::getName)
+                .defaultIfEmpty(ANONYMOUS)
+                .flatMap(user -> uploadAdmission.admit(user, reservation, fileResponseMono))
+                .flatMap(files -> ServerResponse.ok().bodyValue(files))
+                .onErrorResume(UploadAdmission.Rejected.class, FileRouter::rejected);
+    }
 
-                    return Flux.fromIterable(filePartList)
-                            .flatMap(filePart -> DataBufferUtils.join(filePart.content())
-                                    .map(DataBuffer::asInputStream)
-                                    .map(inputStream -> storageService
-                                            .uploadFile(inputStream, filePart.filename(), directory, generateFileName))
-                                    .filter(StringUtils::isNotBlank))
-                            .collectList();
-                });
+    static Mono<ServerResponse> rejected(UploadAdmission.Rejected ex) {
+        return ServerResponse.status(ex.getStatusCode())
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfter().toSeconds()))
+                .bodyValue(ex.getReason());
+    }
 
-        return ServerResponse.ok().body(fileResponseMono, new ParameterizedTypeReference<>() {});
+    /**
+     * Stores a file by the SHA-256 of its content without transferring it, answers 404 when
+     * no content with that hash is stored yet and the file has to be uploaded.
+     */
+    @NonNull
+    public Mono<ServerResponse> handleDedupUpload(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var sha256 = serverRequest.queryParam("sha256").orElse(null);
+        var filename = serverRequest.queryParam("filename").orElse(null);
+        var generateFileName = Boolean.parseBoolean(serverRequest.queryParam("generate-file-name").orElse("false"));
+
+        if (sha256 == null || filename == null) {
+            return ServerResponse.badRequest().bodyValue("sha256 and filename are required");
+        }
+
+        return storageService.uploadExisting(sha256, filename, directory, generateFileName)
+                .flatMap(storedName -> ServerResponse.ok().bodyValue(List.of(storedName)))
+                .switchIfEmpty(ServerResponse.notFound().build());
     }
 
     @NonNull
     public Mono<ServerResponse> handleFetchFile(final ServerRequest serverRequest) {
         var location = serverRequest.pathVariable("directory");
         var filename = serverRequest.pathVariable("filename");
+        var cacheControl = cacheControlProperties.policyFor(location, filename);
+
+        if (isDerivativeRequest(serverRequest)) {
+            return handleFetchDerivative(serverRequest, location, filename, cacheControl);
+        }
 
-        S3Blob blob = storageService.getFile(filename, location);
-        if (blob != null) {
-            return ServerResponse.ok()
-                    .contentType(MediaType.parseMediaType(blob.contentType()))
-                    .bodyValue(blob.content());
+        if (!isConditional(serverRequest)) {
+            return fetchFile(serverRequest, location, filename, cacheControl);
         }
 
-        return ServerResponse.notFound().build();
+        // validators come from HeadObject or the local metadata cache, no body is transferred for a 304
+        return storageService.getFileMetadata(filename, location)
+                .flatMap(metadata -> isNotModified(serverRequest, metadata)
+                        ? ServerResponse.status(HttpStatus.NOT_MODIFIED)
+                                .headers(headers -> setValidators(headers, notModifiedETag(serverRequest, metadata),
+                                        metadata.lastModified(), cacheControl))
+                                .build()
+                        : fetchFile(serverRequest, location, filename, cacheControl))
+                .switchIfEmpty(ServerResponse.notFound().build());
+    }
+
+    /**
+     * Answers a HEAD with the headers a GET would have, from the metadata index where possible.
+     */
+    @NonNull
+    public Mono<ServerResponse> handleFileMetadata(final ServerRequest serverRequest) {
+        var location = serverRequest.pathVariable("directory");
+        var filename = serverRequest.pathVariable("filename");
+        var cacheControl = cacheControlProperties.policyFor(location, filename);
+
+        return storageService.getFileMetadata(filename, location)
+                .flatMap(metadata -> isConditional(serverRequest) && isNotModified(serverRequest, metadata)
+                        ? ServerResponse.status(HttpStatus.NOT_MODIFIED)
+                                .headers(headers -> setValidators(headers, notModifiedETag(serverRequest, metadata),
+                                        metadata.lastModified(), cacheControl))
+                                .build()
+                        : ServerResponse.ok()
+                                .contentType(MediaType.parseMediaType(metadata.contentType()))
+                                .contentLength(metadata.contentLength())
+                                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                                .headers(headers -> setValidators(headers, metadata.eTag(), metadata.lastModified(), cacheControl))
+                                .build())
+                .switchIfEmpty(ServerResponse.notFound().build());
+    }
+
+    /**
+     * Lists a directory from the metadata index,
+     * {@code ?prefix=&sort=name|size|last-modified&order=asc|desc&limit=&cursor=}. Only authenticated
+     * callers list, see {@code SecurityConfig}; internal directories are not listed at all.
+     */
+    @NonNull
+    public Mono<ServerResponse> handleListFiles(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        if (KeyLayout.isInternal(directory)) {
+            return ServerResponse.notFound().build();
+        }
+        var prefix = serverRequest.queryParam("prefix").orElse(null);
+        var cursor = serverRequest.queryParam("cursor").orElse(null);
+        var descending = "desc".equalsIgnoreCase(serverRequest.queryParam("order").orElse("asc"));
+
+        MetadataIndex.Sort sort;
+        int limit;
+        try {
+            sort = MetadataIndex.Sort.parse(serverRequest.queryParam("sort").orElse("name"));
+            limit = serverRequest.queryParam("limit").map(Integer::parseInt).orElse(DEFAULT_PAGE_SIZE);
+        } catch (IllegalArgumentException ex) {
+            return ServerResponse.badRequest().bodyValue("sort must be one of name, size, last-modified and limit a number");
+        }
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            return ServerResponse.badRequest().bodyValue("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        return Mono.defer(() -> metadataIndex.list(directory, prefix, sort, descending, cursor, limit))
+                .flatMap(listing -> ServerResponse.ok().bodyValue(listing))
+                .onErrorResume(IllegalArgumentException.class,
+                        ex -> ServerResponse.badRequest().bodyValue(ex.getMessage()));
+    }
+
+    private static boolean isDerivativeRequest(ServerRequest serverRequest) {
+        return serverRequest.queryParam("w").isPresent()
+                || serverRequest.queryParam("h").isPresent()
+                || serverRequest.queryParam("format").isPresent();
+    }
+
+    /**
+     * Resized or re-encoded image, {@code ?w=&h=&fit=contain|cover|fill&format=}. Derivatives are generated
+     * once and then served from storage, ranges and conditional headers are not applied to them.
+     */
+    private Mono<ServerResponse> handleFetchDerivative(ServerRequest serverRequest,
+                                                       String location,
+                                                       String filename,
+                                                       String cacheControl) {
+        ImageDerivativeService.Spec spec;
+        try {
+            spec = imageDerivativeService.parseSpec(
+                    serverRequest.queryParam("w").orElse(null),
+                    serverRequest.queryParam("h").orElse(null),
+                    serverRequest.queryParam("fit").orElse(null),
+                    serverRequest.queryParam("format").orElse(null));
+        } catch (ResponseStatusException ex) {
+            return ServerResponse.badRequest().bodyValue(ex.getReason());
+        }
+
+        return imageDerivativeService.getDerivative(filename, location, spec)
+                .flatMap(blob -> fileResponse(blob, cacheControl))
+                .switchIfEmpty(ServerResponse.notFound().build());
+    }
+
+    private Mono<ServerResponse> fetchFile(ServerRequest serverRequest,
+                                           String location,
+                                           String filename,
+                                           String cacheControl) {
+        HttpRange range = singleRange(serverRequest);
+        if (range == null) {
+            List<CompressionService.Encoding> accepted =
+                    CompressionService.accepted(serverRequest.headers().firstHeader(HttpHeaders.ACCEPT_ENCODING));
+            if (accepted.isEmpty() || !compressionService.isEnabled()) {
+                return storageService.getFile(filename, location)
+                        .flatMap(blob -> fileResponse(blob, cacheControl))
+                        .switchIfEmpty(ServerResponse.notFound().build());
+            }
+
+            // the metadata names the variant, it mostly comes from the index without a call to the backend
+            return storageService.getFileMetadata(filename, location)
+                    .flatMap(metadata -> compressionService.getVariant(filename, location, metadata, accepted)
+                            .flatMap(variant -> encodedResponse(variant, metadata, cacheControl))
+                            .switchIfEmpty(Mono.defer(() -> storageService.getFile(filename, location)
+                                    .flatMap(blob -> fileResponse(blob, cacheControl)))))
+                    .switchIfEmpty(ServerResponse.notFound().build());
+        }
+
+        return storageService.getFileMetadata(filename, location)
+                .flatMap(metadata -> {
+                    if (!ifRangeMatches(serverRequest, metadata)) {
+                        return storageService.getFile(filename, location)
+                                .flatMap(blob -> fileResponse(blob, cacheControl));
+                    }
+
+                    long length = metadata.contentLength();
+                    long start;
+                    long end;
+                    try {
+                        start = range.getRangeStart(length);
+                        end = range.getRangeEnd(length);
+                    } catch (IllegalArgumentException ex) {
+                        return ServerResponse.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                                .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+                                .build();
+                    }
+
+                    return storageService.getFile(filename, location, start, end)
+                            .flatMap(blob -> fileResponse(blob, cacheControl));
+                })
+                .switchIfEmpty(ServerResponse.notFound().build());
+    }
+
+    private Mono<ServerResponse> fileResponse(S3Blob blob, String cacheControl) {
+        var status = blob.contentRange() != null ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK;
+
+        return ServerResponse.status(status)
+                .contentType(MediaType.parseMediaType(blob.contentType()))
+                .contentLength(blob.contentLength())
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .headers(headers -> {
+                    setValidators(headers, blob.eTag(), blob.lastModified(), cacheControl);
+                    if (blob.contentRange() != null) {
+                        headers.set(HttpHeaders.CONTENT_RANGE, blob.contentRange());
+                    }
+                    if (compressionService.isEnabled() && CompressionService.isCompressible(blob.contentType())) {
+                        headers.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+                    }
+                })
+                .body(blob.fileRegion() != null
+                        ? zeroCopyBody(blob)
+                        : BodyInserters.fromDataBuffers(blob.content()
+                                .doOnNext(buffer -> storageMetrics.sent(buffer.readableByteCount()))));
+    }
+
+    /**
+     * A precompressed variant, sent as the file in a content coding. Ranges are only served of the
+     * original, so none are advertised.
+     */
+    private Mono<ServerResponse> encodedResponse(CompressionService.Variant variant,
+                                                 FileMetadata metadata,
+                                                 String cacheControl) {
+        S3Blob blob = variant.blob();
+
+        return ServerResponse.ok()
+                .contentType(MediaType.parseMediaType(metadata.contentType()))
+                .contentLength(blob.contentLength())
+                .header(HttpHeaders.CONTENT_ENCODING, variant.encoding().token())
+                .headers(headers -> {
+                    setValidators(headers, variant.encoding().eTag(metadata.eTag()), metadata.lastModified(), cacheControl);
+                    headers.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+                })
+                .body(BodyInserters.fromDataBuffers(blob.content()
+                        .doOnNext(buffer -> storageMetrics.sent(buffer.readableByteCount()))));
+    }
+
+    /**
+     * Local files go out with sendfile, falling back to the buffered content where the server does not
+     * support zero-copy or the response body is wrapped, e.g. by compression.
+     */
+    private BodyInserter<?, ReactiveHttpOutputMessage> zeroCopyBody(S3Blob blob) {
+        return (message, context) -> {
+            if (!(message instanceof ZeroCopyHttpOutputMessage zeroCopy)) {
+                return message.writeWith(blob.content()
+                        .doOnNext(buffer -> storageMetrics.sent(buffer.readableByteCount())));
+            }
+            ResourceRegion region = blob.fileRegion();
+            return Mono.fromCallable(() -> region.getResource().getFile().toPath())
+                    .flatMap(path -> zeroCopy.writeWith(path, region.getPosition(), region.getCount()))
+                    .doOnSuccess(ignored -> storageMetrics.sent(region.getCount()));
+        };
+    }
+
+    private static void setValidators(HttpHeaders headers, String eTag, Instant lastModified, String cacheControl) {
+        if (eTag != null) {
+            headers.setETag(eTag);
+        }
+        if (lastModified != null) {
+            headers.setLastModified(lastModified);
+        }
+        headers.setCacheControl(cacheControl);
+    }
+
+    private static boolean isConditional(ServerRequest serverRequest) {
+        HttpHeaders headers = serverRequest.headers().asHttpHeaders();
+        return headers.containsKey(HttpHeaders.IF_NONE_MATCH) || headers.containsKey(HttpHeaders.IF_MODIFIED_SINCE);
+    }
+
+    /**
+     * If-None-Match takes precedence over If-Modified-Since, as in RFC 9110 section 13.2.2.
+     */
+    private static boolean isNotModified(ServerRequest serverRequest, FileMetadata metadata) {
+        HttpHeaders headers = serverRequest.headers().asHttpHeaders();
+
+        if (headers.containsKey(HttpHeaders.IF_NONE_MATCH)) {
+            if (metadata.eTag() == null) {
+                return false;
+            }
+            String eTag = weakened(metadata.eTag());
+            // a cached variant carries the ETag of the file in a content coding
+            return headers.getIfNoneMatch().stream()
+                    .map(FileRouter::weakened)
+                    .anyMatch(candidate -> "*".equals(candidate) || candidate.equals(eTag)
+                            || Arrays.stream(CompressionService.Encoding.values())
+                                    .anyMatch(encoding -> candidate.equals(encoding.eTag(eTag))));
+        }
+
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = headers.getIfModifiedSince();
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        return ifModifiedSince != -1
+                && metadata.lastModified() != null
+                && metadata.lastModified().truncatedTo(ChronoUnit.SECONDS).toEpochMilli() <= ifModifiedSince;
+    }
+
+    /**
+     * The ETag a 304 carries is the one the cache holds, that of the variant when If-None-Match named
+     * a variant's.
+     */
+    private static String notModifiedETag(ServerRequest serverRequest, FileMetadata metadata) {
+        if (metadata.eTag() == null) {
+            return null;
+        }
+        String eTag = weakened(metadata.eTag());
+        return serverRequest.headers().asHttpHeaders().getIfNoneMatch().stream()
+                .map(FileRouter::weakened)
+                .flatMap(candidate -> Arrays.stream(CompressionService.Encoding.values())
+                        .filter(encoding -> candidate.equals(encoding.eTag(eTag)))
+                        .map(encoding -> encoding.eTag(metadata.eTag())))
+                .findFirst()
+                .orElse(metadata.eTag());
+    }
+
+    private static String weakened(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+
+    /**
+     * Only single ranges are served as 206, for multiple or malformed ranges the whole file is sent,
+     * which RFC 9110 allows.
+     */
+    private static HttpRange singleRange(ServerRequest serverRequest) {
+        try {
+            List<HttpRange> ranges = serverRequest.headers().range();
+            return ranges.size() == 1 ? ranges.get(0) : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static boolean ifRangeMatches(ServerRequest serverRequest, FileMetadata metadata) {
+        String ifRange = serverRequest.headers().firstHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(metadata.eTag());
+        }
+        if (ifRange.startsWith("W/")) {
+            // weak validators never satisfy If-Range
+            return false;
+        }
+
+        try {
+            Instant date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return metadata.lastModified() != null
+                    && date.equals(metadata.lastModified().truncatedTo(ChronoUnit.SECONDS));
+        } catch (DateTimeParseException ex) {
+            return false;
+        }
     }
 
     @NonNull
@@ -91,14 +480,58 @@ public class FileRouter {
         var filename = serverRequest.pathVariable("filename");
 
         return ServerResponse.ok()
-                .bodyValue(storageService.deleteFile(filename, location));
+                .body(storageService.deleteFile(filename, location), String.class);
+    }
+
+    /**
+     * Deletes the files named in a JSON array body, answers with the result of each in the same order.
+     */
+    @NonNull
+    public Mono<ServerResponse> handleDeleteFiles(final ServerRequest serverRequest) {
+        var location = serverRequest.pathVariable("directory");
+
+        return serverRequest.bodyToMono(new ParameterizedTypeReference<List<String>>() {
+                })
+                .defaultIfEmpty(List.of())
+                .flatMap(filenames -> {
+                    if (filenames.isEmpty() || filenames.size() > MAX_DELETE_COUNT) {
+                        return ServerResponse.badRequest()
+                                .bodyValue("Between 1 and " + MAX_DELETE_COUNT + " file names are required");
+                    }
+                    return storageService.deleteFiles(filenames, location)
+                            .collectList()
+                            .flatMap(results -> ServerResponse.ok().bodyValue(results));
+                });
     }
 
     @NonNull
     public Mono<ServerResponse> handleDeleteFolder(final ServerRequest serverRequest) {
         var location = serverRequest.pathVariable("directory");
 
-        return ServerResponse.ok()
-                .bodyValue(storageService.deleteFolder(location));
+        return folderDeletionService.deleteFolder(location)
+                .flatMap(status -> switch (status.state()) {
+                    case RUNNING -> ServerResponse.accepted()
+                            .location(serverRequest.uriBuilder()
+                                    .replacePath("/remove/folders/jobs/{jobId}")
+                                    .replaceQuery(null)
+                                    .build(status.jobId()))
+                            .bodyValue(status);
+                    case COMPLETED -> ServerResponse.ok()
+                            .bodyValue(String.format("Folder [%s] deleted successfully", location));
+                    case FAILED -> ServerResponse.ok()
+                            .bodyValue("Unable to delete folder: " + location);
+                })
+                // an internal folder is refused with its status, not reported as a failure
+                .onErrorResume(ex -> !(ex instanceof ResponseStatusException), ex -> {
+                    log.error("Error Occurred: [{}]", ex.getMessage(), ex);
+                    return ServerResponse.ok().bodyValue("Unable to delete folder: " + location);
+                });
+    }
+
+    @NonNull
+    public Mono<ServerResponse> handleFolderDeletionStatus(final ServerRequest serverRequest) {
+        return folderDeletionService.getStatus(serverRequest.pathVariable("jobId"))
+                .flatMap(status -> ServerResponse.ok().bodyValue(status))
+                .switchIfEmpty(ServerResponse.notFound().build());
     }
 }
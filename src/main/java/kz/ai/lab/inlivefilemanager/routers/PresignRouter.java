@@ -0,0 +1,110 @@
+package kz.ai.lab.inlivefilemanager.routers;
+
+import io.micrometer.common.lang.NonNull;
+import kz.ai.lab.inlivefilemanager.dto.UploadedPart;
+import kz.ai.lab.inlivefilemanager.services.PresignService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+
+/**
+ * Routes that hand out presigned S3 URLs. Upload routes live under {@code /{directory}/upload/**}
+ * so they are covered by the same role checks as direct uploads.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class PresignRouter {
+    private final PresignService presignService;
+
+    @Bean
+    public RouterFunction<ServerResponse> presignRouterFunction() {
+        return route()
+                .POST("/{directory}/upload/presigned", this::handlePresignUpload)
+                .POST("/{directory}/upload/multipart", this::handleCreateMultipartUpload)
+                .POST("/{directory}/upload/multipart/{uploadId}/complete", this::handleCompleteMultipartUpload)
+                .DELETE("/{directory}/upload/multipart/{uploadId}", this::handleAbortMultipartUpload)
+                .GET("/{directory}/retrieve/presigned/{filename}", this::handlePresignDownload)
+                .build();
+    }
+
+    @NonNull
+    public Mono<ServerResponse> handlePresignUpload(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var filename = serverRequest.queryParam("filename").orElse(null);
+        var generateFileName = Boolean.parseBoolean(serverRequest.queryParam("generate-file-name").orElse("false"));
+
+        if (filename == null) {
+            return ServerResponse.badRequest().bodyValue("filename is required");
+        }
+
+        return presignService.presignUpload(filename, directory, generateFileName)
+                .flatMap(presigned -> ServerResponse.ok().bodyValue(presigned));
+    }
+
+    @NonNull
+    public Mono<ServerResponse> handleCreateMultipartUpload(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var filename = serverRequest.queryParam("filename").orElse(null);
+        var size = serverRequest.queryParam("size").map(Long::parseLong).orElse(null);
+        var generateFileName = Boolean.parseBoolean(serverRequest.queryParam("generate-file-name").orElse("false"));
+
+        if (filename == null || size == null) {
+            return ServerResponse.badRequest().bodyValue("filename and size are required");
+        }
+
+        return presignService.createMultipartUpload(filename, directory, generateFileName, size)
+                .flatMap(upload -> ServerResponse.ok().bodyValue(upload))
+                .onErrorResume(IllegalArgumentException.class,
+                        ex -> ServerResponse.badRequest().bodyValue(ex.getMessage()));
+    }
+
+    @NonNull
+    public Mono<ServerResponse> handleCompleteMultipartUpload(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var uploadId = serverRequest.pathVariable("uploadId");
+        var filename = serverRequest.queryParam("filename").orElse(null);
+
+        if (filename == null) {
+            return ServerResponse.badRequest().bodyValue("filename is required");
+        }
+
+        Mono<String> completed = serverRequest.bodyToMono(new ParameterizedTypeReference<List<UploadedPart>>() {})
+                .flatMap(parts -> presignService.completeMultipartUpload(filename, directory, uploadId, parts));
+
+        return ServerResponse.ok().body(completed, String.class);
+    }
+
+    @NonNull
+    public Mono<ServerResponse> handleAbortMultipartUpload(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var uploadId = serverRequest.pathVariable("uploadId");
+        var filename = serverRequest.queryParam("filename").orElse(null);
+
+        if (filename == null) {
+            return ServerResponse.badRequest().bodyValue("filename is required");
+        }
+
+        return presignService.abortMultipartUpload(filename, directory, uploadId)
+                .then(ServerResponse.noContent().build());
+    }
+
+    @NonNull
+    public Mono<ServerResponse> handlePresignDownload(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var filename = serverRequest.pathVariable("filename");
+
+        return presignService.presignDownload(filename, directory)
+                .flatMap(presigned -> ServerResponse.ok().bodyValue(presigned));
+    }
+}
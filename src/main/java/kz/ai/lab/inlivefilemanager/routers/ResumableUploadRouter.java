@@ -0,0 +1,108 @@
+package kz.ai.lab.inlivefilemanager.routers;
+
+import io.micrometer.common.lang.NonNull;
+import kz.ai.lab.inlivefilemanager.dto.ResumableUpload;
+import kz.ai.lab.inlivefilemanager.services.ResumableUploadService;
+import kz.ai.lab.inlivefilemanager.services.UploadAdmission;
+import kz.ai.lab.inlivefilemanager.services.UploadInspection;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+
+import java.security.Principal;
+
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+
+/**
+ * Resumable uploads: create a session, {@code PUT} chunks at offsets in any order, read back which
+ * offsets arrived, then complete. Routes live under {@code /{directory}/upload/**} so they are covered
+ * by the same role checks as direct uploads.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ResumableUploadRouter {
+    private final ResumableUploadService resumableUploadService;
+    private final UploadAdmission uploadAdmission;
+
+    @Bean
+    public RouterFunction<ServerResponse> resumableUploadRouterFunction() {
+        return route()
+                .POST("/{directory}/upload/resumable", this::handleCreate)
+                .PUT("/{directory}/upload/resumable/{id}", this::handlePutChunk)
+                .GET("/{directory}/upload/resumable/{id}", this::handleGetStatus)
+                .POST("/{directory}/upload/resumable/{id}/complete", this::handleComplete)
+                .DELETE("/{directory}/upload/resumable/{id}", this::handleAbort)
+                .build();
+    }
+
+    @NonNull
+    public Mono<ServerResponse> handleCreate(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var filename = serverRequest.queryParam("filename").orElse(null);
+        var size = serverRequest.queryParam("size").map(Long::parseLong).orElse(null);
+        var generateFileName = Boolean.parseBoolean(serverRequest.queryParam("generate-file-name").orElse("false"));
+
+        if (filename == null || size == null) {
+            return ServerResponse.badRequest().bodyValue("filename and size are required");
+        }
+
+        return resumableUploadService.create(filename, directory, generateFileName, size)
+                .flatMap(upload -> ServerResponse.ok().bodyValue(upload));
+    }
+
+    @NonNull
+    public Mono<ServerResponse> handlePutChunk(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var id = serverRequest.pathVariable("id");
+        var offset = serverRequest.queryParam("offset").map(Long::parseLong).orElse(null);
+
+        if (offset == null) {
+            return ServerResponse.badRequest().bodyValue("offset is required");
+        }
+
+        Mono<ResumableUpload> stored = resumableUploadService.putChunk(id, directory, offset,
+                serverRequest.bodyToFlux(DataBuffer.class),
+                UploadInspection.Expected.from(serverRequest.headers().asHttpHeaders()));
+
+        long reservation = uploadAdmission.reservation(serverRequest.headers().contentLength());
+        return serverRequest.principal()
+                .map(Principal::getName)
+                .defaultIfEmpty(FileRouter.ANONYMOUS)
+                .flatMap(user -> uploadAdmission.admit(user, reservation, stored))
+                .flatMap(upload -> ServerResponse.ok().bodyValue(upload))
+                .onErrorResume(UploadAdmission.Rejected.class, FileRouter::rejected);
+    }
+
+    @NonNull
+    public Mono<ServerResponse> handleGetStatus(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var id = serverRequest.pathVariable("id");
+
+        return resumableUploadService.getStatus(id, directory)
+                .flatMap(upload -> ServerResponse.ok().bodyValue(upload));
+    }
+
+    @NonNull
+    public Mono<ServerResponse> handleComplete(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var id = serverRequest.pathVariable("id");
+
+        return ServerResponse.ok().body(resumableUploadService.complete(id, directory), String.class);
+    }
+
+    @NonNull
+    public Mono<ServerResponse> handleAbort(final ServerRequest serverRequest) {
+        var directory = serverRequest.pathVariable("directory");
+        var id = serverRequest.pathVariable("id");
+
+        return resumableUploadService.abort(id, directory)
+                .then(ServerResponse.noContent().build());
+    }
+}
@@ -0,0 +1,147 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import kz.ai.lab.inlivefilemanager.storage.ObjectSummary;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams every file under a directory as a ZIP archive. Objects are listed page by page and fetched
+ * a bounded number ahead of the entry being written, each entry is compressed as its content arrives,
+ * so neither the archive nor a whole file is held in memory. ZIP64 records are written as needed.
+ */
+@Slf4j
+@Service
+public class ArchiveService {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** content that does not get smaller when deflated again */
+    private static final List<String> COMPRESSED_TYPES = List.of(
+            "image/jpeg", "image/png", "image/gif", "image/webp", "image/avif", "image/heic",
+            "video/", "audio/",
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/x-bzip2", "application/x-xz", "application/zstd");
+
+    private final StorageBackend storageBackend;
+    private final int prefetch;
+
+    private final PathMatcher pathMatcher = new AntPathMatcher();
+
+    public ArchiveService(StorageBackend storageBackend,
+                          @Value("${application.archive.prefetch}") int prefetch) {
+        this.storageBackend = storageBackend;
+        this.prefetch = prefetch;
+    }
+
+    private record ArchiveEntry(String name, S3Blob blob) {
+    }
+
+    /**
+     * @param includes Ant-style globs relative to the directory, a file has to match one of them; empty includes all
+     * @param excludes Ant-style globs relative to the directory, a file matching any of them is left out
+     */
+    public Flux<DataBuffer> archive(String directory, List<String> includes, List<String> excludes) {
+        // dedup blobs and their references, derivatives and upload sessions are not folders to hand out
+        if (KeyLayout.isInternal(directory)) {
+            return Flux.error(new ResponseStatusException(HttpStatus.NOT_FOUND));
+        }
+        String prefix = directory + "/";
+
+        // responses are requested ahead of the writer, their bodies are only pulled once the entry is written;
+        // read past the file cache, a one-off archive of a folder would only evict the files worth keeping
+        Flux<ArchiveEntry> entries = storageBackend.list(prefix)
+                .map(ObjectSummary::key)
+                .map(key -> key.substring(prefix.length()))
+                .filter(name -> !name.isEmpty() && !name.endsWith("/") && matches(name, includes, excludes))
+                .flatMapSequential(name -> storageBackend.get(prefix + name)
+                        .map(blob -> new ArchiveEntry(name, blob)), prefetch, 1)
+                .doOnDiscard(ArchiveEntry.class, entry -> entry.blob().content().take(0).subscribe());
+
+        return DataBufferUtils.outputStreamPublisher(outputStream -> writeArchive(outputStream, directory, entries),
+                DefaultDataBufferFactory.sharedInstance,
+                task -> Schedulers.boundedElastic().schedule(task),
+                CHUNK_SIZE);
+    }
+
+    private boolean matches(String name, List<String> includes, List<String> excludes) {
+        if (!includes.isEmpty() && includes.stream().noneMatch(pattern -> pathMatcher.match(pattern, name))) {
+            return false;
+        }
+        return excludes.stream().noneMatch(pattern -> pathMatcher.match(pattern, name));
+    }
+
+    /**
+     * Runs on a worker thread, blocking on the next entry and its content is expected here.
+     * The archive is only finished when every entry was written, a failure leaves it truncated
+     * instead of producing a well-formed archive with a partial entry.
+     */
+    private void writeArchive(OutputStream outputStream, String directory, Flux<ArchiveEntry> entries) {
+        AtomicLong count = new AtomicLong();
+
+        try (Stream<ArchiveEntry> stream = entries.toStream(1)) {
+            ZipOutputStream zip = new ZipOutputStream(outputStream);
+            Iterator<ArchiveEntry> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                writeEntry(zip, iterator.next());
+                count.incrementAndGet();
+            }
+            zip.finish();
+            log.info("Archive of directory [{}] written with {} entries", directory, count.get());
+        } catch (IOException ex) {
+            log.warn("Archive of directory [{}] aborted after {} entries: {}", directory, count.get(), ex.getMessage());
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static void writeEntry(ZipOutputStream zip, ArchiveEntry entry) throws IOException {
+        S3Blob blob = entry.blob();
+
+        ZipEntry zipEntry = new ZipEntry(entry.name());
+        if (blob.lastModified() != null) {
+            zipEntry.setLastModifiedTime(FileTime.from(blob.lastModified()));
+        }
+
+        zip.setLevel(isCompressed(blob.contentType()) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+        zip.putNextEntry(zipEntry);
+
+        try (Stream<DataBuffer> buffers = blob.content().toStream(2)) {
+            Iterator<DataBuffer> iterator = buffers.iterator();
+            while (iterator.hasNext()) {
+                try (InputStream in = iterator.next().asInputStream(true)) {
+                    in.transferTo(zip);
+                }
+            }
+        }
+
+        zip.closeEntry();
+    }
+
+    private static boolean isCompressed(String contentType) {
+        return contentType != null && COMPRESSED_TYPES.stream().anyMatch(contentType::startsWith);
+    }
+}
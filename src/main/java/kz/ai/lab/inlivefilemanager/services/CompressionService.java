@@ -0,0 +1,487 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.airlift.compress.zstd.ZstdCompressor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import kz.ai.lab.inlivefilemanager.dto.FileMetadata;
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Precompressed variants of text-like files, so they are sent compressed without compressing anything
+ * on the request path. Variants are generated on a bounded worker pool from a copy of the content taken
+ * while it is uploaded, or after the first request that finds none, and stored next to the image
+ * derivatives of the file.
+ * <p>
+ * Variants are named after the {@link ImageDerivativeService#version(String) version} of the original they
+ * were compressed from, a variant of a previous version of the file is never served, and
+ * {@link ImageDerivativeService#cleanup()} removes it together with stale image derivatives. A file whose variants are missing is looked up again only after
+ * {@code absent-ttl}.
+ */
+@Slf4j
+@Service
+public class CompressionService implements DisposableBean {
+    /** a variant is stored only when it is at most this fraction of the original */
+    private static final double MAX_RATIO = 0.9;
+
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of(
+            "application/json",
+            "application/x-ndjson",
+            "application/xml",
+            "application/javascript",
+            "application/x-javascript",
+            "application/ecmascript",
+            "application/yaml",
+            "application/x-yaml",
+            "application/sql",
+            "application/graphql",
+            "application/wasm",
+            "application/x-sh",
+            "application/rtf",
+            "image/svg+xml",
+            "image/bmp",
+            "image/x-icon",
+            "image/vnd.microsoft.icon",
+            "font/ttf",
+            "font/otf");
+
+    private final StorageService storageService;
+    private final UploadAdmission uploadAdmission;
+    private final Scheduler scheduler;
+    private final boolean enabled;
+    private final long minSize;
+    private final long maxSize;
+
+    private final Map<String, Mono<Void>> inFlight = new ConcurrentHashMap<>();
+    private final Cache<String, Boolean> absent;
+    private final Counter saved;
+    private final Map<Encoding, Counter> served = new EnumMap<>(Encoding.class);
+
+    public CompressionService(StorageService storageService,
+                              UploadAdmission uploadAdmission,
+                              MeterRegistry registry,
+                              @Value("${application.compression.enabled}") boolean enabled,
+                              @Value("${application.compression.workers}") int workers,
+                              @Value("${application.compression.queue-capacity}") int queueCapacity,
+                              @Value("${application.compression.min-size}") long minSize,
+                              @Value("${application.compression.max-size}") long maxSize,
+                              @Value("${application.compression.absent-ttl}") Duration absentTtl) {
+        this.storageService = storageService;
+        this.uploadAdmission = uploadAdmission;
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.absent = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(absentTtl)
+                .build();
+
+        int threads = workers > 0 ? workers : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        this.scheduler = Schedulers.newBoundedElastic(threads, queueCapacity, "compression");
+
+        this.saved = Counter.builder("storage.compression.saved")
+                .description("Bytes not sent because a precompressed variant was served instead of the original")
+                .baseUnit("bytes")
+                .register(registry);
+        for (Encoding encoding : Encoding.values()) {
+            served.put(encoding, Counter.builder("storage.compression.responses")
+                    .description("Responses served from a precompressed variant")
+                    .tag("encoding", encoding.token())
+                    .register(registry));
+        }
+        log.info("CompressionService initialized, enabled={}, {} workers", enabled, threads);
+    }
+
+    /**
+     * Supported content codings, in the order of preference when a client accepts several equally.
+     */
+    public enum Encoding {
+        ZSTD("zstd", "zst"),
+        GZIP("gzip", "gz");
+
+        private final String token;
+        private final String extension;
+
+        Encoding(String token, String extension) {
+            this.token = token;
+            this.extension = extension;
+        }
+
+        public String token() {
+            return token;
+        }
+
+        /**
+         * @return the ETag of the variant, a representation of its own in the sense of RFC 9110
+         */
+        public String eTag(String eTag) {
+            if (eTag == null) {
+                return null;
+            }
+            return eTag.endsWith("\"")
+                    ? eTag.substring(0, eTag.length() - 1) + "-" + token + "\""
+                    : eTag + "-" + token;
+        }
+
+        String variantName(String eTag) {
+            return ImageDerivativeService.version(eTag) + "-content." + extension;
+        }
+
+        byte[] compress(byte[] source) {
+            return switch (this) {
+                case ZSTD -> zstd(source);
+                case GZIP -> gzip(source);
+            };
+        }
+    }
+
+    public record Variant(Encoding encoding, S3Blob blob) {
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Text and other uncompressed formats; images, audio, video and archives are compressed already.
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        MediaType mediaType;
+        try {
+            mediaType = MediaType.parseMediaType(contentType);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        String subtype = mediaType.getSubtype();
+        return "text".equals(mediaType.getType())
+                || subtype.endsWith("+json")
+                || subtype.endsWith("+xml")
+                || COMPRESSIBLE_TYPES.contains(mediaType.getType() + "/" + subtype);
+    }
+
+    /**
+     * @param acceptEncoding the {@code Accept-Encoding} request header, may be {@code null}
+     * @return the supported encodings the client accepts, the preferred one first
+     */
+    public static List<Encoding> accepted(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return List.of();
+        }
+
+        Map<Encoding, Double> qualities = new EnumMap<>(Encoding.class);
+        Double wildcard = null;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parameters = element.split(";");
+            String coding = parameters[0].trim().toLowerCase(Locale.ROOT);
+            double quality = quality(parameters);
+
+            if ("*".equals(coding)) {
+                wildcard = quality;
+            }
+            for (Encoding encoding : Encoding.values()) {
+                if (encoding.token().equals(coding)) {
+                    qualities.put(encoding, quality);
+                }
+            }
+        }
+
+        Map<Encoding, Double> effective = new EnumMap<>(Encoding.class);
+        for (Encoding encoding : Encoding.values()) {
+            double quality = qualities.getOrDefault(encoding, wildcard != null ? wildcard : 0.0);
+            if (quality > 0) {
+                effective.put(encoding, quality);
+            }
+        }
+
+        // a stable sort keeps the server preference among equal qualities
+        List<Encoding> accepted = new ArrayList<>(effective.keySet());
+        accepted.sort(Comparator.comparingDouble(encoding -> -effective.get(encoding)));
+        return accepted;
+    }
+
+    private static double quality(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * The stored variant of the file in the first of the {@code accepted} encodings that has one. Finding
+     * none schedules their generation and the original is to be sent this time.
+     */
+    public Mono<Variant> getVariant(String filename, String directory, FileMetadata metadata, List<Encoding> accepted) {
+        if (!appliesTo(directory, metadata)) {
+            return Mono.empty();
+        }
+
+        String variantDirectory = ImageDerivativeService.derivativeDirectory(directory, filename);
+        List<Encoding> unknown = accepted.stream()
+                .filter(encoding -> absent.getIfPresent(variantKey(variantDirectory, encoding, metadata.eTag())) == null)
+                .toList();
+        if (unknown.isEmpty()) {
+            return Mono.empty();
+        }
+
+        return Flux.fromIterable(unknown)
+                .concatMap(encoding -> storageService.getFile(encoding.variantName(metadata.eTag()), variantDirectory)
+                        .map(blob -> new Variant(encoding, blob))
+                        .switchIfEmpty(Mono.fromRunnable(() ->
+                                absent.put(variantKey(variantDirectory, encoding, metadata.eTag()), Boolean.TRUE))))
+                .next()
+                .doOnNext(variant -> {
+                    served.get(variant.encoding()).increment();
+                    saved.increment(Math.max(0, metadata.contentLength() - variant.blob().contentLength()));
+                })
+                .switchIfEmpty(Mono.fromRunnable(() -> generate(filename, directory)));
+    }
+
+    private boolean appliesTo(String directory, FileMetadata metadata) {
+        return enabled
+                && !directory.startsWith(ImageDerivativeService.PREFIX)
+                && metadata.eTag() != null
+                && metadata.contentLength() >= minSize
+                && metadata.contentLength() <= maxSize
+                && isCompressible(metadata.contentType());
+    }
+
+    /**
+     * Copies the content of a compressible upload as it streams to storage, so its variants are compressed
+     * from the copy once the file is stored instead of being downloaded again. The copy is held in memory
+     * and reserved from the {@link UploadAdmission} budget up front, up to {@code max-size}; when the budget
+     * has no room, or the upload grows past the reservation, nothing is copied and the variants are
+     * generated on the first request that finds none.
+     *
+     * @param contentLength the request size if the client sent one
+     */
+    public Capture capture(String filename, String directory, OptionalLong contentLength) {
+        if (!enabled || directory.startsWith(ImageDerivativeService.PREFIX)
+                || !isCompressible(StorageService.probeContentType(filename))) {
+            return new Capture(directory, null);
+        }
+
+        long bytes = Math.min(contentLength.orElse(maxSize), maxSize);
+        UploadAdmission.Reservation reservation = uploadAdmission.tryReserve(bytes);
+        if (reservation == null) {
+            log.debug("No upload budget left to copy [{}/{}], its variants are generated later", directory, filename);
+        }
+        return new Capture(directory, reservation != null ? new Copy(reservation, bytes) : null);
+    }
+
+    private record Copy(UploadAdmission.Reservation reservation, long limit, ByteArrayOutputStream content) {
+        private Copy(UploadAdmission.Reservation reservation, long limit) {
+            this(reservation, limit, new ByteArrayOutputStream());
+        }
+    }
+
+    public final class Capture {
+        private final String directory;
+        private Copy copy;
+
+        private Capture(String directory, Copy copy) {
+            this.directory = directory;
+            this.copy = copy;
+        }
+
+        public Flux<DataBuffer> tee(Flux<DataBuffer> content) {
+            return copy == null ? content : content.doOnNext(this::append);
+        }
+
+        private synchronized void append(DataBuffer buffer) {
+            if (copy == null) {
+                return;
+            }
+            int length = buffer.readableByteCount();
+            if (copy.content().size() + (long) length > copy.limit()) {
+                discard();
+                return;
+            }
+
+            byte[] bytes = new byte[length];
+            buffer.toByteBuffer(buffer.readPosition(), ByteBuffer.wrap(bytes), 0, length);
+            copy.content().write(bytes, 0, length);
+        }
+
+        /**
+         * Generates the variants of the stored file in the background, the reservation is released once
+         * they are stored. The copy is only used for the version of the file this upload stored, told
+         * apart by its size from one stored concurrently.
+         */
+        public synchronized void generate(String filename) {
+            Copy captured = copy;
+            copy = null;
+            if (captured == null) {
+                return;
+            }
+
+            byte[] bytes = captured.content().toByteArray();
+            boolean started = run(filename, directory, storageService.getFileMetadata(filename, directory)
+                    .filter(metadata -> metadata.contentLength() == bytes.length && appliesTo(directory, metadata))
+                    .flatMap(metadata -> store(filename, directory, metadata.eTag(), bytes))
+                    .doFinally(signal -> captured.reservation().release()));
+            if (!started) {
+                captured.reservation().release();
+            }
+        }
+
+        /**
+         * Drops a copy that was not handed to {@link #generate(String)}, for an upload that failed or
+         * was cancelled.
+         */
+        public synchronized void discard() {
+            if (copy != null) {
+                copy.reservation().release();
+                copy = null;
+            }
+        }
+    }
+
+    /**
+     * Generates the variants of a file stored without a copy of its content, unless a generation is
+     * running already. The content is held in memory against the {@link UploadAdmission} budget.
+     */
+    private void generate(String filename, String directory) {
+        if (!enabled || directory.startsWith(ImageDerivativeService.PREFIX)
+                || !isCompressible(StorageService.probeContentType(filename))) {
+            return;
+        }
+
+        run(filename, directory, storageService.getFile(filename, directory)
+                .flatMap(original -> {
+                    UploadAdmission.Reservation reservation = appliesTo(directory, new FileMetadata(
+                            original.contentType(), original.contentLength(), original.eTag(), original.lastModified()))
+                            ? uploadAdmission.tryReserve(original.contentLength())
+                            : null;
+                    if (reservation == null) {
+                        return original.content().doOnNext(DataBufferUtils::release).then(Mono.empty());
+                    }
+                    return DataBufferUtils.join(original.content())
+                            .map(joined -> {
+                                byte[] bytes = new byte[joined.readableByteCount()];
+                                joined.read(bytes);
+                                DataBufferUtils.release(joined);
+                                return bytes;
+                            })
+                            .flatMap(bytes -> store(filename, directory, original.eTag(), bytes))
+                            .doFinally(signal -> reservation.release());
+                }));
+    }
+
+    /**
+     * @return whether the compression was started, {@code false} when one is running for the file already
+     */
+    private boolean run(String filename, String directory, Mono<Void> compression) {
+        boolean[] started = {false};
+        inFlight.computeIfAbsent(directory + "/" + filename, key -> {
+                    started[0] = true;
+                    return compression
+                            .onErrorResume(RejectedExecutionException.class, ex -> {
+                                log.debug("Compression workers are busy, variants of [{}] skipped", key);
+                                return Mono.empty();
+                            })
+                            .onErrorResume(ex -> {
+                                log.warn("Unable to compress [{}]: {}", key, ex.getMessage());
+                                return Mono.empty();
+                            })
+                            .doFinally(signal -> inFlight.remove(key))
+                            .cache();
+                })
+                .subscribe();
+        return started[0];
+    }
+
+    private Mono<Void> store(String filename, String directory, String eTag, byte[] bytes) {
+        String variantDirectory = ImageDerivativeService.derivativeDirectory(directory, filename);
+
+        return Mono.just(bytes)
+                .publishOn(scheduler)
+                .flatMapMany(source -> Flux.fromArray(Encoding.values())
+                        .map(encoding -> Map.entry(encoding, encoding.compress(source)))
+                        .filter(variant -> variant.getValue().length <= source.length * MAX_RATIO))
+                .concatMap(variant -> {
+                    String variantName = variant.getKey().variantName(eTag);
+                    return storageService.uploadFile(
+                                    Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(variant.getValue())),
+                                    variantName, variantDirectory, false)
+                            .doOnNext(stored -> {
+                                absent.invalidate(variantKey(variantDirectory, variant.getKey(), eTag));
+                                log.debug("Variant [{}/{}] stored, {} of {} bytes", variantDirectory,
+                                        variantName, variant.getValue().length, bytes.length);
+                            });
+                })
+                .then();
+    }
+
+    private static String variantKey(String variantDirectory, Encoding encoding, String eTag) {
+        return variantDirectory + "/" + encoding.variantName(eTag);
+    }
+
+    private static byte[] zstd(byte[] source) {
+        ZstdCompressor compressor = new ZstdCompressor();
+        byte[] compressed = new byte[compressor.maxCompressedLength(source.length)];
+        int length = compressor.compress(source, 0, source.length, compressed, 0, compressed.length);
+        return Arrays.copyOf(compressed, length);
+    }
+
+    private static byte[] gzip(byte[] source) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(source.length / 4 + 64);
+        // compressed once and served many times, the slowest level is worth it
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(source);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.dispose();
+    }
+}
@@ -0,0 +1,406 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Content-addressed storage for uploads when {@code application.dedup.enabled} is set.
+ * <p>
+ * Content is stored once under {@code .dedup/blobs/<sha256>}. The public {@code directory/filename} key
+ * becomes an empty pointer object whose {@value #HASH_METADATA} metadata names the blob, and every
+ * pointer has a marker under {@code .dedup/refs/<sha256>/}. A blob is deleted once its last marker is gone.
+ * Adding and releasing references to the same blob is serialized by a lock object under {@code .dedup/locks/}.
+ * <p>
+ * The ETag of a deduplicated file is its SHA-256, the same in GET and HEAD responses and in the metadata
+ * index, while the pointer objects all share the ETag of empty content.
+ */
+@Slf4j
+@Service
+public class DedupService {
+    public static final String HASH_METADATA = "dedup-sha256";
+    public static final String PREFIX = ".dedup/";
+
+    private static final String BLOBS = PREFIX + "blobs/";
+    private static final String REFS = PREFIX + "refs/";
+    private static final String STAGING = PREFIX + "staging/";
+    private static final String LOCKS = PREFIX + "locks/";
+    private static final String OVERWRITES = PREFIX + "overwrites/";
+    private static final int OVERWRITE_CONCURRENCY = 8;
+
+    private static final Duration LOCK_EXPIRY = Duration.ofMinutes(10);
+    private static final Duration LOCK_BACKOFF = Duration.ofMillis(20);
+    private static final Duration LOCK_MAX_BACKOFF = Duration.ofSeconds(1);
+    private static final int LOCK_ATTEMPTS = 60;
+
+    private final S3AsyncClient s3Client;
+    private final KeyLayout keyLayout;
+    private final String bucketName;
+    private final boolean enabled;
+
+    public DedupService(S3AsyncClient s3Client,
+                        KeyLayout keyLayout,
+                        @Value("${aws.s3.bucket}") String bucketName,
+                        @Value("${application.dedup.enabled}") boolean enabled) {
+        this.s3Client = s3Client;
+        this.keyLayout = keyLayout;
+        this.bucketName = bucketName;
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String blobKey(String hash) {
+        return BLOBS + hash;
+    }
+
+    /**
+     * @return the ETag a file pointing at the blob with this hash is served with
+     */
+    public static String eTag(String hash) {
+        return "\"" + hash + "\"";
+    }
+
+    /**
+     * Uploads are streamed to a staging key first, since the hash is only known once the last byte is in.
+     */
+    public String stagingKey() {
+        return STAGING + UUID.randomUUID();
+    }
+
+    /**
+     * @return the blob hash if {@code storagePath} is a pointer, empty for plain objects and missing keys
+     */
+    public Mono<String> referencedHash(String storagePath) {
+        return Flux.fromIterable(keyLayout.candidates(storagePath))
+                .concatMap(key -> {
+                    HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(key)
+                            .build();
+
+                    return Mono.fromFuture(() -> s3Client.headObject(headObjectRequest))
+                            .onErrorResume(ex -> ex instanceof NoSuchKeyException
+                                    || ex instanceof S3Exception s3Exception && s3Exception.statusCode() == 404, ex -> Mono.empty());
+                })
+                .next()
+                .mapNotNull(response -> response.metadata().get(HASH_METADATA));
+    }
+
+    /**
+     * @return the size of the blob, empty when no content with this hash is stored
+     */
+    public Mono<Long> blobSize(String hash) {
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(blobKey(hash))
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.headObject(headObjectRequest))
+                .map(HeadObjectResponse::contentLength)
+                .onErrorResume(ex -> ex instanceof NoSuchKeyException
+                        || ex instanceof S3Exception s3Exception && s3Exception.statusCode() == 404, ex -> Mono.empty());
+    }
+
+    /**
+     * Turns a fully uploaded staging object into a reference at {@code storagePath}: the staging object
+     * becomes the blob unless identical content is already stored, in which case it is dropped.
+     */
+    public Mono<Void> commit(String stagingKey,
+                             String hash,
+                             String storagePath,
+                             String contentType,
+                             Map<String, String> metadata,
+                             long size) {
+        Mono<Void> storeBlob = addReference(hash, storagePath)
+                .then(blobSize(hash).hasElement())
+                .flatMap(exists -> {
+                    if (exists) {
+                        log.debug("Content of [{}] already stored as blob [{}]", storagePath, hash);
+                        return Mono.empty();
+                    }
+                    return copyObject(stagingKey, blobKey(hash));
+                });
+
+        return locked(hash, storeBlob)
+                .then(deleteObject(stagingKey))
+                .then(point(hash, storagePath, contentType, metadata, size));
+    }
+
+    /**
+     * Points {@code storagePath} at an existing blob, releasing whatever blob it pointed at before.
+     *
+     * @return the size of the blob, empty when no content with this hash is stored
+     */
+    public Mono<Long> link(String hash,
+                           String storagePath,
+                           String contentType,
+                           Map<String, String> metadata) {
+        Mono<Long> referenceBlob = addReference(hash, storagePath)
+                .then(blobSize(hash))
+                .switchIfEmpty(Mono.defer(() -> deleteObject(refKey(hash, storagePath)).then(Mono.<Long>empty())));
+
+        return locked(hash, referenceBlob)
+                .flatMap(size -> point(hash, storagePath, contentType, metadata, size).thenReturn(size));
+    }
+
+    /**
+     * Drops the reference of {@code storagePath} to the blob and deletes the blob if that was the last one.
+     * The pointer object itself has to be deleted by the caller beforehand.
+     */
+    public Mono<Void> releaseReference(String hash, String storagePath) {
+        return deleteObject(refKey(hash, storagePath))
+                .then(locked(hash, deleteUnreferenced(hash)));
+    }
+
+    /**
+     * Runs {@code overwrite}, which replaces the object at {@code storagePath} with content written around this
+     * service such as a completed multipart upload, and releases the blob the replaced pointer referenced.
+     */
+    public <T> Mono<T> overwrite(String storagePath, Mono<T> overwrite) {
+        if (!enabled) {
+            return overwrite;
+        }
+        return referencedHash(storagePath)
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(previous -> overwrite.flatMap(result -> previous
+                        .map(hash -> releaseReference(hash, storagePath))
+                        .orElse(Mono.empty())
+                        .thenReturn(result)));
+    }
+
+    /**
+     * Notes that {@code storagePath} may be overwritten by a presigned PUT, which this service never sees
+     * land. If it currently points at a blob, {@link #releaseOverwritten} later checks whether it still does.
+     */
+    public Mono<Void> expectOverwrite(String storagePath) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        return referencedHash(storagePath)
+                .flatMap(hash -> putEmpty(OVERWRITES + hash + "/" + storagePath));
+    }
+
+    /**
+     * Releases the references of overwrites expected before {@code before} that did happen. A reference is
+     * only dropped if it is older than the expectation, so one re-added by a later upload of the same content
+     * is kept even while its pointer is still being written.
+     */
+    public Mono<Void> releaseOverwritten(Instant before) {
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .prefix(OVERWRITES)
+                .build();
+
+        return Flux.from(s3Client.listObjectsV2Paginator(listRequest).contents())
+                .filter(object -> object.lastModified().isBefore(before))
+                .flatMap(object -> {
+                    String marker = object.key().substring(OVERWRITES.length());
+                    String hash = marker.substring(0, marker.indexOf('/'));
+                    String storagePath = marker.substring(hash.length() + 1);
+
+                    Mono<Void> release = referencedHash(storagePath)
+                            .filter(hash::equals)
+                            .hasElement()
+                            .filter(stillReferenced -> !stillReferenced)
+                            .flatMap(overwritten -> lastModified(refKey(hash, storagePath)))
+                            .filter(referencedAt -> referencedAt.isBefore(object.lastModified()))
+                            .flatMap(referencedAt -> {
+                                log.info("[{}] was overwritten by a presigned upload, releasing blob [{}]", storagePath, hash);
+                                return deleteObject(refKey(hash, storagePath)).then(deleteUnreferenced(hash));
+                            });
+
+                    return locked(hash, release)
+                            .then(deleteObject(object.key()))
+                            .onErrorResume(ex -> {
+                                log.warn("Unable to check overwrite [{}]: {}", object.key(), ex.getMessage());
+                                return Mono.empty();
+                            });
+                }, OVERWRITE_CONCURRENCY)
+                .then();
+    }
+
+    /**
+     * Has to run under the lock of the blob.
+     */
+    private Mono<Void> deleteUnreferenced(String hash) {
+        ListObjectsV2Request remainingRefs = ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .prefix(REFS + hash + "/")
+                .maxKeys(1)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.listObjectsV2(remainingRefs))
+                .flatMap(response -> {
+                    if (!response.contents().isEmpty()) {
+                        return Mono.empty();
+                    }
+                    log.info("Blob [{}] is no longer referenced, deleting it", hash);
+                    return deleteObject(blobKey(hash));
+                });
+    }
+
+    private Mono<Instant> lastModified(String key) {
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.headObject(headObjectRequest))
+                .map(HeadObjectResponse::lastModified)
+                .onErrorResume(ex -> ex instanceof NoSuchKeyException
+                        || ex instanceof S3Exception s3Exception && s3Exception.statusCode() == 404, ex -> Mono.empty());
+    }
+
+    /**
+     * Writes the pointer and releases the blob {@code storagePath} pointed at before. The reference marker
+     * has to be in place already.
+     */
+    private Mono<Void> point(String hash,
+                             String storagePath,
+                             String contentType,
+                             Map<String, String> metadata,
+                             long size) {
+        return referencedHash(storagePath)
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(previous -> writePointer(storagePath, hash, contentType, metadata, size)
+                        .then(previous.filter(previousHash -> !previousHash.equals(hash))
+                                .map(previousHash -> releaseReference(previousHash, storagePath))
+                                .orElse(Mono.empty())));
+    }
+
+    /**
+     * Runs {@code action} while holding the lock of the blob. Adding a reference and checking that the blob
+     * exists must not interleave with listing the references and deleting the blob, or an upload can see the
+     * blob right before the last other reference deletes it. The lock is an object created with
+     * {@code If-None-Match: *}, so only one instance can hold it; a lock left behind by a crashed instance is
+     * broken once it is older than {@link #LOCK_EXPIRY}.
+     */
+    private <T> Mono<T> locked(String hash, Mono<T> action) {
+        String lockKey = LOCKS + hash;
+        return Mono.usingWhen(acquireLock(lockKey), key -> action, this::releaseLock);
+    }
+
+    private Mono<String> acquireLock(String lockKey) {
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(lockKey)
+                .contentLength(0L)
+                .ifNoneMatch("*")
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.putObject(putObjectRequest, AsyncRequestBody.empty()))
+                .thenReturn(lockKey)
+                .onErrorResume(DedupService::isLockConflict, ex -> breakExpiredLock(lockKey).then(Mono.error(ex)))
+                .retryWhen(Retry.backoff(LOCK_ATTEMPTS, LOCK_BACKOFF)
+                        .maxBackoff(LOCK_MAX_BACKOFF)
+                        .filter(DedupService::isLockConflict));
+    }
+
+    private Mono<Void> releaseLock(String lockKey) {
+        return deleteObject(lockKey)
+                .onErrorResume(ex -> {
+                    log.warn("Unable to release lock [{}], it expires in {}: {}", lockKey, LOCK_EXPIRY, ex.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> breakExpiredLock(String lockKey) {
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(lockKey)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.headObject(headObjectRequest))
+                .filter(response -> response.lastModified().plus(LOCK_EXPIRY).isBefore(Instant.now()))
+                .flatMap(response -> {
+                    log.warn("Breaking expired lock [{}] taken at {}", lockKey, response.lastModified());
+                    return deleteObject(lockKey);
+                })
+                .onErrorResume(ex -> Mono.empty());
+    }
+
+    /**
+     * S3 answers 412 when the lock exists and 409 when another conditional write of it is in flight.
+     */
+    private static boolean isLockConflict(Throwable ex) {
+        return ex instanceof S3Exception s3Exception
+                && (s3Exception.statusCode() == 412 || s3Exception.statusCode() == 409);
+    }
+
+    private Mono<Void> addReference(String hash, String storagePath) {
+        return putEmpty(refKey(hash, storagePath));
+    }
+
+    private Mono<Void> putEmpty(String key) {
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .contentLength(0L)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.putObject(putObjectRequest, AsyncRequestBody.empty())).then();
+    }
+
+    private Mono<Void> writePointer(String storagePath,
+                                    String hash,
+                                    String contentType,
+                                    Map<String, String> metadata,
+                                    long size) {
+        Map<String, String> pointerMetadata = new HashMap<>(metadata);
+        pointerMetadata.put("content-length", String.valueOf(size));
+        pointerMetadata.put(HASH_METADATA, hash);
+
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(keyLayout.physical(storagePath))
+                .contentType(contentType)
+                .contentLength(0L)
+                .metadata(pointerMetadata)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.putObject(putObjectRequest, AsyncRequestBody.empty())).then();
+    }
+
+    private Mono<Void> copyObject(String sourceKey, String destinationKey) {
+        CopyObjectRequest copyObjectRequest = CopyObjectRequest.builder()
+                .sourceBucket(bucketName)
+                .sourceKey(sourceKey)
+                .destinationBucket(bucketName)
+                .destinationKey(destinationKey)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.copyObject(copyObjectRequest)).then();
+    }
+
+    private Mono<Void> deleteObject(String key) {
+        DeleteObjectRequest deleteObjectRequest = DeleteObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.deleteObject(deleteObjectRequest)).then();
+    }
+
+    private static String refKey(String hash, String storagePath) {
+        return REFS + hash + "/" + storagePath;
+    }
+}
@@ -0,0 +1,98 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Coalesces deletes of single files: keys requested within a short window are deleted together with
+ * one DeleteObjects call of up to 1000 keys, each caller still learns whether its own key was deleted.
+ * A lone delete waits at most one window for company.
+ */
+@Slf4j
+@Component
+public class DeleteBatcher implements DisposableBean {
+    static final int MAX_BATCH_SIZE = 1000;
+
+    private final StorageBackend storageBackend;
+    private final Sinks.Many<PendingDelete> pending = Sinks.many().unicast().onBackpressureBuffer();
+    private final DistributionSummary batchSize;
+
+    public DeleteBatcher(StorageBackend storageBackend,
+                         MeterRegistry registry,
+                         @Value("${application.delete-batching.window}") Duration window,
+                         @Value("${application.delete-batching.parallelism}") int parallelism) {
+        this.storageBackend = storageBackend;
+        this.batchSize = DistributionSummary.builder("storage.deletes.batch.size")
+                .description("Keys per coalesced DeleteObjects call")
+                .register(registry);
+
+        pending.asFlux()
+                .bufferTimeout(MAX_BATCH_SIZE, window, true)
+                .flatMap(this::deleteBatch, parallelism)
+                .subscribe();
+    }
+
+    private record PendingDelete(String key, MonoSink<Void> sink) {
+    }
+
+    /**
+     * Deletes still waiting for their window are sent right away.
+     */
+    @Override
+    public void destroy() {
+        pending.emitComplete(Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1)));
+    }
+
+    /**
+     * @return completes once the key is deleted, errors when it could not be
+     */
+    public Mono<Void> delete(String key) {
+        return Mono.create(sink -> {
+            PendingDelete delete = new PendingDelete(key, sink);
+            Sinks.EmitResult result;
+            // concurrent callers only contend for the moment it takes to enqueue
+            while ((result = pending.tryEmitNext(delete)) == Sinks.EmitResult.FAIL_NON_SERIALIZED) {
+                Thread.onSpinWait();
+            }
+            if (result.isFailure()) {
+                sink.error(new IllegalStateException("Delete batching is shut down"));
+            }
+        });
+    }
+
+    private Mono<Void> deleteBatch(List<PendingDelete> batch) {
+        List<String> keys = batch.stream().map(PendingDelete::key).distinct().toList();
+        batchSize.record(keys.size());
+
+        return storageBackend.delete(keys)
+                .doOnNext(failed -> {
+                    Set<String> failedKeys = new HashSet<>(failed);
+                    batch.forEach(delete -> {
+                        if (failedKeys.contains(delete.key())) {
+                            delete.sink().error(new IllegalStateException("Unable to delete key [" + delete.key() + "]"));
+                        } else {
+                            delete.sink().success();
+                        }
+                    });
+                })
+                .doOnError(ex -> {
+                    log.warn("Batch delete of {} keys failed: {}", keys.size(), ex.getMessage());
+                    batch.forEach(delete -> delete.sink().error(ex));
+                })
+                .onErrorResume(ex -> Mono.empty())
+                .then();
+    }
+}
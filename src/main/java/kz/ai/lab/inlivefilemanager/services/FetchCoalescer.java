@@ -0,0 +1,188 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Single-flight for downloads: concurrent requests for the same file and range share one upstream
+ * fetch, its body is fanned out to every subscriber. The last {@code replayBuffers} buffers of the body
+ * are replayed to late joiners; once more than half of that has gone by, new requests start a fetch of
+ * their own. A joiner that still finds the start of the body gone fetches the bytes it missed itself.
+ * <p>
+ * The shared body advances at the pace of its slowest subscriber, which keeps the memory of a flight
+ * bounded by the replay buffer.
+ */
+@Slf4j
+@Component
+public class FetchCoalescer {
+    private final int replayBuffers;
+    private final int joinWindow;
+    private final Map<Key, Flight> flights = new ConcurrentHashMap<>();
+    private final Counter coalesced;
+
+    public FetchCoalescer(MeterRegistry registry,
+                          @Value("${application.coalescing.replay-buffers}") int replayBuffers) {
+        this.replayBuffers = Math.max(2, replayBuffers);
+        this.joinWindow = this.replayBuffers / 2;
+
+        Gauge.builder("storage.downloads.flights", flights, Map::size)
+                .description("Upstream fetches shared by concurrent downloads")
+                .register(registry);
+        this.coalesced = Counter.builder("storage.downloads.coalesced")
+                .description("Downloads served by joining a fetch already in flight")
+                .register(registry);
+    }
+
+    /**
+     * @param end    end of the requested range, -1 for the whole file
+     * @param fetch  the upstream fetch, started by the first request
+     * @param missed fetches the inclusive range {@code [from, to]} of the body, relative to its start
+     */
+    public Mono<S3Blob> coalesce(String storagePath,
+                                 long start,
+                                 long end,
+                                 Mono<S3Blob> fetch,
+                                 BiFunction<Long, Long, Flux<DataBuffer>> missed) {
+        Key key = new Key(storagePath, start, end);
+
+        return Mono.defer(() -> {
+            Flight[] created = {null};
+            Flight flight = flights.compute(key, (k, existing) -> {
+                if (existing != null && existing.isOpen()) {
+                    return existing;
+                }
+                created[0] = new Flight(key, fetch);
+                return created[0];
+            });
+
+            if (flight != created[0]) {
+                coalesced.increment();
+                log.debug("Fetch of [{}] joined", storagePath);
+            }
+            return flight.blob.map(shared -> shared.fileRegion() != null ? shared : view(shared, flight, missed));
+        });
+    }
+
+    /**
+     * Fetches of the file started from now on do not join the ones in flight, whose content may be stale.
+     */
+    public void invalidate(String storagePath) {
+        flights.values().removeIf(flight -> flight.key.storagePath().equals(storagePath));
+    }
+
+    private record Key(String storagePath, long start, long end) {
+    }
+
+    /**
+     * A buffer of the shared body and where it starts in the body.
+     */
+    private record Chunk(DataBuffer buffer, long offset) {
+    }
+
+    private final class Flight {
+        private final Key key;
+        private final Mono<S3Blob> blob;
+        private final AtomicLong emitted = new AtomicLong();
+        private volatile Flux<Chunk> chunks;
+        private volatile boolean open = true;
+
+        private Flight(Key key, Mono<S3Blob> fetch) {
+            this.key = key;
+            this.blob = fetch
+                    .map(this::share)
+                    .doOnSuccess(shared -> {
+                        // nothing to fan out, later requests fetch again
+                        if (shared == null || shared.fileRegion() != null) {
+                            close();
+                        }
+                    })
+                    .doOnError(ex -> close())
+                    .cache();
+        }
+
+        private S3Blob share(S3Blob source) {
+            if (source.fileRegion() != null) {
+                return source;
+            }
+
+            long[] offset = {0};
+            chunks = source.content()
+                    .map(buffer -> {
+                        Chunk chunk = new Chunk(buffer, offset[0]);
+                        offset[0] += buffer.readableByteCount();
+                        return chunk;
+                    })
+                    .doOnNext(chunk -> {
+                        if (emitted.incrementAndGet() >= joinWindow) {
+                            close();
+                        }
+                    })
+                    .doFinally(signal -> close())
+                    .replay(replayBuffers)
+                    .refCount(1);
+            return source;
+        }
+
+        private boolean isOpen() {
+            return open;
+        }
+
+        private void close() {
+            open = false;
+            flights.remove(key, this);
+        }
+    }
+
+    private static S3Blob view(S3Blob shared, Flight flight, BiFunction<Long, Long, Flux<DataBuffer>> missed) {
+        Flux<DataBuffer> content = flight.chunks.switchOnFirst((first, chunks) -> {
+            Flux<DataBuffer> buffers = chunks.map(chunk -> view(chunk.buffer()));
+            if (first.hasValue() && first.get().offset() > 0) {
+                log.debug("Joined fetch of [{}] past its start, fetching the first {} bytes", flight.key.storagePath(),
+                        first.get().offset());
+                return missed.apply(0L, first.get().offset() - 1).concatWith(buffers);
+            }
+            return buffers;
+        });
+
+        return new S3Blob(content,
+                shared.contentType(),
+                shared.contentLength(),
+                shared.contentRange(),
+                shared.eTag(),
+                shared.lastModified());
+    }
+
+    /**
+     * Every subscriber reads the shared buffers through its own view, so their read positions are
+     * independent.
+     */
+    private static DataBuffer view(DataBuffer buffer) {
+        try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+            if (iterator.hasNext()) {
+                ByteBuffer byteBuffer = iterator.next();
+                if (!iterator.hasNext()) {
+                    return DefaultDataBufferFactory.sharedInstance.wrap(byteBuffer);
+                }
+            }
+        }
+
+        byte[] bytes = new byte[buffer.readableByteCount()];
+        buffer.toByteBuffer(buffer.readPosition(), ByteBuffer.wrap(bytes), 0, bytes.length);
+        return DefaultDataBufferFactory.sharedInstance.wrap(bytes);
+    }
+}
@@ -0,0 +1,367 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import kz.ai.lab.inlivefilemanager.dto.FileMetadata;
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of whole objects keyed by {@code directory/filename}.
+ * Small objects are kept on heap within a byte budget, larger ones are written to a local directory
+ * also within a byte budget. Both tiers use Caffeine's W-TinyLFU eviction.
+ * Metadata of every object seen is kept separately, so validators can be answered without S3 even
+ * for objects whose bodies are too large to cache.
+ * <p>
+ * Invalidation only reaches this instance, so entries also expire {@code expire-after-write} after they
+ * were cached, which bounds how long a file changed through another instance is served stale. A fetch
+ * that started before an invalidation of its key is not cached, see {@link #generation()}. Keys that may
+ * change at a time this service does not learn of are neither cached nor served, see {@link #bypass}.
+ */
+@Slf4j
+@Component
+public class FileCache {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final String FILES_DIRECTORY = "files";
+    private static final String FILE_SUFFIX = ".cached";
+    // a reader opens the file of an entry when its response is written, long before this has passed;
+    // files already open stay readable after they are deleted
+    private static final Duration RETIRED_FILE_GRACE = Duration.ofMinutes(1);
+
+    private final Cache<String, Entry> memory;
+    private final Cache<String, Entry> disk;
+    private final Cache<String, FileMetadata> metadata;
+    private final AtomicLong generations = new AtomicLong();
+    private final Cache<String, Long> invalidations;
+    private final Cache<String, Long> prefixInvalidations;
+    private final Cache<String, Instant> bypassed;
+    private final long memoryMaxObjectSize;
+    private final long diskMaxObjectSize;
+    private final Path diskDirectory;
+
+    public FileCache(@Value("${application.cache.memory.max-size}") long memoryMaxSize,
+                     @Value("${application.cache.memory.max-object-size}") long memoryMaxObjectSize,
+                     @Value("${application.cache.disk.max-size}") long diskMaxSize,
+                     @Value("${application.cache.disk.max-object-size}") long diskMaxObjectSize,
+                     @Value("${application.cache.disk.directory}") Path diskDirectory,
+                     @Value("${application.cache.metadata.max-entries}") long metadataMaxEntries,
+                     @Value("${application.cache.expire-after-write}") Duration expireAfterWrite,
+                     MeterRegistry meterRegistry) throws IOException {
+        this.memoryMaxObjectSize = memoryMaxObjectSize;
+        this.diskMaxObjectSize = diskMaxSize > 0 ? diskMaxObjectSize : 0;
+        this.diskDirectory = diskDirectory.resolve(FILES_DIRECTORY);
+
+        // files left from a previous run are not tracked by the cache; only ours are removed, the
+        // configured directory may be shared
+        Files.createDirectories(this.diskDirectory);
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(this.diskDirectory, "*" + FILE_SUFFIX)) {
+            leftovers.forEach(FileCache::deleteQuietly);
+        }
+
+        this.memory = Caffeine.newBuilder()
+                .maximumWeight(memoryMaxSize)
+                .weigher((String key, Entry entry) -> entry.weight())
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+
+        this.disk = Caffeine.newBuilder()
+                .maximumWeight(diskMaxSize)
+                .weigher((String key, Entry entry) -> entry.weight())
+                .expireAfterWrite(expireAfterWrite)
+                .removalListener((String key, Entry entry, RemovalCause cause) -> {
+                    if (entry != null) {
+                        retire(entry.path());
+                    }
+                })
+                .recordStats()
+                .build();
+
+        this.metadata = Caffeine.newBuilder()
+                .maximumSize(metadataMaxEntries)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+
+        // a fetch slower than the expiry may cache what it read before an invalidation, that expires as well
+        this.invalidations = Caffeine.newBuilder()
+                .expireAfterWrite(expireAfterWrite)
+                .build();
+        this.prefixInvalidations = Caffeine.newBuilder()
+                .expireAfterWrite(expireAfterWrite)
+                .build();
+
+        // each key is bypassed until its own deadline
+        this.bypassed = Caffeine.newBuilder()
+                .expireAfter(new Expiry<String, Instant>() {
+                    @Override
+                    public long expireAfterCreate(String key, Instant until, long currentTime) {
+                        return Math.max(0, Duration.between(Instant.now(), until).toNanos());
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Instant until, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, until, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Instant until, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, memory, "files.memory");
+        CaffeineCacheMetrics.monitor(meterRegistry, disk, "files.disk");
+        CaffeineCacheMetrics.monitor(meterRegistry, metadata, "files.metadata");
+
+        log.info("FileCache initialized: memory {} bytes, disk {} bytes at [{}]", memoryMaxSize, diskMaxSize, this.diskDirectory);
+    }
+
+    public S3Blob get(String key) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            return null;
+        }
+        return entry.toBlob(0, entry.metadata().contentLength() - 1, false);
+    }
+
+    /**
+     * @return the inclusive byte range {@code [start, end]} of a cached object, {@code null} on a miss
+     */
+    public S3Blob get(String key, long start, long end) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            return null;
+        }
+        return entry.toBlob(start, end, true);
+    }
+
+    public FileMetadata getMetadata(String key) {
+        return isBypassed(key) ? null : metadata.getIfPresent(key);
+    }
+
+    public void putMetadata(String key, FileMetadata fileMetadata) {
+        if (!isBypassed(key)) {
+            metadata.put(key, fileMetadata);
+        }
+    }
+
+    /**
+     * Taken before an object is fetched and handed to {@link #put}, so a fetch that raced with an
+     * invalidation of its key does not cache what it read before the change.
+     */
+    public long generation() {
+        return generations.get();
+    }
+
+    /**
+     * Caches a freshly fetched whole object if it fits one of the tiers. Small objects are read into memory
+     * and the returned blob serves them from there; larger ones are written to disk as the returned blob
+     * streams them and cached once the last byte is written. Ranged and oversized blobs are returned as they
+     * are, and so is everything fetched before an invalidation of {@code key} at {@code generation}.
+     */
+    public Mono<S3Blob> put(String key, long generation, S3Blob blob) {
+        if (blob.contentRange() != null || isInvalidatedSince(key, generation)) {
+            return Mono.just(blob);
+        }
+
+        long length = blob.contentLength();
+        FileMetadata fileMetadata = new FileMetadata(blob.contentType(), length, blob.eTag(), blob.lastModified());
+        metadata.put(key, fileMetadata);
+
+        if (length > diskMaxObjectSize && length > memoryMaxObjectSize) {
+            return Mono.just(blob);
+        }
+
+        if (length <= memoryMaxObjectSize) {
+            return DataBufferUtils.join(blob.content())
+                    .map(joined -> {
+                        byte[] bytes = new byte[joined.readableByteCount()];
+                        joined.read(bytes);
+                        DataBufferUtils.release(joined);
+                        return bytes;
+                    })
+                    .defaultIfEmpty(new byte[0])
+                    .map(bytes -> {
+                        Entry entry = new Entry(fileMetadata, bytes, null);
+                        insert(memory, key, generation, entry);
+                        return entry.toBlob(0, length - 1, false);
+                    });
+        }
+
+        Path path = diskDirectory.resolve(UUID.randomUUID() + FILE_SUFFIX);
+        AtomicLong written = new AtomicLong();
+        Flux<DataBuffer> tee = Flux.usingWhen(
+                Mono.fromCallable(() -> AsynchronousFileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE)).subscribeOn(Schedulers.boundedElastic()),
+                channel -> DataBufferUtils.write(blob.content(), channel)
+                        .doOnNext(buffer -> written.addAndGet(buffer.readableByteCount())),
+                channel -> Mono.fromRunnable(() -> {
+                    closeQuietly(channel);
+                    if (written.get() == length) {
+                        insert(disk, key, generation, new Entry(fileMetadata, null, path));
+                    } else {
+                        retire(path);
+                    }
+                }),
+                (channel, ex) -> Mono.fromRunnable(() -> {
+                    closeQuietly(channel);
+                    retire(path);
+                }),
+                channel -> Mono.fromRunnable(() -> {
+                    closeQuietly(channel);
+                    retire(path);
+                }));
+
+        return Mono.just(new S3Blob(tee, blob.contentType(), length, null, blob.eTag(), blob.lastModified()));
+    }
+
+    public void invalidate(String key) {
+        invalidations.put(key, generations.incrementAndGet());
+        memory.invalidate(key);
+        disk.invalidate(key);
+        metadata.invalidate(key);
+    }
+
+    /**
+     * Drops the entry of {@code key} and keeps it out of the cache until {@code until}, for an object
+     * written through a presigned URL whose upload may land any time before it expires.
+     */
+    public void bypass(String key, Instant until) {
+        bypassed.asMap().merge(key, until, (current, requested) -> current.isAfter(requested) ? current : requested);
+        invalidate(key);
+    }
+
+    /**
+     * @return whether {@code key} may change without this service knowing, so nothing known about it can be trusted
+     */
+    public boolean isBypassed(String key) {
+        return bypassed.getIfPresent(key) != null;
+    }
+
+    public void invalidatePrefix(String prefix) {
+        prefixInvalidations.put(prefix, generations.incrementAndGet());
+        memory.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+        disk.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+        metadata.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    private boolean isInvalidatedSince(String key, long generation) {
+        if (isBypassed(key)) {
+            return true;
+        }
+        Long invalidated = invalidations.getIfPresent(key);
+        if (invalidated != null && invalidated > generation) {
+            return true;
+        }
+        // folders are deleted rarely, there are few of these
+        return prefixInvalidations.asMap().entrySet().stream()
+                .anyMatch(entry -> entry.getValue() > generation && key.startsWith(entry.getKey()));
+    }
+
+    /**
+     * Checked again when the entry is complete, the body may have been streaming for a while.
+     */
+    private void insert(Cache<String, Entry> tier, String key, long generation, Entry entry) {
+        if (isInvalidatedSince(key, generation)) {
+            if (entry.path() != null) {
+                retire(entry.path());
+            }
+            metadata.invalidate(key);
+            return;
+        }
+        tier.put(key, entry);
+    }
+
+    private Entry lookup(String key) {
+        if (isBypassed(key)) {
+            return null;
+        }
+        Entry entry = memory.getIfPresent(key);
+        return entry != null ? entry : disk.getIfPresent(key);
+    }
+
+    /**
+     * Deletes the file of an entry that is no longer cached once readers that were handed it have opened it.
+     */
+    private static void retire(Path path) {
+        Schedulers.boundedElastic().schedule(() -> deleteQuietly(path),
+                RETIRED_FILE_GRACE.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            log.warn("Unable to close cached file: {}", ex.getMessage());
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            log.warn("Unable to delete cached file [{}]: {}", path, ex.getMessage());
+        }
+    }
+
+    private record Entry(FileMetadata metadata, byte[] content, Path path) {
+
+        int weight() {
+            return (int) Math.max(1, Math.min(Integer.MAX_VALUE, metadata.contentLength()));
+        }
+
+        S3Blob toBlob(long start, long end, boolean ranged) {
+            long length = Math.max(0, end - start + 1);
+
+            Flux<DataBuffer> body;
+            ResourceRegion fileRegion = null;
+            if (content != null) {
+                body = Flux.just(DefaultDataBufferFactory.sharedInstance
+                        .wrap(ByteBuffer.wrap(content, (int) start, (int) length)));
+            } else {
+                // the file is opened off the event loop, like it is when the entry is written
+                body = DataBufferUtils.takeUntilByteCount(DataBufferUtils.read(new FileSystemResource(path), start,
+                                DefaultDataBufferFactory.sharedInstance, READ_BUFFER_SIZE), length)
+                        .subscribeOn(Schedulers.boundedElastic());
+                // disk entries can be sent zero-copy like files of the filesystem backend
+                fileRegion = new ResourceRegion(new FileSystemResource(path), start, length);
+            }
+
+            String contentRange = ranged
+                    ? String.format("bytes %d-%d/%d", start, end, metadata.contentLength())
+                    : null;
+
+            return new S3Blob(body, metadata.contentType(), length, contentRange,
+                    metadata.eTag(), metadata.lastModified(), fileRegion);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import kz.ai.lab.inlivefilemanager.dto.FolderDeletionStatus;
+import kz.ai.lab.inlivefilemanager.dto.FolderDeletionStatus.State;
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import kz.ai.lab.inlivefilemanager.storage.ObjectSummary;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes everything under a folder prefix, paging through the listing and removing keys in
+ * batches of up to 1000 with bounded parallelism. Keys the backend reports as not deleted are
+ * retried with backoff.
+ * <p>
+ * A folder that fits into a single listing page is deleted within the request, anything larger is
+ * deleted by a background job whose progress is available through {@link #getStatus(String)}.
+ * With deduplication enabled the blob references of deleted pointers are released as well, and image
+ * derivatives of the folder are deleted along with it.
+ * <p>
+ * Job state is a JSON object under {@value #PREFIX} in the bucket, written when the job starts, after
+ * every batch and when it ends, so its status can be polled on any replica and outlives a restart.
+ * Jobs are forgotten {@code job-retention} after their last update.
+ * <p>
+ * Internal folders, such as the dedup blobs every deduplicated file points to, cannot be deleted.
+ */
+@Slf4j
+@Service
+public class FolderDeletionService {
+    public static final String PREFIX = ".folder-deletions/";
+
+    private static final int BATCH_SIZE = 1000;
+    private static final Duration RETRY_BACKOFF = Duration.ofMillis(200);
+    private static final int DEDUP_LOOKUP_CONCURRENCY = 16;
+
+    private final StorageBackend storageBackend;
+    private final FileCache fileCache;
+    private final MetadataIndex metadataIndex;
+    private final DedupService dedupService;
+    private final ObjectMapper objectMapper;
+    private final int parallelism;
+    private final int maxAttempts;
+    private final Duration jobRetention;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    public FolderDeletionService(StorageBackend storageBackend,
+                                 FileCache fileCache,
+                                 MetadataIndex metadataIndex,
+                                 DedupService dedupService,
+                                 ObjectMapper objectMapper,
+                                 @Value("${application.folder-deletion.parallelism}") int parallelism,
+                                 @Value("${application.folder-deletion.max-attempts}") int maxAttempts,
+                                 @Value("${application.folder-deletion.job-retention}") Duration jobRetention) {
+        this.storageBackend = storageBackend;
+        this.fileCache = fileCache;
+        this.metadataIndex = metadataIndex;
+        this.dedupService = dedupService;
+        this.objectMapper = objectMapper;
+        this.parallelism = parallelism;
+        this.maxAttempts = maxAttempts;
+        this.jobRetention = jobRetention;
+    }
+
+    /**
+     * @throws ResponseStatusException BAD_REQUEST for internal folders
+     */
+    public Mono<FolderDeletionStatus> deleteFolder(String folderName) {
+        if (KeyLayout.isInternal(folderName)) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Folder [" + folderName + "] cannot be deleted"));
+        }
+        return delete(folderName)
+                .flatMap(status -> deleteDerivatives(folderName).thenReturn(status));
+    }
+
+    private Mono<FolderDeletionStatus> delete(String folderName) {
+        // Префикс как "folder/" — как твой "directory"
+        String prefix = folderName.endsWith("/") ? folderName : folderName + "/";
+
+        // one more than a batch tells whether the folder fits into a single one
+        return storageBackend.list(prefix)
+                .take(BATCH_SIZE + 1)
+                .collectList()
+                .flatMap(objects -> {
+                    Job job = new Job(UUID.randomUUID().toString(), folderName);
+                    fileCache.invalidatePrefix(prefix);
+                    metadataIndex.removePrefix(prefix);
+
+                    if (objects.size() > BATCH_SIZE) {
+                        jobs.put(job.id, job);
+                        log.info("Folder [{}] has more than {} keys, deleting in background job [{}]",
+                                folderName, BATCH_SIZE, job.id);
+
+                        return save(job)
+                                .doOnSuccess(ignored -> deleteAll(job, prefix)
+                                        .then(save(job))
+                                        .onErrorResume(ex -> {
+                                            log.warn("Unable to save folder deletion job [{}]: {}", job.id, ex.getMessage());
+                                            return Mono.empty();
+                                        })
+                                        .doFinally(signal -> jobs.remove(job.id))
+                                        .subscribe())
+                                .doOnError(ex -> jobs.remove(job.id))
+                                .thenReturn(job.status());
+                    }
+
+                    job.listed.addAndGet(objects.size());
+                    job.listingDone = true;
+
+                    if (objects.isEmpty()) {
+                        log.debug("Folder [{}] is empty or does not exist", folderName);
+                        return Mono.just(job.finish(prefix));
+                    }
+
+                    return deleteObjects(job, objects)
+                            .then(Mono.fromSupplier(() -> job.finish(prefix)));
+                });
+    }
+
+    /**
+     * Image derivatives of a folder live under their own prefix and go together with the folder.
+     */
+    private Mono<Void> deleteDerivatives(String folderName) {
+        return delete(ImageDerivativeService.PREFIX + folderName)
+                .doOnError(ex -> log.warn("Unable to delete derivatives of folder [{}]: {}", folderName, ex.getMessage()))
+                .onErrorResume(ex -> Mono.empty())
+                .then();
+    }
+
+    /**
+     * @return the live status when the job runs on this replica, the last one saved otherwise; empty for
+     * unknown and forgotten jobs
+     */
+    public Mono<FolderDeletionStatus> getStatus(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job != null) {
+            return Mono.just(job.status());
+        }
+        try {
+            UUID.fromString(jobId);
+        } catch (IllegalArgumentException ex) {
+            return Mono.empty();
+        }
+
+        return storageBackend.get(PREFIX + jobId)
+                .flatMap(blob -> DataBufferUtils.join(blob.content()))
+                .map(joined -> {
+                    byte[] bytes = new byte[joined.readableByteCount()];
+                    joined.read(bytes);
+                    DataBufferUtils.release(joined);
+                    return bytes;
+                })
+                .flatMap(bytes -> Mono.fromCallable(() -> objectMapper.readValue(bytes, FolderDeletionStatus.class)));
+    }
+
+    @Scheduled(fixedDelayString = "${application.folder-deletion.job-retention}")
+    public void scheduleCleanup() {
+        cleanup().subscribe();
+    }
+
+    /**
+     * Forgets jobs not updated within the retention, including those of a replica that stopped while
+     * running them. Several replicas may run this at once, deleting twice is harmless.
+     */
+    public Mono<Void> cleanup() {
+        Instant expired = Instant.now().minus(jobRetention);
+        return storageBackend.list(PREFIX)
+                .filter(object -> object.lastModified() != null && object.lastModified().isBefore(expired))
+                .map(ObjectSummary::key)
+                .buffer(BATCH_SIZE)
+                .concatMap(keys -> storageBackend.delete(keys))
+                .doOnError(ex -> log.error("Folder deletion job cleanup failed: [{}]", ex.getMessage(), ex))
+                .onErrorResume(ex -> Mono.empty())
+                .then();
+    }
+
+    private Mono<Void> save(Job job) {
+        return Mono.fromCallable(() -> objectMapper.writeValueAsBytes(job.status()))
+                .flatMap(bytes -> storageBackend.put(PREFIX + job.id,
+                        Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(bytes)),
+                        MediaType.APPLICATION_JSON_VALUE, Map.of()));
+    }
+
+    private Mono<Void> deleteAll(Job job, String prefix) {
+        return storageBackend.list(prefix)
+                .doOnNext(object -> job.listed.incrementAndGet())
+                .doOnComplete(() -> job.listingDone = true)
+                .buffer(BATCH_SIZE)
+                .flatMap(objects -> deleteObjects(job, objects)
+                        // progress is saved between batches, a failed save only delays it until the next one
+                        .then(save(job).onErrorResume(ex -> Mono.empty())), parallelism)
+                .then(Mono.fromRunnable(() -> {
+                    fileCache.invalidatePrefix(prefix);
+                    metadataIndex.removePrefix(prefix);
+                    job.finish(prefix);
+                }))
+                .doOnError(ex -> {
+                    log.error("Folder deletion job [{}] failed: [{}]", job.id, ex.getMessage(), ex);
+                    job.fail();
+                })
+                .onErrorResume(ex -> Mono.empty())
+                .then();
+    }
+
+    private Mono<Void> deleteObjects(Job job, List<ObjectSummary> objects) {
+        List<String> keys = objects.stream().map(ObjectSummary::key).toList();
+        if (!dedupService.isEnabled()) {
+            return deleteBatch(job, keys, 1).then();
+        }
+
+        // pointers of deduplicated files are the empty objects, their hashes are needed to release the blobs
+        return Flux.fromIterable(objects)
+                .filter(object -> object.size() == 0)
+                .flatMap(object -> dedupService.referencedHash(object.key())
+                        .map(hash -> Map.entry(object.key(), hash)), DEDUP_LOOKUP_CONCURRENCY)
+                .collectList()
+                .flatMap(pointers -> deleteBatch(job, keys, 1)
+                        .flatMapMany(failedKeys -> Flux.fromIterable(pointers)
+                                .filter(pointer -> !failedKeys.contains(pointer.getKey())))
+                        .flatMap(pointer -> dedupService.releaseReference(pointer.getValue(), pointer.getKey()),
+                                DEDUP_LOOKUP_CONCURRENCY)
+                        .then());
+    }
+
+    /**
+     * @return keys that could not be deleted after all attempts
+     */
+    private Mono<List<String>> deleteBatch(Job job, List<String> keys, int attempt) {
+        return storageBackend.delete(keys)
+                .onErrorResume(ex -> {
+                    log.warn("Deletion of {} keys failed on attempt {}: {}", keys.size(), attempt, ex.getMessage());
+                    return Mono.just(keys);
+                })
+                .flatMap(failedKeys -> {
+                    job.deleted.addAndGet(keys.size() - failedKeys.size());
+                    if (failedKeys.isEmpty()) {
+                        return Mono.just(failedKeys);
+                    }
+                    if (attempt >= maxAttempts) {
+                        log.error("Giving up on {} keys of folder [{}] after {} attempts",
+                                failedKeys.size(), job.folder, attempt);
+                        job.failed.addAndGet(failedKeys.size());
+                        return Mono.just(failedKeys);
+                    }
+                    return Mono.delay(RETRY_BACKOFF.multipliedBy(1L << (attempt - 1)))
+                            .then(deleteBatch(job, failedKeys, attempt + 1));
+                });
+    }
+
+    private static final class Job {
+        private final String id;
+        private final String folder;
+        private final Instant startedAt = Instant.now();
+        private final AtomicLong listed = new AtomicLong();
+        private final AtomicLong deleted = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private volatile boolean listingDone;
+        private volatile State state = State.RUNNING;
+        private volatile Instant finishedAt;
+
+        private Job(String id, String folder) {
+            this.id = id;
+            this.folder = folder;
+        }
+
+        private FolderDeletionStatus finish(String prefix) {
+            finishedAt = Instant.now();
+            state = failed.get() == 0 ? State.COMPLETED : State.FAILED;
+            log.debug("Folder [{}] deleted: {} keys deleted, {} failed", prefix, deleted.get(), failed.get());
+            return status();
+        }
+
+        private void fail() {
+            finishedAt = Instant.now();
+            state = State.FAILED;
+        }
+
+        private FolderDeletionStatus status() {
+            Instant end = finishedAt != null ? finishedAt : Instant.now();
+            double seconds = Math.max(Duration.between(startedAt, end).toMillis(), 1) / 1000.0;
+            double rate = deleted.get() / seconds;
+
+            Long eta = null;
+            if (state == State.RUNNING && listingDone && rate > 0) {
+                long remaining = listed.get() - deleted.get() - failed.get();
+                eta = (long) Math.ceil(remaining / rate);
+            }
+
+            return new FolderDeletionStatus(id, folder, state, listed.get(), deleted.get(), failed.get(),
+                    rate, eta, startedAt, finishedAt);
+        }
+    }
+}
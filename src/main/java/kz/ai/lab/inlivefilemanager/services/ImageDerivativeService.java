@@ -0,0 +1,367 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import kz.ai.lab.inlivefilemanager.storage.ObjectSummary;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Resized and re-encoded variants of stored images, produced with plain Java2D/ImageIO on a bounded
+ * worker pool. Generated derivatives are stored under {@code .derivatives/<directory>/<filename>/}
+ * and served from there afterwards; concurrent requests for the same derivative share one generation.
+ * <p>
+ * Widths and heights are limited to the configured {@code sizes}, so clients cannot fill the bucket with
+ * a derivative per pixel. Originals whose header declares more than {@code max-pixels} are not decoded.
+ * Storing a derivative goes through {@link UploadAdmission} like any upload; when it is not admitted the
+ * derivative is still served, and generated again on a later request.
+ * <p>
+ * Derivative names start with the {@link #version(String) version} of the original they were generated
+ * from, so an overwritten original is never served its old derivatives and overwriting a file does not
+ * have to look for them. Deleting an image deletes its derivatives, see {@link StorageService#deleteFile};
+ * derivatives of previous versions, and of files that were not recognized as images, are removed by
+ * {@link #cleanup()} on {@code cleanup-interval}.
+ */
+@Slf4j
+@Service
+public class ImageDerivativeService implements DisposableBean {
+    public static final String PREFIX = ".derivatives/";
+
+    // derivative writes share one admission quota instead of taking slots of whoever requested them
+    private static final String ADMISSION_USER = "image-derivatives";
+
+    private final StorageService storageService;
+    private final StorageBackend storageBackend;
+    private final UploadAdmission uploadAdmission;
+    private final Scheduler scheduler;
+    private final Set<Integer> sizes;
+    private final long maxPixels;
+    private final long maxSourceSize;
+
+    private final Map<String, Mono<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    public ImageDerivativeService(StorageService storageService,
+                                  StorageBackend storageBackend,
+                                  UploadAdmission uploadAdmission,
+                                  @Value("${application.images.workers}") int workers,
+                                  @Value("${application.images.queue-capacity}") int queueCapacity,
+                                  @Value("${application.images.sizes}") List<Integer> sizes,
+                                  @Value("${application.images.max-pixels}") long maxPixels,
+                                  @Value("${application.images.max-source-size}") long maxSourceSize) {
+        this.storageService = storageService;
+        this.storageBackend = storageBackend;
+        this.uploadAdmission = uploadAdmission;
+        this.sizes = new TreeSet<>(sizes);
+        this.maxPixels = maxPixels;
+        this.maxSourceSize = maxSourceSize;
+
+        int threads = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        this.scheduler = Schedulers.newBoundedElastic(threads, queueCapacity, "image-derivatives");
+        log.info("ImageDerivativeService initialized with {} workers", threads);
+    }
+
+    public enum Fit {
+        /** scale to fit inside the box, keeping the aspect ratio */
+        CONTAIN,
+        /** scale to cover the box, keeping the aspect ratio, and crop the overflow */
+        COVER,
+        /** stretch to exactly the box */
+        FILL
+    }
+
+    /**
+     * @param width  target width, {@code null} to derive it from the height and the aspect ratio
+     * @param height target height, {@code null} to derive it from the width and the aspect ratio
+     * @param format ImageIO format name, {@code null} to keep the format of the original
+     */
+    public record Spec(Integer width, Integer height, Fit fit, String format) {
+
+        String name(String version, String originalFormat) {
+            return String.format("%s-%sx%s-%s.%s", version,
+                    width != null ? width : "", height != null ? height : "",
+                    fit.name().toLowerCase(Locale.ROOT), outputFormat(originalFormat));
+        }
+
+        String outputFormat(String originalFormat) {
+            return format != null ? format : originalFormat;
+        }
+    }
+
+    public Spec parseSpec(String width, String height, String fit, String format) {
+        try {
+            Integer w = width != null ? Integer.valueOf(width) : null;
+            Integer h = height != null ? Integer.valueOf(height) : null;
+            if (w != null && !sizes.contains(w) || h != null && !sizes.contains(h)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "w and h must be one of " + sizes);
+            }
+
+            Fit parsedFit = fit != null ? Fit.valueOf(fit.toUpperCase(Locale.ROOT)) : Fit.CONTAIN;
+
+            String parsedFormat = format != null ? normalizeFormat(format) : null;
+            if (parsedFormat != null && !ImageIO.getImageWritersByFormatName(parsedFormat).hasNext()) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported format: " + format);
+            }
+
+            return new Spec(w, h, parsedFit, parsedFormat);
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return empty when the original does not exist
+     */
+    public Mono<S3Blob> getDerivative(String filename, String directory, Spec spec) {
+        String originalFormat = formatOf(filename);
+        String derivativeDirectory = derivativeDirectory(directory, filename);
+        String contentType = "image/" + spec.outputFormat(originalFormat);
+
+        return storageService.getFileMetadata(filename, directory)
+                .flatMap(original -> {
+                    String derivativeName = spec.name(version(original.eTag()), originalFormat);
+                    return storageService.getFile(derivativeName, derivativeDirectory)
+                            .switchIfEmpty(Mono.defer(() -> inFlight
+                                    .computeIfAbsent(derivativeDirectory + "/" + derivativeName,
+                                            key -> generate(filename, directory, spec, originalFormat, derivativeName, derivativeDirectory)
+                                                    .doFinally(signal -> inFlight.remove(key))
+                                                    .cache())
+                                    .map(bytes -> new S3Blob(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(bytes)),
+                                            contentType, bytes.length, null, null, Instant.now()))));
+                });
+    }
+
+    /**
+     * @return the ETag of an original reduced to characters that are safe in a key, the prefix of the
+     * names of everything derived from that version of it
+     */
+    public static String version(String eTag) {
+        return eTag != null ? eTag.replaceAll("[^A-Za-z0-9-]", "") : "";
+    }
+
+    /**
+     * @return the directory all derivatives of {@code directory/filename} are stored in
+     */
+    public static String derivativeDirectory(String directory, String filename) {
+        return PREFIX + directory + "/" + filename;
+    }
+
+    private Mono<byte[]> generate(String filename,
+                                  String directory,
+                                  Spec spec,
+                                  String originalFormat,
+                                  String derivativeName,
+                                  String derivativeDirectory) {
+        return storageService.getFile(filename, directory)
+                .flatMap(original -> {
+                    if (original.contentLength() > maxSourceSize) {
+                        return original.content().doOnNext(DataBufferUtils::release).then(Mono.error(
+                                new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                                        "Image is too large to resize: " + original.contentLength() + " bytes")));
+                    }
+                    return DataBufferUtils.join(original.content());
+                })
+                .map(joined -> {
+                    byte[] bytes = new byte[joined.readableByteCount()];
+                    joined.read(bytes);
+                    DataBufferUtils.release(joined);
+                    return bytes;
+                })
+                .publishOn(scheduler)
+                .map(bytes -> resize(bytes, spec, spec.outputFormat(originalFormat)))
+                .onErrorMap(RejectedExecutionException.class,
+                        ex -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Image workers are busy", ex))
+                .flatMap(bytes -> store(bytes, derivativeName, derivativeDirectory).thenReturn(bytes));
+    }
+
+    private Mono<Void> store(byte[] bytes, String derivativeName, String derivativeDirectory) {
+        Mono<String> upload = storageService.uploadFile(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(bytes)),
+                derivativeName, derivativeDirectory, false);
+
+        return uploadAdmission.admit(ADMISSION_USER, bytes.length, upload)
+                .doOnNext(stored -> log.debug("Derivative [{}/{}] generated, {} bytes",
+                        derivativeDirectory, derivativeName, bytes.length))
+                .onErrorResume(UploadAdmission.Rejected.class, ex -> {
+                    log.debug("Derivative [{}/{}] not stored: {}", derivativeDirectory, derivativeName, ex.getReason());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private byte[] resize(byte[] source, Spec spec, String format) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(source))) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : Collections.emptyIterator();
+            if (!readers.hasNext()) {
+                throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "Not a supported image");
+            }
+
+            ImageReader reader = readers.next();
+            BufferedImage image;
+            try {
+                reader.setInput(input, true, true);
+                // the dimensions come from the header, a few kilobytes can declare gigabytes of decoded pixels
+                long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                if (pixels > maxPixels) {
+                    throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                            "Image is too large to resize: " + pixels + " pixels");
+                }
+                image = reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+
+            BufferedImage resized = scale(image, spec, hasAlpha(format));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (!ImageIO.write(resized, format, out)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported format: " + format);
+            }
+            return out.toByteArray();
+        } catch (IOException ex) {
+            throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "Unable to read image", ex);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${application.images.cleanup-interval}")
+    public void scheduleCleanup() {
+        cleanup().subscribe();
+    }
+
+    /**
+     * Deletes the derivatives of originals that were deleted, and those generated from a previous version
+     * of an original. Derivatives are listed once, their directories come sorted and are handled in turn.
+     */
+    public Mono<Void> cleanup() {
+        return storageBackend.list(PREFIX)
+                .map(ObjectSummary::key)
+                .bufferUntilChanged(key -> key.substring(0, key.lastIndexOf('/')))
+                .concatMap(keys -> {
+                    String derivativeDirectory = keys.get(0).substring(0, keys.get(0).lastIndexOf('/'));
+                    List<String> names = keys.stream()
+                            .map(key -> key.substring(derivativeDirectory.length() + 1))
+                            .toList();
+
+                    return storageBackend.head(derivativeDirectory.substring(PREFIX.length()))
+                            .map(original -> names.stream()
+                                    .filter(name -> !name.startsWith(version(original.eTag()) + "-"))
+                                    .toList())
+                            .defaultIfEmpty(names)
+                            .filter(stale -> !stale.isEmpty())
+                            .flatMapMany(stale -> storageService.deleteFiles(stale, derivativeDirectory))
+                            .count()
+                            .doOnNext(deleted -> {
+                                if (deleted > 0) {
+                                    log.debug("{} stale derivatives of [{}] deleted", deleted, derivativeDirectory);
+                                }
+                            })
+                            .onErrorResume(ex -> {
+                                log.warn("Unable to clean up derivatives of [{}]: {}", derivativeDirectory, ex.getMessage());
+                                return Mono.empty();
+                            });
+                })
+                .reduce(0L, Long::sum)
+                .doOnNext(deleted -> log.info("Derivative cleanup finished, {} stale derivatives deleted", deleted))
+                .doOnError(ex -> log.error("Derivative cleanup failed: [{}]", ex.getMessage(), ex))
+                .onErrorResume(ex -> Mono.empty())
+                .then();
+    }
+
+    private static BufferedImage scale(BufferedImage image, Spec spec, boolean alpha) {
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        double ratio = (double) sourceWidth / sourceHeight;
+
+        // a missing dimension follows the aspect ratio, with neither the image is only re-encoded
+        int boxWidth = spec.width() != null ? spec.width()
+                : spec.height() != null ? (int) Math.round(spec.height() * ratio) : sourceWidth;
+        int boxHeight = spec.height() != null ? spec.height()
+                : spec.width() != null ? (int) Math.round(spec.width() / ratio) : sourceHeight;
+        boxWidth = Math.max(1, boxWidth);
+        boxHeight = Math.max(1, boxHeight);
+
+        int targetWidth = boxWidth;
+        int targetHeight = boxHeight;
+        if (spec.fit() != Fit.FILL && spec.width() != null && spec.height() != null) {
+            double scale = spec.fit() == Fit.CONTAIN
+                    ? Math.min((double) boxWidth / sourceWidth, (double) boxHeight / sourceHeight)
+                    : Math.max((double) boxWidth / sourceWidth, (double) boxHeight / sourceHeight);
+            targetWidth = Math.max(1, (int) Math.round(sourceWidth * scale));
+            targetHeight = Math.max(1, (int) Math.round(sourceHeight * scale));
+        }
+
+        int canvasWidth = spec.fit() == Fit.COVER ? Math.min(boxWidth, targetWidth) : targetWidth;
+        int canvasHeight = spec.fit() == Fit.COVER ? Math.min(boxHeight, targetHeight) : targetHeight;
+
+        BufferedImage target = new BufferedImage(canvasWidth, canvasHeight,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            if (!alpha) {
+                // transparent areas would otherwise turn black in formats without an alpha channel
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, canvasWidth, canvasHeight);
+            }
+            // a cover crop is centered, the image is drawn shifted by half of the overflow
+            int x = (canvasWidth - targetWidth) / 2;
+            int y = (canvasHeight - targetHeight) / 2;
+            graphics.drawImage(image, x, y, targetWidth, targetHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    private static boolean hasAlpha(String format) {
+        return "png".equals(format) || "gif".equals(format);
+    }
+
+    private static String formatOf(String filename) {
+        int dotIdx = filename.lastIndexOf('.');
+        String format = dotIdx != -1 ? normalizeFormat(filename.substring(dotIdx + 1)) : "png";
+        return ImageIO.getImageWritersByFormatName(format).hasNext() ? format : "png";
+    }
+
+    private static String normalizeFormat(String format) {
+        String normalized = format.toLowerCase(Locale.ROOT);
+        return "jpg".equals(normalized) ? "jpeg" : normalized;
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.dispose();
+    }
+}
@@ -0,0 +1,231 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import kz.ai.lab.inlivefilemanager.storage.S3StorageBackend;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves files stored under flat keys to their sharded keys after the switch to the {@code sharded}
+ * {@link KeyLayout}, enabled with {@code application.storage.migration.enabled}. Runs in the background
+ * once the application is ready, files are served from their flat key until they are moved.
+ * <p>
+ * Each file is copied server side and its flat key deleted afterwards; a file already present under its
+ * sharded key, or written to it during the copy, was written after the switch and wins. Several replicas
+ * may run this at once, moving a file twice is harmless. Presigned downloads look the file up under both
+ * keys, so they keep working during the migration. Throttled requests are retried by the client's adaptive retry strategy.
+ */
+@Slf4j
+@Service
+public class KeyLayoutMigration {
+    private static final long COPY_PART_SIZE = 512L * 1024 * 1024;
+
+    private final S3AsyncClient s3Client;
+    private final KeyLayout keyLayout;
+    private final String bucketName;
+    private final boolean enabled;
+    private final int parallelism;
+
+    public KeyLayoutMigration(S3AsyncClient s3Client,
+                              KeyLayout keyLayout,
+                              StorageBackend storageBackend,
+                              @Value("${aws.s3.bucket}") String bucketName,
+                              @Value("${application.storage.migration.enabled}") boolean enabled,
+                              @Value("${application.storage.migration.parallelism}") int parallelism) {
+        this.s3Client = s3Client;
+        this.keyLayout = keyLayout;
+        this.bucketName = bucketName;
+        this.enabled = enabled && keyLayout.isSharded() && storageBackend instanceof S3StorageBackend;
+        this.parallelism = parallelism;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (enabled) {
+            migrate().subscribe();
+        }
+    }
+
+    public Mono<Void> migrate() {
+        AtomicLong moved = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .build();
+
+        log.info("Key layout migration started");
+        return Flux.from(s3Client.listObjectsV2Paginator(listRequest).contents())
+                .filter(object -> keyLayout.isMisplaced(object.key()))
+                .flatMap(object -> move(object)
+                        .doOnSuccess(ignored -> moved.incrementAndGet())
+                        .onErrorResume(ex -> {
+                            failed.incrementAndGet();
+                            log.warn("Unable to move key [{}]: {}", object.key(), ex.getMessage());
+                            return Mono.empty();
+                        }), parallelism)
+                .doOnComplete(() -> log.info("Key layout migration finished, {} keys moved, {} failed",
+                        moved.get(), failed.get()))
+                .doOnError(ex -> log.error("Key layout migration failed after {} keys: [{}]", moved.get(),
+                        ex.getMessage(), ex))
+                .onErrorResume(ex -> Mono.empty())
+                .then();
+    }
+
+    /**
+     * The target is written with If-None-Match, so a file written to its sharded key while it is copied is
+     * not overwritten with the older content. A source deleted or changed during the copy is left alone and
+     * the copy rolled back, otherwise the delete would bring the file back under its sharded key.
+     */
+    private Mono<Void> move(S3Object object) {
+        String source = object.key();
+        String target = keyLayout.physical(source);
+
+        return exists(target)
+                .flatMap(exists -> {
+                    if (exists) {
+                        return delete(source);
+                    }
+                    return head(source).flatMap(original -> copy(source, target, original, object.size())
+                            .flatMap(copiedETag -> head(source)
+                                    .filter(current -> current.eTag().equals(original.eTag()))
+                                    .flatMap(current -> delete(source).thenReturn(true))
+                                    .switchIfEmpty(Mono.defer(() -> rollback(target, copiedETag).thenReturn(false))))
+                            // the sharded key was written meanwhile, it wins over the flat one
+                            .switchIfEmpty(Mono.defer(() -> delete(source).thenReturn(true)))
+                            .doOnNext(moved -> {
+                                if (moved) {
+                                    log.debug("Key [{}] moved to [{}]", source, target);
+                                } else {
+                                    log.debug("Key [{}] was deleted or changed while it was moved, the copy is rolled back", source);
+                                }
+                            })
+                            .then());
+                });
+    }
+
+    private Mono<Boolean> exists(String key) {
+        return head(key).hasElement();
+    }
+
+    private Mono<HeadObjectResponse> head(String key) {
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.headObject(headObjectRequest))
+                .onErrorResume(ex -> ex instanceof NoSuchKeyException
+                        || ex instanceof S3Exception s3Exception && s3Exception.statusCode() == 404, ex -> Mono.empty());
+    }
+
+    /**
+     * CopyObject cannot be made conditional, objects are copied in parts with UploadPartCopy and completed
+     * with If-None-Match instead. Empty objects, deduplication pointers among them, are written anew.
+     *
+     * @return the ETag of the copy, empty when the target was written meanwhile
+     */
+    private Mono<String> copy(String source, String target, HeadObjectResponse original, long size) {
+        if (size == 0) {
+            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(target)
+                    .contentType(original.contentType())
+                    .metadata(original.metadata())
+                    .ifNoneMatch("*")
+                    .build();
+
+            return Mono.fromFuture(() -> s3Client.putObject(putObjectRequest, AsyncRequestBody.empty()))
+                    .map(PutObjectResponse::eTag)
+                    .onErrorResume(KeyLayoutMigration::isPreconditionFailed, ex -> Mono.empty());
+        }
+
+        return Mono.fromFuture(() -> s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(target)
+                        .contentType(original.contentType())
+                        .metadata(original.metadata())
+                        .build()))
+                .flatMap(created -> {
+                    int partCount = (int) ((size + COPY_PART_SIZE - 1) / COPY_PART_SIZE);
+
+                    return Flux.range(1, partCount)
+                            .flatMapSequential(partNumber -> {
+                                long start = (partNumber - 1) * COPY_PART_SIZE;
+                                long end = Math.min(start + COPY_PART_SIZE, size) - 1;
+                                UploadPartCopyRequest partRequest = UploadPartCopyRequest.builder()
+                                        .sourceBucket(bucketName)
+                                        .sourceKey(source)
+                                        .destinationBucket(bucketName)
+                                        .destinationKey(target)
+                                        .uploadId(created.uploadId())
+                                        .partNumber(partNumber)
+                                        .copySourceRange(String.format("bytes=%d-%d", start, end))
+                                        // every part comes from the version the metadata was read from, a changed
+                                        // source fails the move instead of passing for a conflict on the target
+                                        .copySourceIfMatch(original.eTag())
+                                        .build();
+
+                                return Mono.fromFuture(() -> s3Client.uploadPartCopy(partRequest))
+                                        .onErrorMap(KeyLayoutMigration::isPreconditionFailed, ex -> new IllegalStateException(
+                                                "Key [" + source + "] changed during the copy", ex))
+                                        .map(response -> CompletedPart.builder()
+                                                .partNumber(partNumber)
+                                                .eTag(response.copyPartResult().eTag())
+                                                .build());
+                            }, parallelism)
+                            .collectList()
+                            .flatMap(parts -> Mono.fromFuture(() -> s3Client.completeMultipartUpload(
+                                    CompleteMultipartUploadRequest.builder()
+                                            .bucket(bucketName)
+                                            .key(target)
+                                            .uploadId(created.uploadId())
+                                            .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                                            .ifNoneMatch("*")
+                                            .build())))
+                            .map(CompleteMultipartUploadResponse::eTag)
+                            .onErrorResume(ex -> Mono.fromFuture(() -> s3Client.abortMultipartUpload(
+                                            AbortMultipartUploadRequest.builder()
+                                                    .bucket(bucketName)
+                                                    .key(target)
+                                                    .uploadId(created.uploadId())
+                                                    .build()))
+                                    .then(Mono.error(ex)));
+                })
+                .onErrorResume(KeyLayoutMigration::isPreconditionFailed, ex -> Mono.empty());
+    }
+
+    /**
+     * Deletes the copy unless the sharded key was written again since.
+     */
+    private Mono<Void> rollback(String target, String copiedETag) {
+        return head(target)
+                .filter(current -> current.eTag().equals(copiedETag))
+                .flatMap(current -> delete(target));
+    }
+
+    private static boolean isPreconditionFailed(Throwable ex) {
+        return ex instanceof S3Exception s3Exception
+                && (s3Exception.statusCode() == 412 || s3Exception.statusCode() == 409);
+    }
+
+    private Mono<Void> delete(String key) {
+        DeleteObjectRequest deleteObjectRequest = DeleteObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.deleteObject(deleteObjectRequest)).then();
+    }
+}
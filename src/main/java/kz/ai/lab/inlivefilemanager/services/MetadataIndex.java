@@ -0,0 +1,365 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import kz.ai.lab.inlivefilemanager.dto.FileEntry;
+import kz.ai.lab.inlivefilemanager.dto.FileListing;
+import kz.ai.lab.inlivefilemanager.dto.FileMetadata;
+import kz.ai.lab.inlivefilemanager.storage.ObjectSummary;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of file metadata keyed by storage path, so listings and metadata lookups do not
+ * need a listing or HeadObject call each. Uploads and deletions through this service update
+ * it directly; files written by other means (presigned uploads, other instances) are picked up by
+ * reconciling a directory with its backend listing.
+ * <p>
+ * Only the directories listed through this instance are reconciled, each instance lists its own: a
+ * directory is read from the backend when it is first listed here, and again every
+ * {@code reconcile-interval} while it is listed. Other entries, of files uploaded or looked up, are
+ * used for one interval after they were written. No entry older than that interval is used, the same
+ * bound {@code application.cache.expire-after-write} puts on the metadata tier of {@link FileCache}.
+ * <p>
+ * Keys under internal prefixes starting with a dot are not indexed.
+ */
+@Slf4j
+@Component
+public class MetadataIndex {
+    private static final int HEAD_CONCURRENCY = 16;
+    private static final int DIRECTORY_CONCURRENCY = 4;
+
+    private final StorageBackend storageBackend;
+    private final Duration reconcileInterval;
+    private final Duration readyTimeout;
+
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    // directories whose listing was reconciled and kept up to date since
+    private final Set<String> reconciled = ConcurrentHashMap.newKeySet();
+    private final Map<String, Mono<Void>> reconciling = new ConcurrentHashMap<>();
+    // directories listed since the last round
+    private final Set<String> listed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean reconcilingAll = new AtomicBoolean();
+
+    public MetadataIndex(StorageBackend storageBackend,
+                         @Value("${application.metadata-index.reconcile-interval}") Duration reconcileInterval,
+                         @Value("${application.metadata-index.ready-timeout}") Duration readyTimeout) {
+        this.storageBackend = storageBackend;
+        this.reconcileInterval = reconcileInterval;
+        this.readyTimeout = readyTimeout;
+    }
+
+    public enum Sort {
+        NAME(Comparator.comparing(FileEntry::filename)),
+        SIZE(Comparator.comparingLong(FileEntry::contentLength).thenComparing(FileEntry::filename)),
+        LAST_MODIFIED(Comparator.comparing(FileEntry::lastModified, Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(FileEntry::filename));
+
+        private final Comparator<FileEntry> comparator;
+
+        Sort(Comparator<FileEntry> comparator) {
+            this.comparator = comparator;
+        }
+
+        public static Sort parse(String value) {
+            return valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    /**
+     * @param indexedAt entries older than the start of a reconcile that the listing did not confirm are dropped
+     */
+    private record Entry(FileMetadata metadata, Instant indexedAt) {
+    }
+
+    /**
+     * @return {@code null} when the file is not indexed, or its entry is older than {@code reconcile-interval}
+     * and its directory is not reconciled
+     */
+    public FileMetadata get(String storagePath) {
+        Entry entry = entries.get(storagePath);
+        if (entry == null || !reconciled.contains(directoryOf(storagePath)) && isExpired(entry, Instant.now())) {
+            return null;
+        }
+        return entry.metadata();
+    }
+
+    public void put(String storagePath, FileMetadata metadata) {
+        if (!isInternal(storagePath)) {
+            entries.put(storagePath, new Entry(metadata, Instant.now()));
+        }
+    }
+
+    public void remove(String storagePath) {
+        entries.remove(storagePath);
+    }
+
+    public void removePrefix(String prefix) {
+        entries.subMap(prefix, prefix + Character.MAX_VALUE).clear();
+    }
+
+    /**
+     * Re-reads the metadata of one key, removing it from the index when it no longer exists.
+     * Failures are logged only, the next reconcile corrects the entry.
+     */
+    public Mono<Void> refresh(String storagePath) {
+        if (isInternal(storagePath)) {
+            return Mono.empty();
+        }
+
+        return storageBackend.head(storagePath)
+                .doOnNext(metadata -> put(storagePath, metadata))
+                .switchIfEmpty(Mono.fromRunnable(() -> remove(storagePath)))
+                .doOnError(ex -> log.warn("Unable to refresh index entry of [{}]: {}", storagePath, ex.getMessage()))
+                .onErrorResume(ex -> Mono.empty())
+                .then();
+    }
+
+    /**
+     * Lists the files under {@code directory}, reconciling it first when it is not indexed yet. When that
+     * fails or does not finish within {@code ready-timeout}, the listing fails with 503.
+     * <p>
+     * The index is in name order, a page sorted by name is read from where the previous one ended. Pages
+     * in another order keep only the entries of the page while going through the directory.
+     *
+     * @param prefix filter on the file name relative to the directory, may be {@code null}
+     * @param cursor {@link FileListing#nextCursor()} of the previous page, {@code null} for the first page
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public Mono<FileListing> list(String directory,
+                                  String prefix,
+                                  Sort sort,
+                                  boolean descending,
+                                  String cursor,
+                                  int limit) {
+        FileEntry after = cursor != null ? decodeCursor(cursor) : null;
+        if (isInternal(directory)) {
+            return Mono.just(new FileListing(List.of(), null));
+        }
+        listed.add(directory);
+
+        Mono<Void> ready = reconciled.contains(directory)
+                ? Mono.empty()
+                : reconcile(directory)
+                        .timeout(readyTimeout)
+                        .onErrorMap(ex -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                                "File index is not ready yet", ex));
+
+        return ready.then(Mono.fromSupplier(() -> page(directory, prefix, sort, descending, after, limit)));
+    }
+
+    private FileListing page(String directory, String prefix, Sort sort, boolean descending, FileEntry after, int limit) {
+        String base = directory + "/";
+        String from = base + (prefix != null ? prefix : "");
+        NavigableMap<String, Entry> files = entries.subMap(from, from + Character.MAX_VALUE);
+        Comparator<FileEntry> comparator = descending ? sort.comparator.reversed() : sort.comparator;
+
+        // one more than requested tells whether there is a next page
+        List<FileEntry> page;
+        if (sort == Sort.NAME) {
+            NavigableMap<String, Entry> ordered = descending ? files.descendingMap() : files;
+            if (after != null) {
+                ordered = ordered.tailMap(base + after.filename(), false);
+            }
+            page = ordered.entrySet().stream()
+                    .limit(limit + 1L)
+                    .map(entry -> toFileEntry(entry.getKey().substring(base.length()), entry.getValue().metadata()))
+                    .toList();
+        } else {
+            PriorityQueue<FileEntry> first = new PriorityQueue<>(comparator.reversed());
+            files.forEach((key, entry) -> {
+                FileEntry file = toFileEntry(key.substring(base.length()), entry.metadata());
+                if (after != null && comparator.compare(file, after) <= 0) {
+                    return;
+                }
+                if (first.size() <= limit) {
+                    first.add(file);
+                } else if (comparator.compare(file, first.peek()) < 0) {
+                    first.poll();
+                    first.add(file);
+                }
+            });
+            List<FileEntry> sorted = new ArrayList<>(first);
+            sorted.sort(comparator);
+            page = sorted;
+        }
+
+        if (page.size() <= limit) {
+            return new FileListing(page, null);
+        }
+        return new FileListing(page.subList(0, limit), encodeCursor(page.get(limit - 1)));
+    }
+
+    @Scheduled(initialDelayString = "${application.metadata-index.reconcile-interval}",
+            fixedDelayString = "${application.metadata-index.reconcile-interval}")
+    public void scheduleReconcile() {
+        if (!reconcilingAll.compareAndSet(false, true)) {
+            log.info("Metadata index reconcile still running, skipping this round");
+            return;
+        }
+
+        reconcile()
+                .doFinally(signal -> reconcilingAll.set(false))
+                .subscribe();
+    }
+
+    /**
+     * Reconciles the directories listed since the last round. Directories no longer listed are not
+     * reconciled any more, expired entries outside the reconciled directories are dropped.
+     */
+    public Mono<Void> reconcile() {
+        Set<String> active = new HashSet<>(listed);
+        listed.removeAll(active);
+
+        Set<String> idle = new HashSet<>(reconciled);
+        idle.removeAll(active);
+        reconciled.removeAll(idle);
+
+        Instant now = Instant.now();
+        entries.entrySet().removeIf(entry -> !active.contains(directoryOf(entry.getKey()))
+                && isExpired(entry.getValue(), now));
+
+        return Flux.fromIterable(active)
+                .flatMap(directory -> reconcile(directory).onErrorResume(ex -> Mono.empty()), DIRECTORY_CONCURRENCY)
+                .then(Mono.fromRunnable(() -> log.info("Metadata index reconciled {} directories, {} no longer listed, {} indexed",
+                        active.size(), idle.size(), entries.size())));
+    }
+
+    /**
+     * Brings the entries of one directory in line with its backend listing. Entries written while the
+     * reconcile runs are kept even if the listing missed them. Concurrent calls share one listing.
+     */
+    private Mono<Void> reconcile(String directory) {
+        return reconciling.computeIfAbsent(directory, key -> listDirectory(directory)
+                .doFinally(signal -> reconciling.remove(directory))
+                .cache());
+    }
+
+    private Mono<Void> listDirectory(String directory) {
+        String prefix = directory + "/";
+        Instant startedAt = Instant.now();
+        AtomicLong count = new AtomicLong();
+
+        return storageBackend.list(prefix)
+                .filter(object -> !object.key().endsWith("/"))
+                .flatMap(object -> metadataOf(object, entries.get(object.key()))
+                        .doOnNext(metadata -> {
+                            count.incrementAndGet();
+                            entries.compute(object.key(), (key, existing) -> {
+                                if (existing != null && !existing.indexedAt().isBefore(startedAt)) {
+                                    return existing;
+                                }
+                                // unchanged content keeps the type sniffed on upload
+                                if (existing != null && Objects.equals(existing.metadata().eTag(), metadata.eTag())) {
+                                    return new Entry(existing.metadata(), Instant.now());
+                                }
+                                return new Entry(metadata, Instant.now());
+                            });
+                        }), HEAD_CONCURRENCY)
+                .then(Mono.fromRunnable(() -> {
+                    entries.subMap(prefix, prefix + Character.MAX_VALUE).values()
+                            .removeIf(entry -> entry.indexedAt().isBefore(startedAt));
+                    reconciled.add(directory);
+                    log.debug("Directory [{}] reconciled, {} files listed", directory, count.get());
+                }))
+                .doOnError(ex -> log.error("Reconcile of directory [{}] failed: [{}]", directory, ex.getMessage(), ex))
+                .then();
+    }
+
+    /**
+     * The listing has everything but the content type, which is derived from the name.
+     * Empty objects may be deduplication pointers, their metadata is read with a HeadObject unless
+     * the index has the pointer already: a pointer is rewritten whenever its file changes, an unchanged
+     * modification time means an unchanged file.
+     */
+    private Mono<FileMetadata> metadataOf(ObjectSummary object, Entry existing) {
+        if (object.size() == 0) {
+            if (existing != null && existing.metadata().lastModified() != null && object.lastModified() != null
+                    && existing.metadata().lastModified().truncatedTo(ChronoUnit.SECONDS)
+                    .equals(object.lastModified().truncatedTo(ChronoUnit.SECONDS))) {
+                return Mono.just(existing.metadata());
+            }
+            return storageBackend.head(object.key());
+        }
+        return Mono.just(new FileMetadata(StorageService.probeContentType(object.key()),
+                object.size(),
+                object.eTag(),
+                object.lastModified()));
+    }
+
+    private static boolean isInternal(String storagePath) {
+        return storagePath.startsWith(".");
+    }
+
+    private boolean isExpired(Entry entry, Instant now) {
+        return entry.indexedAt().plus(reconcileInterval).isBefore(now);
+    }
+
+    /**
+     * Files are addressed as {@code directory/filename}, the directory is the first segment of the path.
+     */
+    private static String directoryOf(String storagePath) {
+        int slash = storagePath.indexOf('/');
+        return slash == -1 ? "" : storagePath.substring(0, slash);
+    }
+
+    private static FileEntry toFileEntry(String filename, FileMetadata metadata) {
+        return new FileEntry(filename,
+                metadata.contentType(),
+                metadata.contentLength(),
+                metadata.eTag(),
+                metadata.lastModified());
+    }
+
+    /**
+     * The cursor carries the sort values of the last entry, so it stays valid when that entry is deleted.
+     */
+    private static String encodeCursor(FileEntry last) {
+        String value = String.join("\n",
+                String.valueOf(last.contentLength()),
+                last.lastModified() != null ? last.lastModified().toString() : "",
+                last.filename());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static FileEntry decodeCursor(String cursor) {
+        try {
+            String[] values = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\n", 3);
+            if (values.length != 3) {
+                throw new IllegalArgumentException("Malformed cursor");
+            }
+            return new FileEntry(values[2],
+                    null,
+                    Long.parseLong(values[0]),
+                    null,
+                    values[1].isEmpty() ? null : Instant.parse(values[1]));
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("Malformed cursor", ex);
+        }
+    }
+}
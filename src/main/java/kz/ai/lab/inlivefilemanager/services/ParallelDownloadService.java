@@ -0,0 +1,150 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import kz.ai.lab.inlivefilemanager.dto.FileMetadata;
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import kz.ai.lab.inlivefilemanager.storage.S3StorageBackend;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Objects;
+
+/**
+ * Downloads large objects as concurrent byte-range GETs, a single GetObject connection is far slower
+ * than the network for multi-gigabyte files. The first part is streamed as it arrives, so the time to
+ * the first byte is that of a single GET; the following parts are fetched ahead, each collected in
+ * memory, and written out in order. At most {@code concurrency} parts are in flight or waiting for
+ * their turn.
+ * <p>
+ * Only the S3 backend benefits, filesystem files are sent zero-copy. Objects below the threshold keep
+ * using a single GET. The key is looked up once per download, so the parts of a deduplicated file are
+ * read from its blob without a HEAD of the pointer each.
+ */
+@Slf4j
+@Service
+public class ParallelDownloadService {
+    private static final int PREFETCH = 32;
+
+    private final StorageBackend storageBackend;
+    private final long partSize;
+    private final int concurrency;
+    private final long threshold;
+
+    public ParallelDownloadService(StorageBackend storageBackend,
+                                   @Value("${aws.s3.download.part-size}") long partSize,
+                                   @Value("${aws.s3.download.concurrency}") int concurrency,
+                                   @Value("${aws.s3.download.threshold}") long threshold) {
+        this.storageBackend = storageBackend;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.threshold = Math.max(threshold, partSize + 1);
+    }
+
+    /**
+     * @return whether downloads are split at all, the size of a file only has to be looked up when they are
+     */
+    public boolean isEnabled() {
+        return concurrency > 1 && storageBackend instanceof S3StorageBackend;
+    }
+
+    /**
+     * @param length bytes to download
+     */
+    public boolean appliesTo(long length) {
+        return isEnabled() && length >= threshold;
+    }
+
+    /**
+     * Downloads the inclusive range {@code [start, end]} of an object of the known size, only called when
+     * {@link #isEnabled()}. When the first part shows the object has changed size since its metadata was
+     * read, the download falls back to a single GET; a part of another version of the object fails the content.
+     */
+    public Mono<S3Blob> download(String key, FileMetadata known, long start, long end) {
+        S3StorageBackend s3StorageBackend = (S3StorageBackend) storageBackend;
+        return s3StorageBackend.resolve(key)
+                .flatMap(source -> download(s3StorageBackend, source, known, start, end));
+    }
+
+    private Mono<S3Blob> download(S3StorageBackend s3StorageBackend,
+                                  S3StorageBackend.Source source,
+                                  FileMetadata known,
+                                  long start,
+                                  long end) {
+        String key = source.path();
+        long firstEnd = Math.min(start + partSize - 1, end);
+        boolean whole = start == 0 && end == known.contentLength() - 1;
+
+        return s3StorageBackend.get(source, start, firstEnd)
+                .flatMap(first -> {
+                    if (totalLength(first.contentRange()) != known.contentLength()) {
+                        log.debug("Key [{}] changed since its metadata was read, downloading it with a single GET", key);
+                        return first.content().doOnNext(DataBufferUtils::release)
+                                .then(whole ? storageBackend.get(key) : storageBackend.get(key, start, end));
+                    }
+
+                    Flux<Publisher<DataBuffer>> rest = Flux.<Publisher<DataBuffer>, Long>generate(() -> firstEnd + 1, (offset, sink) -> {
+                        if (offset > end) {
+                            sink.complete();
+                            return offset;
+                        }
+                        long partEnd = Math.min(offset + partSize - 1, end);
+                        sink.next(fetchPart(s3StorageBackend, source, first.eTag(), offset, partEnd));
+                        return partEnd + 1;
+                    });
+
+                    // the following parts are fetched while the first one streams
+                    Flux<DataBuffer> content = Flux.concat(Mono.<Publisher<DataBuffer>>just(first.content()), rest)
+                            .flatMapSequential(part -> part, concurrency, PREFETCH)
+                            .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+
+                    return Mono.just(new S3Blob(content,
+                            first.contentType(),
+                            end - start + 1,
+                            whole ? null : String.format("bytes %d-%d/%d", start, end, known.contentLength()),
+                            first.eTag(),
+                            first.lastModified()));
+                });
+    }
+
+    private static Mono<DataBuffer> fetchPart(S3StorageBackend s3StorageBackend,
+                                              S3StorageBackend.Source source,
+                                              String eTag,
+                                              long start,
+                                              long end) {
+        String key = source.path();
+        return s3StorageBackend.get(source, start, end)
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("Key [" + key + "] deleted during download")))
+                .flatMap(part -> {
+                    if (!Objects.equals(part.eTag(), eTag)) {
+                        return part.content().doOnNext(DataBufferUtils::release)
+                                .then(Mono.error(new IllegalStateException("Key [" + key + "] changed during download")));
+                    }
+                    return DataBufferUtils.join(part.content());
+                });
+    }
+
+    /**
+     * @param contentRange a {@code Content-Range} like {@code bytes 0-99/1000}
+     * @return the size after the slash, -1 when unknown
+     */
+    private static long totalLength(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash == -1 || contentRange.endsWith("*")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import kz.ai.lab.inlivefilemanager.dto.PresignedMultipartUpload;
+import kz.ai.lab.inlivefilemanager.dto.PresignedUrl;
+import kz.ai.lab.inlivefilemanager.dto.UploadedPart;
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import kz.ai.lab.inlivefilemanager.storage.S3StorageBackend;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.UploadPartPresignRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Issues presigned S3 URLs so clients transfer file content directly to and from S3, using the same
+ * {@code directory/filename} key layout and metadata as {@link StorageService}.
+ * <p>
+ * Content uploaded through a presigned URL bypasses the service. A multipart upload is completed through
+ * it, the cached copy of the key is dropped then; a single PUT may land any time before its URL expires,
+ * so its key is not cached until then, see {@link FileCache#bypass}. A deduplicated file
+ * overwritten that way loses its reference to the blob on completion of a multipart upload, and for a single
+ * PUT once its URL has expired, see {@link DedupService#expectOverwrite}.
+ * Only available with the s3 storage backend.
+ */
+@Slf4j
+@Service
+public class PresignService {
+    private static final int MAX_PARTS = 10_000;
+
+    private final S3Presigner s3Presigner;
+    private final S3AsyncClient s3Client;
+    private final FileCache fileCache;
+    private final FetchCoalescer fetchCoalescer;
+    private final MetadataIndex metadataIndex;
+    private final DedupService dedupService;
+    private final KeyLayout keyLayout;
+    private final String bucketName;
+    private final long partSize;
+    private final Duration expiry;
+    private final boolean available;
+
+    public PresignService(S3Presigner s3Presigner,
+                          S3AsyncClient s3Client,
+                          FileCache fileCache,
+                          FetchCoalescer fetchCoalescer,
+                          MetadataIndex metadataIndex,
+                          DedupService dedupService,
+                          StorageBackend storageBackend,
+                          KeyLayout keyLayout,
+                          @Value("${aws.s3.bucket}") String bucketName,
+                          @Value("${aws.s3.multipart.part-size}") long partSize,
+                          @Value("${aws.s3.presign.expiry}") Duration expiry) {
+        this.s3Presigner = s3Presigner;
+        this.s3Client = s3Client;
+        this.fileCache = fileCache;
+        this.fetchCoalescer = fetchCoalescer;
+        this.metadataIndex = metadataIndex;
+        this.dedupService = dedupService;
+        this.keyLayout = keyLayout;
+        this.bucketName = bucketName;
+        this.partSize = partSize;
+        this.expiry = expiry;
+        this.available = storageBackend instanceof S3StorageBackend;
+    }
+
+    private void requireS3() {
+        if (!available) {
+            throw new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "Presigned URLs need the s3 storage backend");
+        }
+    }
+
+    public Mono<PresignedUrl> presignUpload(String filename, String directory, boolean generateFileName) {
+        requireS3();
+        String objectName = generateFileName ? StorageService.generateFileName(filename) : filename;
+        String contentType = StorageService.probeContentType(objectName);
+        String storagePath = String.format("%s/%s", directory, objectName);
+
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(keyLayout.physical(storagePath))
+                .contentType(contentType)
+                .metadata(metadata(objectName, contentType))
+                .build();
+
+        return dedupService.expectOverwrite(storagePath)
+                .then(Mono.fromSupplier(() -> {
+                    PresignedPutObjectRequest presigned = s3Presigner.presignPutObject(PutObjectPresignRequest.builder()
+                            .signatureDuration(expiry)
+                            .putObjectRequest(putObjectRequest)
+                            .build());
+
+                    // the object changes outside of this service at an unknown time, lookups go to S3 meanwhile
+                    fileCache.bypass(storagePath, presigned.expiration());
+                    log.debug("Presigned upload issued for key [{}]", storagePath);
+
+                    return new PresignedUrl(objectName, presigned.httpRequest().method().name(),
+                            presigned.url().toString(), presigned.signedHeaders(), presigned.expiration());
+                }));
+    }
+
+    /**
+     * The URL is signed for the key the file is actually stored under: the blob of a deduplicated file, served
+     * with the content type of its pointer, or the flat key of a file the sharded layout has not moved yet.
+     *
+     * @throws ResponseStatusException NOT_FOUND for missing files
+     */
+    public Mono<PresignedUrl> presignDownload(String filename, String directory) {
+        requireS3();
+        String storagePath = String.format("%s/%s", directory, filename);
+
+        return Flux.fromIterable(keyLayout.candidates(storagePath))
+                .concatMap(key -> head(key).map(response -> Map.entry(key, response)))
+                .next()
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+                        "File " + storagePath + " not found")))
+                .map(stored -> {
+                    String hash = stored.getValue().metadata().get(DedupService.HASH_METADATA);
+                    GetObjectRequest getObjectRequest = hash == null
+                            ? GetObjectRequest.builder().bucket(bucketName).key(stored.getKey()).build()
+                            : GetObjectRequest.builder()
+                                    .bucket(bucketName)
+                                    .key(dedupService.blobKey(hash))
+                                    .responseContentType(stored.getValue().contentType())
+                                    .build();
+
+                    PresignedGetObjectRequest presigned = s3Presigner.presignGetObject(GetObjectPresignRequest.builder()
+                            .signatureDuration(expiry)
+                            .getObjectRequest(getObjectRequest)
+                            .build());
+
+                    return new PresignedUrl(filename, presigned.httpRequest().method().name(),
+                            presigned.url().toString(), presigned.signedHeaders(), presigned.expiration());
+                });
+    }
+
+    /**
+     * Starts a multipart upload for a file of {@code size} bytes and presigns a PUT for every part.
+     */
+    public Mono<PresignedMultipartUpload> createMultipartUpload(String filename,
+                                                                String directory,
+                                                                boolean generateFileName,
+                                                                long size) {
+        requireS3();
+        long partCount = Math.max(1, (size + partSize - 1) / partSize);
+        if (partCount > MAX_PARTS) {
+            return Mono.error(new IllegalArgumentException(
+                    String.format("File of %d bytes needs more than %d parts of %d bytes", size, MAX_PARTS, partSize)));
+        }
+
+        String objectName = generateFileName ? StorageService.generateFileName(filename) : filename;
+        String contentType = StorageService.probeContentType(objectName);
+        String storagePath = String.format("%s/%s", directory, objectName);
+
+        CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(keyLayout.physical(storagePath))
+                .contentType(contentType)
+                .metadata(metadata(objectName, contentType))
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.createMultipartUpload(createRequest))
+                .map(response -> {
+                    Instant expiresAt = Instant.now().plus(expiry);
+                    List<PresignedMultipartUpload.Part> parts = IntStream.rangeClosed(1, (int) partCount)
+                            .mapToObj(partNumber -> new PresignedMultipartUpload.Part(partNumber,
+                                    presignPart(storagePath, response.uploadId(), partNumber)))
+                            .toList();
+
+                    log.info("Presigned multipart upload [{}] of {} parts issued for key [{}]",
+                            response.uploadId(), partCount, storagePath);
+                    return new PresignedMultipartUpload(objectName, response.uploadId(), partSize, parts, expiresAt);
+                });
+    }
+
+    public Mono<String> completeMultipartUpload(String filename,
+                                                String directory,
+                                                String uploadId,
+                                                List<UploadedPart> uploadedParts) {
+        requireS3();
+        String storagePath = String.format("%s/%s", directory, filename);
+
+        List<CompletedPart> parts = uploadedParts.stream()
+                .sorted(Comparator.comparingInt(UploadedPart::partNumber))
+                .map(part -> CompletedPart.builder().partNumber(part.partNumber()).eTag(part.eTag()).build())
+                .toList();
+
+        CompleteMultipartUploadRequest completeRequest = CompleteMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(keyLayout.physical(storagePath))
+                .uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                .build();
+
+        return dedupService.overwrite(storagePath, Mono.fromFuture(() -> s3Client.completeMultipartUpload(completeRequest)))
+                .then(Mono.defer(() -> {
+                    fileCache.invalidate(storagePath);
+                    fetchCoalescer.invalidate(storagePath);
+                    return metadataIndex.refresh(storagePath);
+                }))
+                .then(Mono.fromSupplier(() -> {
+                    log.debug("Multipart upload [{}] completed for key [{}]", uploadId, storagePath);
+                    return filename;
+                }));
+    }
+
+    public Mono<Void> abortMultipartUpload(String filename, String directory, String uploadId) {
+        requireS3();
+        AbortMultipartUploadRequest abortRequest = AbortMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(keyLayout.physical(String.format("%s/%s", directory, filename)))
+                .uploadId(uploadId)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.abortMultipartUpload(abortRequest)).then();
+    }
+
+    /**
+     * Releases the blobs of deduplicated files overwritten by presigned PUTs whose URLs have expired.
+     */
+    @Scheduled(fixedDelayString = "${aws.s3.presign.cleanup-interval}")
+    public void scheduleCleanup() {
+        if (available && dedupService.isEnabled()) {
+            dedupService.releaseOverwritten(Instant.now().minus(expiry))
+                    .doOnError(ex -> log.error("Presigned upload cleanup failed: [{}]", ex.getMessage(), ex))
+                    .onErrorResume(ex -> Mono.empty())
+                    .subscribe();
+        }
+    }
+
+    private Mono<HeadObjectResponse> head(String key) {
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.headObject(headObjectRequest))
+                .onErrorResume(ex -> ex instanceof NoSuchKeyException
+                        || ex instanceof S3Exception s3Exception && s3Exception.statusCode() == 404, ex -> Mono.empty());
+    }
+
+    private String presignPart(String storagePath, String uploadId, int partNumber) {
+        UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                .bucket(bucketName)
+                .key(keyLayout.physical(storagePath))
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .build();
+
+        return s3Presigner.presignUploadPart(UploadPartPresignRequest.builder()
+                        .signatureDuration(expiry)
+                        .uploadPartRequest(uploadPartRequest)
+                        .build())
+                .url()
+                .toString();
+    }
+
+    private static Map<String, String> metadata(String filename, String contentType) {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("filename", filename);
+        metadata.put("content-type", contentType);
+        return metadata;
+    }
+}
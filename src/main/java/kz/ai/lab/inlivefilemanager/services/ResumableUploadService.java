@@ -0,0 +1,385 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import kz.ai.lab.inlivefilemanager.dto.ResumableUpload;
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import kz.ai.lab.inlivefilemanager.storage.S3StorageBackend;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Uploads a client can resume after a dropped connection. A session maps onto an S3 multipart upload:
+ * the file is sent in fixed-size chunks, each chunk becomes the part at {@code offset / chunkSize + 1},
+ * so chunks can arrive in any order, in parallel and more than once. Which chunks arrived is read back
+ * with ListParts.
+ * <p>
+ * Session state is an empty object under {@value #PREFIX} in the bucket, so any replica can continue
+ * an upload. Sessions past their expiry are aborted by a periodic cleanup.
+ * Only available with the s3 storage backend.
+ */
+@Slf4j
+@Service
+public class ResumableUploadService {
+    public static final String PREFIX = ".uploads/";
+
+    private static final int MAX_PARTS = 10_000;
+    private static final int CLEANUP_CONCURRENCY = 8;
+
+    private final S3AsyncClient s3Client;
+    private final FileCache fileCache;
+    private final FetchCoalescer fetchCoalescer;
+    private final MetadataIndex metadataIndex;
+    private final DedupService dedupService;
+    private final KeyLayout keyLayout;
+    private final String bucketName;
+    private final long chunkSize;
+    private final Duration expiry;
+    private final boolean available;
+
+    public ResumableUploadService(S3AsyncClient s3Client,
+                                  FileCache fileCache,
+                                  FetchCoalescer fetchCoalescer,
+                                  MetadataIndex metadataIndex,
+                                  DedupService dedupService,
+                                  StorageBackend storageBackend,
+                                  KeyLayout keyLayout,
+                                  @Value("${aws.s3.bucket}") String bucketName,
+                                  @Value("${aws.s3.multipart.part-size}") long chunkSize,
+                                  @Value("${application.resumable-uploads.expiry}") Duration expiry) {
+        this.s3Client = s3Client;
+        this.fileCache = fileCache;
+        this.fetchCoalescer = fetchCoalescer;
+        this.metadataIndex = metadataIndex;
+        this.dedupService = dedupService;
+        this.keyLayout = keyLayout;
+        this.bucketName = bucketName;
+        this.chunkSize = chunkSize;
+        this.expiry = expiry;
+        this.available = storageBackend instanceof S3StorageBackend;
+    }
+
+    private record Session(String id,
+                           String storagePath,
+                           String filename,
+                           String uploadId,
+                           long size,
+                           long chunkSize,
+                           Instant expiresAt) {
+
+        int chunkCount() {
+            return (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        }
+
+        long chunkLength(long offset) {
+            return Math.min(chunkSize, size - offset);
+        }
+
+        Map<String, String> toMetadata() {
+            Map<String, String> metadata = new HashMap<>();
+            metadata.put("storage-path", storagePath);
+            metadata.put("filename", filename);
+            metadata.put("upload-id", uploadId);
+            metadata.put("size", String.valueOf(size));
+            metadata.put("chunk-size", String.valueOf(chunkSize));
+            metadata.put("expires-at", expiresAt.toString());
+            return metadata;
+        }
+
+        static Session fromMetadata(String id, Map<String, String> metadata) {
+            return new Session(id,
+                    metadata.get("storage-path"),
+                    metadata.get("filename"),
+                    metadata.get("upload-id"),
+                    Long.parseLong(metadata.get("size")),
+                    Long.parseLong(metadata.get("chunk-size")),
+                    Instant.parse(metadata.get("expires-at")));
+        }
+    }
+
+    public Mono<ResumableUpload> create(String filename, String directory, boolean generateFileName, long size) {
+        requireS3();
+        if (size < 0 || (size + chunkSize - 1) / chunkSize > MAX_PARTS) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    String.format("File size has to be between 0 and %d bytes", MAX_PARTS * chunkSize)));
+        }
+
+        String objectName = generateFileName ? StorageService.generateFileName(filename) : filename;
+        String contentType = StorageService.probeContentType(objectName);
+        String storagePath = String.format("%s/%s", directory, objectName);
+
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("filename", objectName);
+        metadata.put("content-type", contentType);
+
+        CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(keyLayout.physical(storagePath))
+                .contentType(contentType)
+                .metadata(metadata)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.createMultipartUpload(createRequest))
+                .map(response -> new Session(UUID.randomUUID().toString(), storagePath, objectName,
+                        response.uploadId(), size, chunkSize, Instant.now().plus(expiry)))
+                .flatMap(session -> saveSession(session)
+                        .thenReturn(toResumableUpload(session, List.of())))
+                .doOnNext(upload -> log.info("Resumable upload [{}] of {} bytes started for key [{}]",
+                        upload.id(), size, storagePath));
+    }
+
+    /**
+     * Stores the chunk at {@code offset}, replacing it if it was sent before. A chunk is at most one
+     * multipart part, so it is collected in memory and sent with a known length.
+     * Checksums the client sent with the chunk are verified before it is uploaded.
+     */
+    public Mono<ResumableUpload> putChunk(String id, String directory, long offset, Flux<DataBuffer> content,
+                                          UploadInspection.Expected expected) {
+        requireS3();
+        return loadSession(id, directory)
+                .flatMap(session -> {
+                    if (offset < 0 || offset % session.chunkSize() != 0
+                            || offset / session.chunkSize() >= session.chunkCount()) {
+                        return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format(
+                                "Offset has to be a multiple of %d below %d", session.chunkSize(), session.size())));
+                    }
+
+                    long expectedLength = session.chunkLength(offset);
+                    int partNumber = (int) (offset / session.chunkSize()) + 1;
+
+                    Flux<DataBuffer> inspected = new UploadInspection(expected, false).inspect(content);
+                    return DataBufferUtils.join(inspected, (int) expectedLength)
+                            .map(ResumableUploadService::drain)
+                            .defaultIfEmpty(new byte[0])
+                            .onErrorMap(DataBufferLimitException.class, ex -> wrongLength(offset, expectedLength))
+                            .flatMap(bytes -> {
+                                if (bytes.length != expectedLength) {
+                                    return Mono.error(wrongLength(offset, expectedLength));
+                                }
+                                return uploadPart(session, partNumber, bytes);
+                            })
+                            .then(status(session));
+                });
+    }
+
+    public Mono<ResumableUpload> getStatus(String id, String directory) {
+        requireS3();
+        return loadSession(id, directory).flatMap(this::status);
+    }
+
+    /**
+     * Assembles the received chunks into the file once all of them are in.
+     *
+     * @return the stored file name
+     */
+    public Mono<String> complete(String id, String directory) {
+        requireS3();
+        return loadSession(id, directory)
+                .flatMap(session -> listParts(session)
+                        .flatMap(parts -> {
+                            if (parts.size() != session.chunkCount()) {
+                                return Mono.error(new ResponseStatusException(HttpStatus.CONFLICT, String.format(
+                                        "%d of %d chunks received", parts.size(), session.chunkCount())));
+                            }
+
+                            List<CompletedPart> completedParts = parts.stream()
+                                    .map(part -> CompletedPart.builder().partNumber(part.partNumber()).eTag(part.eTag()).build())
+                                    .toList();
+
+                            CompleteMultipartUploadRequest completeRequest = CompleteMultipartUploadRequest.builder()
+                                    .bucket(bucketName)
+                                    .key(keyLayout.physical(session.storagePath()))
+                                    .uploadId(session.uploadId())
+                                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                                    .build();
+
+                            // a deduplicated file overwritten by the upload releases its blob
+                            return dedupService.overwrite(session.storagePath(),
+                                    Mono.fromFuture(() -> s3Client.completeMultipartUpload(completeRequest)));
+                        })
+                        .then(deleteSession(session.id()))
+                        .then(Mono.defer(() -> {
+                            fileCache.invalidate(session.storagePath());
+                            fetchCoalescer.invalidate(session.storagePath());
+                            return metadataIndex.refresh(session.storagePath());
+                        }))
+                        .then(Mono.fromSupplier(() -> {
+                            log.info("Resumable upload [{}] completed for key [{}]", session.id(), session.storagePath());
+                            return session.filename();
+                        })));
+    }
+
+    public Mono<Void> abort(String id, String directory) {
+        requireS3();
+        return loadSession(id, directory).flatMap(this::abort);
+    }
+
+    @Scheduled(fixedDelayString = "${application.resumable-uploads.cleanup-interval}")
+    public void scheduleCleanup() {
+        if (available) {
+            cleanup().subscribe();
+        }
+    }
+
+    /**
+     * Aborts sessions past their expiry. Several replicas may run this at once, aborting twice is harmless.
+     */
+    public Mono<Void> cleanup() {
+        Instant now = Instant.now();
+
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .prefix(PREFIX)
+                .build();
+
+        return Flux.from(s3Client.listObjectsV2Paginator(listRequest).contents())
+                .filter(object -> object.lastModified().plus(expiry).isBefore(now))
+                .flatMap(object -> readSession(object.key().substring(PREFIX.length()))
+                        .filter(session -> session.expiresAt().isBefore(now))
+                        .flatMap(session -> abort(session)
+                                .doOnSuccess(ignored -> log.info("Expired resumable upload [{}] of key [{}] aborted",
+                                        session.id(), session.storagePath())))
+                        .onErrorResume(ex -> {
+                            log.warn("Unable to clean up resumable upload [{}]: {}", object.key(), ex.getMessage());
+                            return Mono.empty();
+                        }), CLEANUP_CONCURRENCY)
+                .doOnError(ex -> log.error("Resumable upload cleanup failed: [{}]", ex.getMessage(), ex))
+                .onErrorResume(ex -> Mono.empty())
+                .then();
+    }
+
+    private Mono<Void> abort(Session session) {
+        AbortMultipartUploadRequest abortRequest = AbortMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(keyLayout.physical(session.storagePath()))
+                .uploadId(session.uploadId())
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.abortMultipartUpload(abortRequest))
+                .onErrorResume(NoSuchUploadException.class, ex -> Mono.empty())
+                .then(deleteSession(session.id()));
+    }
+
+    private Mono<ResumableUpload> status(Session session) {
+        return listParts(session)
+                .map(parts -> toResumableUpload(session, parts.stream()
+                        .map(part -> (part.partNumber() - 1) * session.chunkSize())
+                        .toList()));
+    }
+
+    private Mono<List<Part>> listParts(Session session) {
+        ListPartsRequest listPartsRequest = ListPartsRequest.builder()
+                .bucket(bucketName)
+                .key(keyLayout.physical(session.storagePath()))
+                .uploadId(session.uploadId())
+                .build();
+
+        return Flux.from(s3Client.listPartsPaginator(listPartsRequest).parts())
+                .collectSortedList(Comparator.comparing(Part::partNumber))
+                .onErrorMap(NoSuchUploadException.class, ex -> notFound(session.id()));
+    }
+
+    private Mono<Void> uploadPart(Session session, int partNumber, byte[] bytes) {
+        UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                .bucket(bucketName)
+                .key(keyLayout.physical(session.storagePath()))
+                .uploadId(session.uploadId())
+                .partNumber(partNumber)
+                .contentLength((long) bytes.length)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.uploadPart(uploadPartRequest, AsyncRequestBody.fromBytesUnsafe(bytes)))
+                .onErrorMap(NoSuchUploadException.class, ex -> notFound(session.id()))
+                .doOnNext(response -> log.debug("Chunk [{}] of resumable upload [{}] stored, {} bytes",
+                        partNumber, session.id(), bytes.length))
+                .then();
+    }
+
+    /**
+     * @throws ResponseStatusException NOT_FOUND for unknown and expired sessions and sessions of another directory
+     */
+    private Mono<Session> loadSession(String id, String directory) {
+        return readSession(id)
+                .filter(session -> session.storagePath().startsWith(directory + "/")
+                        && session.expiresAt().isAfter(Instant.now()))
+                .switchIfEmpty(Mono.error(() -> notFound(id)));
+    }
+
+    private Mono<Session> readSession(String id) {
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(PREFIX + id)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.headObject(headObjectRequest))
+                .map(response -> Session.fromMetadata(id, response.metadata()))
+                .onErrorResume(ex -> ex instanceof NoSuchKeyException
+                        || ex instanceof S3Exception s3Exception && s3Exception.statusCode() == 404, ex -> Mono.empty());
+    }
+
+    private Mono<Void> saveSession(Session session) {
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(PREFIX + session.id())
+                .contentLength(0L)
+                .metadata(session.toMetadata())
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.putObject(putObjectRequest, AsyncRequestBody.empty())).then();
+    }
+
+    private Mono<Void> deleteSession(String id) {
+        DeleteObjectRequest deleteObjectRequest = DeleteObjectRequest.builder()
+                .bucket(bucketName)
+                .key(PREFIX + id)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.deleteObject(deleteObjectRequest)).then();
+    }
+
+    private void requireS3() {
+        if (!available) {
+            throw new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "Resumable uploads need the s3 storage backend");
+        }
+    }
+
+    private static ResponseStatusException notFound(String id) {
+        return new ResponseStatusException(HttpStatus.NOT_FOUND, "Resumable upload " + id + " not found");
+    }
+
+    private static ResponseStatusException wrongLength(long offset, long expectedLength) {
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                String.format("Chunk at offset %d has to be %d bytes", offset, expectedLength));
+    }
+
+    private static ResumableUpload toResumableUpload(Session session, List<Long> receivedOffsets) {
+        return new ResumableUpload(session.id(), session.filename(), session.size(), session.chunkSize(),
+                receivedOffsets, session.expiresAt());
+    }
+
+    private static byte[] drain(DataBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableByteCount()];
+        buffer.read(bytes);
+        DataBufferUtils.release(buffer);
+        return bytes;
+    }
+}
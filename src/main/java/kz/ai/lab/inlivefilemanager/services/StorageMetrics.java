@@ -0,0 +1,76 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Meters of the upload and download paths. S3 call latencies and connection pool usage are
+ * recorded separately from the SDK's own metrics.
+ */
+@Component
+public class StorageMetrics {
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final DistributionSummary partSize;
+    private final AtomicLong uploadsInFlight = new AtomicLong();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+
+    public StorageMetrics(MeterRegistry registry) {
+        this.bytesIn = Counter.builder("storage.bytes")
+                .description("File content received from clients and sent to clients")
+                .baseUnit("bytes")
+                .tag("direction", "in")
+                .register(registry);
+        this.bytesOut = Counter.builder("storage.bytes")
+                .description("File content received from clients and sent to clients")
+                .baseUnit("bytes")
+                .tag("direction", "out")
+                .register(registry);
+        this.partSize = DistributionSummary.builder("storage.multipart.part.size")
+                .description("Size of the parts of multipart uploads")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(registry);
+
+        Gauge.builder("storage.uploads.in.flight", uploadsInFlight, AtomicLong::get)
+                .description("Uploads currently streaming to S3")
+                .register(registry);
+        Gauge.builder("storage.buffered.bytes", bufferedBytes, AtomicLong::get)
+                .description("Upload content held in memory waiting for or during a PutObject/UploadPart")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    public <T> Mono<T> trackUpload(Mono<T> upload) {
+        return Mono.defer(() -> {
+            uploadsInFlight.incrementAndGet();
+            return upload.doFinally(signal -> uploadsInFlight.decrementAndGet());
+        });
+    }
+
+    public void received(long bytes) {
+        bytesIn.increment(bytes);
+    }
+
+    public void sent(long bytes) {
+        bytesOut.increment(bytes);
+    }
+
+    public void partUploaded(long bytes) {
+        partSize.record(bytes);
+    }
+
+    public void buffered(long bytes) {
+        bufferedBytes.addAndGet(bytes);
+    }
+
+    public void released(long bytes) {
+        bufferedBytes.addAndGet(-bytes);
+    }
+}
@@ -1,171 +1,328 @@
 package kz.ai.lab.inlivefilemanager.services;
 
+import kz.ai.lab.inlivefilemanager.dto.FileMetadata;
 import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import kz.ai.lab.inlivefilemanager.storage.S3StorageBackend;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.stereotype.Service;
-import software.amazon.awssdk.core.ResponseBytes;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.*;
-
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 @Service
 @Slf4j
 public class StorageService {
-    private final S3Client s3Client;
-    private final String bucketName;
-
-    public StorageService(S3Client s3Client,
-                          @Value("${aws.s3.bucket}") String bucketName) {
-        this.s3Client = s3Client;
-        this.bucketName = bucketName;
-        log.info("StorageService initialized with bucket: {}", bucketName);
+    private final StorageBackend storageBackend;
+    private final FileCache fileCache;
+    private final DedupService dedupService;
+    private final MetadataIndex metadataIndex;
+    private final StorageMetrics storageMetrics;
+    private final ParallelDownloadService parallelDownloadService;
+    private final FetchCoalescer fetchCoalescer;
+    private final DeleteBatcher deleteBatcher;
+
+    public StorageService(StorageBackend storageBackend,
+                          FileCache fileCache,
+                          DedupService dedupService,
+                          MetadataIndex metadataIndex,
+                          StorageMetrics storageMetrics,
+                          ParallelDownloadService parallelDownloadService,
+                          FetchCoalescer fetchCoalescer,
+                          DeleteBatcher deleteBatcher) {
+        if (dedupService.isEnabled() && !(storageBackend instanceof S3StorageBackend)) {
+            throw new IllegalStateException("Deduplication is only supported with the s3 storage backend");
+        }
+        this.storageBackend = storageBackend;
+        this.fileCache = fileCache;
+        this.dedupService = dedupService;
+        this.metadataIndex = metadataIndex;
+        this.storageMetrics = storageMetrics;
+        this.parallelDownloadService = parallelDownloadService;
+        this.fetchCoalescer = fetchCoalescer;
+        this.deleteBatcher = deleteBatcher;
+        log.info("StorageService initialized with backend: {}", storageBackend.getClass().getSimpleName());
     }
 
-    public String uploadFile(InputStream inputStream,
-                             String filename,
-                             String directory,
-                             boolean generateFileName) {
-        try {
-            byte[] fileBytes = inputStream.readAllBytes();
-            long fileSize = fileBytes.length;
-
-            if (generateFileName) {
-                String extension = "";
-                int dotIdx = filename.lastIndexOf(".");
-                if (dotIdx != -1) {
-                    extension = filename.substring(dotIdx);
-                }
-                filename = UUID.randomUUID() + extension;
-            }
-
-            String contentType = Files.probeContentType(new File(filename).toPath());
-            if (contentType == null) {
-                contentType = "application/octet-stream";
-            }
-
-            String storagePath = String.format("%s/%s", directory, filename);
-
-            Map<String, String> metadata = new HashMap<>();
-            metadata.put("filename", filename);
-            metadata.put("content-type", contentType);
-            metadata.put("content-length", String.valueOf(fileSize));
-
-            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(storagePath)
-                    .contentType(contentType)
-                    .contentLength(fileSize)
-                    .metadata(metadata)
-                    .build();
+    public Mono<String> uploadFile(Flux<DataBuffer> content,
+                                   String filename,
+                                   String directory,
+                                   boolean generateFileName) {
+        return uploadFile(content, filename, directory, generateFileName, UploadInspection.Expected.NONE);
+    }
 
-            s3Client.putObject(putObjectRequest, RequestBody.fromBytes(fileBytes));
+    public Mono<String> uploadFile(Flux<DataBuffer> content,
+                                   String filename,
+                                   String directory,
+                                   boolean generateFileName,
+                                   UploadInspection.Expected expected) {
+        return uploadFile(content, filename, directory, generateFileName, expected, stored -> {
+        });
+    }
 
-            log.info("File [{}] uploaded successfully to key [{}].", filename, storagePath);
-            return filename;
+    /**
+     * The content is inspected in the same pass that stores it: its media type is sniffed from the first
+     * buffer before the write starts, and checksums the client sent are verified before the write commits.
+     * A mismatch fails the upload with a {@link ResponseStatusException} BAD_REQUEST.
+     *
+     * @param onStored called with the stored name once the file is stored; an upload that failed is
+     *                 answered with a message in place of the name, and this is not called for it
+     */
+    public Mono<String> uploadFile(Flux<DataBuffer> content,
+                                   String filename,
+                                   String directory,
+                                   boolean generateFileName,
+                                   UploadInspection.Expected expected,
+                                   Consumer<String> onStored) {
+        String objectName = generateFileName ? generateFileName(filename) : filename;
+        String guessedContentType = probeContentType(objectName);
+        String storagePath = String.format("%s/%s", directory, objectName);
+
+        return storageMetrics.trackUpload(Mono.defer(() -> {
+                    UploadInspection inspection = new UploadInspection(expected, dedupService.isEnabled());
+                    Flux<DataBuffer> inspected = inspection.inspect(
+                            content.doOnNext(buffer -> storageMetrics.received(buffer.readableByteCount())));
+
+                    return inspected.switchOnFirst((first, all) -> {
+                        String contentType = inspection.contentType(guessedContentType);
+                        Map<String, String> metadata = metadata(objectName, contentType);
+
+                        if (!dedupService.isEnabled()) {
+                            return storageBackend.put(storagePath, all, contentType, metadata);
+                        }
+
+                        // the content is stored under a staging key until its hash is known
+                        String stagingKey = dedupService.stagingKey();
+                        return storageBackend.put(stagingKey, all, contentType, metadata)
+                                .then(Mono.defer(() -> dedupService.commit(stagingKey, inspection.sha256Hex(),
+                                        storagePath, contentType, metadata, inspection.size())));
+                    }).then();
+                })
+                .then(Mono.defer(() -> {
+                    fileCache.invalidate(storagePath);
+                    fetchCoalescer.invalidate(storagePath);
+                    return metadataIndex.refresh(storagePath);
+                }))
+                .then(Mono.fromSupplier(() -> {
+                    log.debug("File [{}] uploaded successfully to key [{}].", objectName, storagePath);
+                    return objectName;
+                }))
+                .doOnNext(onStored)
+                // a rejected upload is the client's fault and answered with its status, not reported as a failure
+                .onErrorResume(ex -> !(ex instanceof ResponseStatusException), ex -> {
+                    log.error("Error Occurred: [{}]", ex.getMessage(), ex);
+                    return Mono.just(filename.concat(" failed to upload"));
+                }));
+    }
 
-        } catch (IOException ioe) {
-            log.error("Error Occurred: [{}]", ioe.getMessage(), ioe);
+    /**
+     * Points a new file at already stored content with the given SHA-256, so a client that knows the hash
+     * up front does not have to upload the content again.
+     *
+     * @return the stored file name, empty when no content with this hash is stored
+     */
+    public Mono<String> uploadExisting(String sha256,
+                                       String filename,
+                                       String directory,
+                                       boolean generateFileName) {
+        if (!dedupService.isEnabled()) {
+            return Mono.empty();
         }
 
-        return filename.concat(" failed to upload");
+        String objectName = generateFileName ? generateFileName(filename) : filename;
+        String contentType = probeContentType(objectName);
+        String storagePath = String.format("%s/%s", directory, objectName);
+        String hash = sha256.toLowerCase(Locale.ROOT);
+
+        return dedupService.link(hash, storagePath, contentType, metadata(objectName, contentType))
+                .flatMap(size -> {
+                    fileCache.invalidate(storagePath);
+                    fetchCoalescer.invalidate(storagePath);
+                    return metadataIndex.refresh(storagePath).thenReturn(objectName);
+                })
+                .doOnNext(name -> log.debug("File [{}] linked to stored content [{}] at key [{}].", name, hash, storagePath));
     }
 
-    public String deleteFile(String filename, String directory) {
-        try {
-            String storagePath = String.format("%s/%s", directory, filename);
-
-            DeleteObjectRequest deleteObjectRequest = DeleteObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(storagePath)
-                    .build();
-
-            s3Client.deleteObject(deleteObjectRequest);
-
-            log.info("File [{}] deleted successfully at key [{}]", filename, storagePath);
-
-            return String.format("File [%s] deleted successfully", filename);
+    private static Map<String, String> metadata(String filename, String contentType) {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("filename", filename);
+        metadata.put("content-type", contentType);
+        return metadata;
+    }
 
-        } catch (Exception ex) {
-            log.error("Error Occurred: [{}]", ex.getMessage(), ex);
+    static String generateFileName(String filename) {
+        String extension = "";
+        int dotIdx = filename.lastIndexOf(".");
+        if (dotIdx != -1) {
+            extension = filename.substring(dotIdx);
         }
-
-        return "Unable to delete file: " + filename;
+        return UUID.randomUUID() + extension;
     }
 
-    public String deleteFolder(String folderName) {
-        try {
-            // Префикс как "folder/" — как твой "directory"
-            String prefix = folderName.endsWith("/") ? folderName : folderName + "/";
-
-            ListObjectsV2Request listReq = ListObjectsV2Request.builder()
-                    .bucket(bucketName)
-                    .prefix(prefix)
-                    .build();
+    static String probeContentType(String filename) {
+        return MediaTypeFactory.getMediaType(filename)
+                .map(MediaType::toString)
+                .orElse("application/octet-stream");
+    }
 
-            ListObjectsV2Response listRes = s3Client.listObjectsV2(listReq);
+    /**
+     * The object is deleted together with others requested at about the same time, see {@link DeleteBatcher}.
+     * The derivatives of an image go with it, see {@link #deleteDerivatives(String, String, FileMetadata)}.
+     */
+    public Mono<String> deleteFile(String filename, String directory) {
+        String storagePath = String.format("%s/%s", directory, filename);
+
+        Mono<Optional<String>> referencedHash = dedupService.isEnabled()
+                ? dedupService.referencedHash(storagePath).map(Optional::of).defaultIfEmpty(Optional.empty())
+                : Mono.just(Optional.empty());
+
+        FileMetadata known = indexed(storagePath);
+
+        return referencedHash
+                .flatMap(hash -> deleteBatcher.delete(storagePath)
+                        .then(hash.map(value -> dedupService.releaseReference(value, storagePath)).orElse(Mono.empty())))
+                .then(deleteDerivatives(filename, directory, known))
+                .then(Mono.fromSupplier(() -> {
+                    fileCache.invalidate(storagePath);
+                    fetchCoalescer.invalidate(storagePath);
+                    metadataIndex.remove(storagePath);
+                    log.debug("File [{}] deleted successfully at key [{}]", filename, storagePath);
+                    return String.format("File [%s] deleted successfully", filename);
+                }))
+                .onErrorResume(ex -> {
+                    log.error("Error Occurred: [{}]", ex.getMessage(), ex);
+                    return Mono.just("Unable to delete file: " + filename);
+                });
+    }
 
-            if (listRes.contents().isEmpty()) {
-                log.info("Folder [{}] is empty or does not exist", folderName);
-            } else {
-                List<ObjectIdentifier> toDelete = listRes.contents().stream()
-                        .map(obj -> ObjectIdentifier.builder().key(obj.key()).build())
-                        .toList();
+    /**
+     * Derivatives are only generated from images, so only the derivative directory of a file named or
+     * indexed as an image is listed; other deletes cost no request for it. Derivatives of an image stored
+     * under another name, and of previous versions of an overwritten one, are left to
+     * {@link ImageDerivativeService#cleanup()}.
+     */
+    private Mono<Void> deleteDerivatives(String filename, String directory, FileMetadata known) {
+        boolean image = probeContentType(filename).startsWith("image/")
+                || known != null && known.contentType() != null && known.contentType().startsWith("image/");
+        if (KeyLayout.isInternal(directory) || !image) {
+            return Mono.empty();
+        }
 
-                Delete del = Delete.builder().objects(toDelete).build();
+        String derivativeDirectory = ImageDerivativeService.derivativeDirectory(directory, filename);
+        return storageBackend.list(derivativeDirectory + "/")
+                .map(summary -> summary.key().substring(derivativeDirectory.length() + 1))
+                .collectList()
+                .filter(names -> !names.isEmpty())
+                .flatMapMany(names -> deleteFiles(names, derivativeDirectory))
+                .then()
+                .onErrorResume(ex -> {
+                    log.warn("Unable to delete derivatives of [{}/{}]: {}", directory, filename, ex.getMessage());
+                    return Mono.empty();
+                });
+    }
 
-                DeleteObjectsRequest delReq = DeleteObjectsRequest.builder()
-                        .bucket(bucketName)
-                        .delete(del)
-                        .build();
+    /**
+     * Deletes the files with as few DeleteObjects calls as their number allows.
+     *
+     * @return the result of each file, in the order of {@code filenames}
+     */
+    public Flux<String> deleteFiles(List<String> filenames, String directory) {
+        return Flux.fromIterable(filenames)
+                .flatMapSequential(filename -> deleteFile(filename, directory), DeleteBatcher.MAX_BATCH_SIZE);
+    }
 
-                s3Client.deleteObjects(delReq);
-            }
+    /**
+     * Files the backend serves from a local file are not copied into the cache, they are sent zero-copy.
+     * Large files are downloaded as parallel ranges, their size is looked up like {@link #getFileMetadata}
+     * does, mostly without a call to the backend. Concurrent requests for a file share one fetch.
+     */
+    public Mono<S3Blob> getFile(String filename, String directory) {
+        String storagePath = String.format("%s/%s", directory, filename);
+
+        S3Blob cached = fileCache.get(storagePath);
+        if (cached != null) {
+            log.debug("File [{}] served from cache", storagePath);
+            return Mono.just(cached);
+        }
 
-            log.info("Folder [{}] deleted successfully", folderName);
-            return String.format("Folder [%s] deleted successfully", folderName);
+        Mono<S3Blob> fetch = Mono.defer(() -> {
+            long generation = fileCache.generation();
+            Mono<S3Blob> fetched = !parallelDownloadService.isEnabled()
+                    ? storageBackend.get(storagePath)
+                    : getFileMetadata(filename, directory).flatMap(known ->
+                            parallelDownloadService.appliesTo(known.contentLength())
+                                    ? parallelDownloadService.download(storagePath, known, 0, known.contentLength() - 1)
+                                    : storageBackend.get(storagePath));
 
-        } catch (Exception ex) {
-            log.error("Error Occurred: [{}]", ex.getMessage(), ex);
-        }
+            return fetched.flatMap(blob -> blob.fileRegion() != null ? Mono.just(blob) : fileCache.put(storagePath, generation, blob));
+        });
 
-        return "Unable to delete folder: " + folderName;
+        return fetchCoalescer.coalesce(storagePath, 0, -1, fetch,
+                (from, to) -> storageBackend.get(storagePath, from, to).flatMapMany(S3Blob::content));
     }
 
-    public S3Blob getFile(String filename, String directory) {
-        try {
-            String storagePath = String.format("%s/%s", directory, filename);
-
-            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(storagePath)
-                    .build();
+    /**
+     * Streams only the inclusive byte range {@code [start, end]} of the file.
+     */
+    public Mono<S3Blob> getFile(String filename, String directory, long start, long end) {
+        String storagePath = String.format("%s/%s", directory, filename);
 
-            ResponseBytes<GetObjectResponse> s3Object = s3Client.getObjectAsBytes(getObjectRequest);
+        S3Blob cached = fileCache.get(storagePath, start, end);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
 
-            String contentType = s3Object.response().contentType();
-            if (contentType == null || contentType.isBlank()) {
-                contentType = "application/octet-stream";
+        Mono<S3Blob> fetch = Mono.defer(() -> {
+            if (!parallelDownloadService.appliesTo(end - start + 1)) {
+                return storageBackend.get(storagePath, start, end);
             }
+            return getFileMetadata(filename, directory).flatMap(known -> end < known.contentLength()
+                    ? parallelDownloadService.download(storagePath, known, start, end)
+                    : storageBackend.get(storagePath, start, end));
+        });
+
+        return fetchCoalescer.coalesce(storagePath, start, end, fetch,
+                (from, to) -> storageBackend.get(storagePath, start + from, start + to).flatMapMany(S3Blob::content));
+    }
 
-            byte[] content = s3Object.asByteArray();
+    public Mono<FileMetadata> getFileMetadata(String filename, String directory) {
+        String storagePath = String.format("%s/%s", directory, filename);
 
-            log.info("File [{}] fetched from key [{}].", filename, storagePath);
-            return new S3Blob(content, contentType);
+        FileMetadata indexed = indexed(storagePath);
+        if (indexed != null) {
+            return Mono.just(indexed);
+        }
 
-        } catch (Exception ex) {
-            log.error("Error Occurred: [{}]", ex.getMessage(), ex);
+        FileMetadata cached = fileCache.getMetadata(storagePath);
+        if (cached != null) {
+            return Mono.just(cached);
         }
 
-        return null;
+        return storageBackend.head(storagePath)
+                .doOnNext(metadata -> {
+                    fileCache.putMetadata(storagePath, metadata);
+                    metadataIndex.put(storagePath, metadata);
+                })
+                .doOnError(ex -> log.error("Error Occurred: [{}]", ex.getMessage(), ex));
+    }
+
+    /**
+     * The index is not consulted for a file that is being uploaded through a presigned URL, it may have
+     * changed since it was indexed.
+     */
+    private FileMetadata indexed(String storagePath) {
+        return fileCache.isBypassed(storagePath) ? null : metadataIndex.get(storagePath);
     }
 }
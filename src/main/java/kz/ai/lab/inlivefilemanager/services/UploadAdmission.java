@@ -0,0 +1,307 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Admission control for uploads. An upload is admitted once the in-flight byte budget and a write slot
+ * are available; until then it waits in a bounded FIFO queue for at most the queue timeout. Each user
+ * may have a limited number of uploads admitted or queued at once, so one client cannot take the whole
+ * budget.
+ * <p>
+ * The bytes reserved for an upload are what it holds in memory at most: its request size, capped at
+ * the parts a multipart upload buffers. Uploads over capacity are rejected with
+ * 503 (service busy) or 429 (user over their share), both with a {@code Retry-After}. Memory held for
+ * an upload beyond that, such as a copy of its content, is taken from the same budget with
+ * {@link #tryReserve(long)}.
+ */
+@Slf4j
+@Component
+public class UploadAdmission {
+    private final long maxInFlightBytes;
+    private final int maxPerUser;
+    private final int maxQueue;
+    private final Duration queueTimeout;
+    private final Duration retryAfter;
+    private final long uploadBufferSize;
+
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private final Map<String, Integer> perUser = new HashMap<>();
+    private long availableBytes;
+    private int availableWrites;
+
+    private final Counter rejectedBusy;
+    private final Counter rejectedUser;
+
+    public UploadAdmission(MeterRegistry registry,
+                           @Value("${application.uploads.admission.max-in-flight-bytes}") long maxInFlightBytes,
+                           @Value("${application.uploads.admission.max-concurrent-writes}") int maxConcurrentWrites,
+                           @Value("${application.uploads.admission.max-per-user}") int maxPerUser,
+                           @Value("${application.uploads.admission.max-queue}") int maxQueue,
+                           @Value("${application.uploads.admission.queue-timeout}") Duration queueTimeout,
+                           @Value("${application.uploads.admission.retry-after}") Duration retryAfter,
+                           @Value("${aws.s3.multipart.part-size}") long partSize,
+                           @Value("${aws.s3.multipart.concurrency}") int partConcurrency) {
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.maxPerUser = maxPerUser;
+        this.maxQueue = maxQueue;
+        this.queueTimeout = queueTimeout;
+        this.retryAfter = retryAfter;
+        this.uploadBufferSize = (partConcurrency + 1L) * partSize;
+        this.availableBytes = maxInFlightBytes;
+        this.availableWrites = maxConcurrentWrites;
+
+        Gauge.builder("storage.uploads.admission.queued", this, admission -> admission.queued())
+                .description("Uploads waiting for admission")
+                .register(registry);
+        Gauge.builder("storage.uploads.admission.reserved.bytes", this, admission -> admission.reservedBytes())
+                .description("Bytes reserved by admitted uploads")
+                .baseUnit("bytes")
+                .register(registry);
+        this.rejectedBusy = Counter.builder("storage.uploads.admission.rejected")
+                .description("Uploads rejected by admission control")
+                .tag("reason", "busy")
+                .register(registry);
+        this.rejectedUser = Counter.builder("storage.uploads.admission.rejected")
+                .description("Uploads rejected by admission control")
+                .tag("reason", "user-limit")
+                .register(registry);
+    }
+
+    /**
+     * An upload rejected by admission control, the client should retry after {@link #getRetryAfter()}.
+     */
+    public static class Rejected extends ResponseStatusException {
+        private final Duration retryAfter;
+
+        Rejected(HttpStatus status, String reason, Duration retryAfter) {
+            super(status, reason);
+            this.retryAfter = retryAfter;
+        }
+
+        public Duration getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    private final class Waiter {
+        private final String user;
+        private final long bytes;
+        private final MonoSink<Permit> sink;
+        private Permit permit;
+
+        private Waiter(String user, long bytes, MonoSink<Permit> sink) {
+            this.user = user;
+            this.bytes = bytes;
+            this.sink = sink;
+        }
+    }
+
+    private final class Permit {
+        private final String user;
+        private final long bytes;
+        private boolean released;
+
+        private Permit(String user, long bytes) {
+            this.user = user;
+            this.bytes = bytes;
+        }
+
+        private void release() {
+            List<Waiter> granted;
+            synchronized (UploadAdmission.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                availableBytes += bytes;
+                availableWrites++;
+                leave(user);
+                granted = grantWaiting();
+            }
+            signal(granted);
+        }
+    }
+
+    /**
+     * Bytes reserved without a write slot and without waiting, see {@link #tryReserve(long)}.
+     */
+    public final class Reservation {
+        private final long bytes;
+        private boolean released;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public void release() {
+            List<Waiter> granted;
+            synchronized (UploadAdmission.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                availableBytes += bytes;
+                granted = grantWaiting();
+            }
+            signal(granted);
+        }
+    }
+
+    /**
+     * Reserves bytes from the in-flight budget if they are available now and no upload is waiting for them.
+     *
+     * @return {@code null} when the bytes are not available
+     */
+    public Reservation tryReserve(long bytes) {
+        synchronized (this) {
+            if (!queue.isEmpty() || availableBytes < bytes) {
+                return null;
+            }
+            availableBytes -= bytes;
+        }
+        return new Reservation(bytes);
+    }
+
+    /**
+     * @param contentLength the request size if the client sent one
+     * @return bytes to reserve for an upload of that size
+     */
+    public long reservation(OptionalLong contentLength) {
+        long bytes = contentLength.isPresent() ? Math.min(contentLength.getAsLong(), uploadBufferSize) : uploadBufferSize;
+        return Math.max(1, Math.min(bytes, maxInFlightBytes));
+    }
+
+    /**
+     * Runs the upload once admitted and releases its reservation when it terminates or is cancelled.
+     *
+     * @throws Rejected as an error signal when the upload is not admitted
+     */
+    public <T> Mono<T> admit(String user, long bytes, Mono<T> upload) {
+        return Mono.usingWhen(acquire(user, bytes),
+                permit -> upload,
+                permit -> Mono.fromRunnable(permit::release));
+    }
+
+    private Mono<Permit> acquire(String user, long bytes) {
+        return Mono.<Permit>create(sink -> {
+                    Waiter waiter = new Waiter(user, bytes, sink);
+                    Permit permit = null;
+                    Rejected rejected = null;
+                    synchronized (this) {
+                        if (perUser.getOrDefault(user, 0) >= maxPerUser) {
+                            rejectedUser.increment();
+                            rejected = new Rejected(HttpStatus.TOO_MANY_REQUESTS,
+                                    "Too many concurrent uploads, at most " + maxPerUser + " per user", retryAfter);
+                        } else if (queue.isEmpty() && fits(bytes)) {
+                            enter(user);
+                            permit = grant(user, bytes);
+                        } else if (queue.size() >= maxQueue) {
+                            rejectedBusy.increment();
+                            rejected = new Rejected(HttpStatus.SERVICE_UNAVAILABLE, "Upload capacity exhausted", retryAfter);
+                        } else {
+                            enter(user);
+                            queue.addLast(waiter);
+                        }
+                    }
+
+                    // subscribers are signalled outside the lock, the upload starts on this thread
+                    if (rejected != null) {
+                        sink.error(rejected);
+                    } else if (permit != null) {
+                        sink.success(permit);
+                    } else {
+                        sink.onCancel(() -> cancel(waiter));
+                    }
+                })
+                .timeout(queueTimeout)
+                .onErrorMap(TimeoutException.class, ex -> {
+                    rejectedBusy.increment();
+                    log.debug("Upload of user [{}] not admitted within {}", user, queueTimeout);
+                    return new Rejected(HttpStatus.SERVICE_UNAVAILABLE, "Upload capacity exhausted", retryAfter);
+                });
+    }
+
+    /**
+     * A waiter that timed out or went away leaves the queue; if it was granted in the meantime the
+     * reservation goes back.
+     */
+    private void cancel(Waiter waiter) {
+        List<Waiter> granted;
+        Permit permit;
+        synchronized (this) {
+            if (queue.remove(waiter)) {
+                leave(waiter.user);
+                granted = grantWaiting();
+                permit = null;
+            } else {
+                granted = List.of();
+                permit = waiter.permit;
+            }
+        }
+        signal(granted);
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    /**
+     * Strictly first come, first served: a large upload at the head is not overtaken by smaller ones.
+     */
+    private List<Waiter> grantWaiting() {
+        List<Waiter> granted = new ArrayList<>();
+        while (!queue.isEmpty() && fits(queue.peekFirst().bytes)) {
+            Waiter waiter = queue.pollFirst();
+            waiter.permit = grant(waiter.user, waiter.bytes);
+            granted.add(waiter);
+        }
+        return granted;
+    }
+
+    private static void signal(List<Waiter> granted) {
+        granted.forEach(waiter -> waiter.sink.success(waiter.permit));
+    }
+
+    private boolean fits(long bytes) {
+        return availableWrites > 0 && availableBytes >= bytes;
+    }
+
+    private Permit grant(String user, long bytes) {
+        availableBytes -= bytes;
+        availableWrites--;
+        return new Permit(user, bytes);
+    }
+
+    private void enter(String user) {
+        perUser.merge(user, 1, Integer::sum);
+    }
+
+    private void leave(String user) {
+        perUser.computeIfPresent(user, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private synchronized int queued() {
+        return queue.size();
+    }
+
+    private synchronized long reservedBytes() {
+        return maxInFlightBytes - availableBytes;
+    }
+}
@@ -0,0 +1,241 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+/**
+ * Looks at upload content as it streams by, without holding on to it: the media type is sniffed from
+ * the leading bytes and the digests the client sent checksums for are updated buffer by buffer. When
+ * the content ends the checksums are verified, a mismatch fails the content stream itself, so the
+ * storage backend never commits corrupted content.
+ * <p>
+ * One inspection per upload, not thread-safe; buffers of one upload arrive one after another.
+ */
+public class UploadInspection {
+    public static final String CHECKSUM_CRC32C_HEADER = "x-amz-checksum-crc32c";
+    public static final String CHECKSUM_SHA256_HEADER = "x-amz-checksum-sha256";
+    private static final String CONTENT_MD5_HEADER = "Content-MD5";
+
+    private static final String OCTET_STREAM = "application/octet-stream";
+    private static final int SNIFF_LENGTH = 16;
+
+    private final Expected expected;
+    private final CRC32C crc32c;
+    private final MessageDigest sha256;
+    private final MessageDigest md5;
+    private final byte[] prefix = new byte[SNIFF_LENGTH];
+    private int prefixLength;
+    private long size;
+    private String sha256Hex;
+
+    /**
+     * Checksums the client sent along with the content, base64 encoded as in the S3 API.
+     */
+    public record Expected(String md5, String crc32c, String sha256) {
+        public static final Expected NONE = new Expected(null, null, null);
+
+        public static Expected from(HttpHeaders headers) {
+            return new Expected(headers.getFirst(CONTENT_MD5_HEADER),
+                    headers.getFirst(CHECKSUM_CRC32C_HEADER),
+                    headers.getFirst(CHECKSUM_SHA256_HEADER));
+        }
+    }
+
+    /**
+     * @param sha256 computes the SHA-256 even if the client sent none, for content addressing
+     */
+    public UploadInspection(Expected expected, boolean sha256) {
+        this.expected = expected;
+        this.crc32c = expected.crc32c() != null ? new CRC32C() : null;
+        this.sha256 = sha256 || expected.sha256() != null ? digest("SHA-256") : null;
+        this.md5 = expected.md5() != null ? digest("MD5") : null;
+    }
+
+    /**
+     * @return the content, inspected as it passes and failing with 400 on a checksum mismatch
+     */
+    public Flux<DataBuffer> inspect(Flux<DataBuffer> content) {
+        return content.doOnNext(this::update)
+                .concatWith(Mono.defer(this::verify));
+    }
+
+    private void update(DataBuffer buffer) {
+        int readable = buffer.readableByteCount();
+        if (prefixLength < SNIFF_LENGTH) {
+            int length = Math.min(SNIFF_LENGTH - prefixLength, readable);
+            for (int i = 0; i < length; i++) {
+                prefix[prefixLength++] = buffer.getByte(buffer.readPosition() + i);
+            }
+        }
+
+        if (crc32c != null || sha256 != null || md5 != null) {
+            try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+                while (iterator.hasNext()) {
+                    ByteBuffer byteBuffer = iterator.next();
+                    update(crc32c, byteBuffer);
+                    update(sha256, byteBuffer);
+                    update(md5, byteBuffer);
+                }
+            }
+        }
+        size += readable;
+    }
+
+    private static void update(CRC32C crc, ByteBuffer byteBuffer) {
+        if (crc != null) {
+            crc.update(byteBuffer.duplicate());
+        }
+    }
+
+    private static void update(MessageDigest digest, ByteBuffer byteBuffer) {
+        if (digest != null) {
+            digest.update(byteBuffer.duplicate());
+        }
+    }
+
+    private Mono<DataBuffer> verify() {
+        if (md5 != null) {
+            mismatch("Content-MD5", expected.md5(), Base64.getEncoder().encodeToString(md5.digest()));
+        }
+        if (crc32c != null) {
+            mismatch(CHECKSUM_CRC32C_HEADER, expected.crc32c(), crc32cBase64(crc32c.getValue()));
+        }
+        if (sha256 != null) {
+            byte[] digest = sha256.digest();
+            sha256Hex = HexFormat.of().formatHex(digest);
+            if (expected.sha256() != null) {
+                mismatch(CHECKSUM_SHA256_HEADER, expected.sha256(), Base64.getEncoder().encodeToString(digest));
+            }
+        }
+        return Mono.empty();
+    }
+
+    private static void mismatch(String header, String expected, String actual) {
+        if (!expected.trim().equals(actual)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    String.format("Checksum mismatch, %s is %s but the content has %s", header, expected, actual));
+        }
+    }
+
+    /**
+     * @return the SHA-256 of the content as hex, once the content has ended
+     */
+    public String sha256Hex() {
+        if (sha256Hex == null) {
+            throw new IllegalStateException("SHA-256 not computed or content not complete");
+        }
+        return sha256Hex;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * The media type of the content as far as its leading bytes tell, once the first buffer has passed.
+     * A sniffed type wins over the one guessed from the name; container formats (zip, gzip, ISO media,
+     * ogg, matroska) only fill in an unknown type, since documents, archives and media share them.
+     */
+    public String contentType(String guessed) {
+        Sniffed sniffed = sniff(Arrays.copyOf(prefix, prefixLength));
+        if (sniffed == null || sniffed.container() && !OCTET_STREAM.equals(guessed)) {
+            return guessed;
+        }
+        return sniffed.type();
+    }
+
+    private record Sniffed(String type, boolean container) {
+    }
+
+    private static Sniffed sniff(byte[] bytes) {
+        if (startsWith(bytes, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+            return new Sniffed("image/png", false);
+        }
+        if (startsWith(bytes, 0, 0xFF, 0xD8, 0xFF)) {
+            return new Sniffed("image/jpeg", false);
+        }
+        if (startsWith(bytes, 0, "GIF87a") || startsWith(bytes, 0, "GIF89a")) {
+            return new Sniffed("image/gif", false);
+        }
+        if (startsWith(bytes, 0, "RIFF") && startsWith(bytes, 8, "WEBP")) {
+            return new Sniffed("image/webp", false);
+        }
+        if (startsWith(bytes, 0, "RIFF") && startsWith(bytes, 8, "WAVE")) {
+            return new Sniffed("audio/wav", false);
+        }
+        if (startsWith(bytes, 0, 'I', 'I', 0x2A, 0x00) || startsWith(bytes, 0, 'M', 'M', 0x00, 0x2A)) {
+            return new Sniffed("image/tiff", false);
+        }
+        if (startsWith(bytes, 0, "%PDF-")) {
+            return new Sniffed("application/pdf", false);
+        }
+        if (startsWith(bytes, 0, "ID3")) {
+            return new Sniffed("audio/mpeg", false);
+        }
+        if (startsWith(bytes, 0, 'P', 'K', 0x03, 0x04)) {
+            return new Sniffed("application/zip", true);
+        }
+        if (startsWith(bytes, 0, 0x1F, 0x8B)) {
+            return new Sniffed("application/gzip", true);
+        }
+        if (startsWith(bytes, 4, "ftyp")) {
+            return new Sniffed("video/mp4", true);
+        }
+        if (startsWith(bytes, 0, "OggS")) {
+            return new Sniffed("application/ogg", true);
+        }
+        if (startsWith(bytes, 0, 0x1A, 0x45, 0xDF, 0xA3)) {
+            return new Sniffed("video/webm", true);
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, String magic) {
+        return startsWith(bytes, offset, magic.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, int... magic) {
+        if (bytes.length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((bytes[offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] magic) {
+        return bytes.length >= offset + magic.length
+                && Arrays.equals(bytes, offset, offset + magic.length, magic, 0, magic.length);
+    }
+
+    /**
+     * The S3 representation of a CRC32C, the big-endian value base64 encoded.
+     */
+    public static String crc32cBase64(long value) {
+        return Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt((int) value).array());
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package kz.ai.lab.inlivefilemanager.storage;
+
+import kz.ai.lab.inlivefilemanager.dto.FileMetadata;
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Keeps files in a local directory or an NFS mount, for installs without S3 and for tests.
+ * <p>
+ * Uploads are written straight from the request buffers to a temporary file through an
+ * {@code AsynchronousFileChannel} and renamed into place once complete, so readers never see a
+ * partial file. Downloads carry the file region, which the router sends zero-copy.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "application.storage.backend", havingValue = "filesystem")
+public class FileSystemStorageBackend implements StorageBackend {
+    private static final String TEMP_DIRECTORY = ".tmp";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Path root;
+    private final Path tempDirectory;
+
+    public FileSystemStorageBackend(@Value("${application.storage.filesystem.root}") Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.tempDirectory = this.root.resolve(TEMP_DIRECTORY);
+        Files.createDirectories(tempDirectory);
+        log.info("FileSystemStorageBackend initialized with root: {}", this.root);
+    }
+
+    @Override
+    public Mono<Void> put(String key, Flux<DataBuffer> content, String contentType, Map<String, String> metadata) {
+        Path target = resolve(key);
+        Path temp = tempDirectory.resolve(UUID.randomUUID().toString());
+
+        return DataBufferUtils.write(content, temp)
+                .then(Mono.<Void>fromCallable(() -> {
+                    Files.createDirectories(target.getParent());
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    log.debug("Key [{}] written to [{}]", key, target);
+                    return null;
+                }).subscribeOn(Schedulers.boundedElastic()))
+                .doOnError(ex -> deleteQuietly(temp))
+                .doOnCancel(() -> deleteQuietly(temp));
+    }
+
+    @Override
+    public Mono<S3Blob> get(String key) {
+        Path path = resolve(key);
+        return attributes(path).map(attributes -> toBlob(key, path, attributes, 0, attributes.size() - 1, false));
+    }
+
+    @Override
+    public Mono<S3Blob> get(String key, long start, long end) {
+        Path path = resolve(key);
+        return attributes(path).map(attributes ->
+                toBlob(key, path, attributes, start, Math.min(end, attributes.size() - 1), true));
+    }
+
+    @Override
+    public Mono<FileMetadata> head(String key) {
+        Path path = resolve(key);
+        return attributes(path).map(attributes -> new FileMetadata(probeContentType(key),
+                attributes.size(),
+                eTag(attributes),
+                attributes.lastModifiedTime().toInstant()));
+    }
+
+    @Override
+    public Mono<Void> delete(String key) {
+        Path path = resolve(key);
+        return Mono.<Void>fromCallable(() -> {
+            Files.deleteIfExists(path);
+            deleteEmptyParents(path);
+            return null;
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @Override
+    public Mono<List<String>> delete(List<String> keys) {
+        return Mono.fromCallable(() -> {
+            List<String> failed = new ArrayList<>();
+            for (String key : keys) {
+                try {
+                    Path path = resolve(key);
+                    Files.deleteIfExists(path);
+                    deleteEmptyParents(path);
+                } catch (IOException | RuntimeException ex) {
+                    log.warn("Unable to delete key [{}]: {}", key, ex.getMessage());
+                    failed.add(key);
+                }
+            }
+            return failed;
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Walks the deepest directory the prefix names, the temporary directory is never listed.
+     */
+    @Override
+    public Flux<ObjectSummary> list(String prefix) {
+        int slash = prefix.lastIndexOf('/');
+        Path directory = slash < 0 ? root : resolve(prefix.substring(0, slash));
+
+        return Flux.using(() -> walk(directory),
+                        paths -> Flux.fromStream(paths
+                                .filter(Files::isRegularFile)
+                                .map(this::toKey)
+                                .filter(key -> key.startsWith(prefix) && !key.startsWith(TEMP_DIRECTORY + "/"))),
+                        Stream::close)
+                .concatMap(key -> attributes(resolve(key))
+                        .map(attributes -> new ObjectSummary(key,
+                                attributes.size(),
+                                eTag(attributes),
+                                attributes.lastModifiedTime().toInstant())))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private Stream<Path> walk(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Stream.empty();
+        }
+        return Files.walk(directory).sorted();
+    }
+
+    private S3Blob toBlob(String key, Path path, BasicFileAttributes attributes, long start, long end, boolean ranged) {
+        long length = Math.max(0, end - start + 1);
+
+        Flux<DataBuffer> content = DataBufferUtils.takeUntilByteCount(DataBufferUtils.read(new FileSystemResource(path),
+                start, DefaultDataBufferFactory.sharedInstance, READ_BUFFER_SIZE), length);
+
+        String contentRange = ranged
+                ? String.format("bytes %d-%d/%d", start, end, attributes.size())
+                : null;
+
+        return new S3Blob(content,
+                probeContentType(key),
+                length,
+                contentRange,
+                eTag(attributes),
+                attributes.lastModifiedTime().toInstant(),
+                new ResourceRegion(new FileSystemResource(path), start, length));
+    }
+
+    private Mono<BasicFileAttributes> attributes(Path path) {
+        return Mono.fromCallable(() -> {
+                    try {
+                        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                        return attributes.isRegularFile() ? attributes : null;
+                    } catch (NoSuchFileException ex) {
+                        return null;
+                    }
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key points outside the root
+     */
+    private Path resolve(String key) {
+        Path path = root.resolve(key).normalize();
+        if (!path.startsWith(root) || path.equals(root)) {
+            throw new IllegalArgumentException("Key outside of the storage root: " + key);
+        }
+        return path;
+    }
+
+    private String toKey(Path path) {
+        return root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     * Directories are created on upload, removing them once empty keeps listings and the mount tidy.
+     */
+    private void deleteEmptyParents(Path path) {
+        Path parent = path.getParent();
+        while (parent != null && !parent.equals(root)) {
+            try {
+                Files.delete(parent);
+            } catch (IOException ex) {
+                // not empty or already gone
+                return;
+            }
+            parent = parent.getParent();
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            log.warn("Unable to delete temporary file [{}]: {}", path, ex.getMessage());
+        }
+    }
+
+    /**
+     * Not a content hash, but it changes whenever the file is rewritten, which is all conditional requests need.
+     */
+    private static String eTag(BasicFileAttributes attributes) {
+        return String.format("\"%x-%x\"", attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+
+    private static String probeContentType(String key) {
+        return MediaTypeFactory.getMediaType(key)
+                .map(MediaType::toString)
+                .orElse("application/octet-stream");
+    }
+}
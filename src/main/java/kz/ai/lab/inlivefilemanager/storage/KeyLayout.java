@@ -0,0 +1,91 @@
+package kz.ai.lab.inlivefilemanager.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Maps the {@code directory/filename} path of a file to the key it is stored under in S3, selected with
+ * {@code application.storage.key-layout}.
+ * <p>
+ * {@code flat} stores files under their path. {@code sharded} inserts a two hex digit shard derived from
+ * the path, {@code directory/3f/filename}, so the files of a busy directory spread over 256 prefixes that
+ * S3 scales independently instead of sharing the request rate of one. The directory stays a prefix of all
+ * its keys, so a folder is still listed and deleted with one listing. Internal keys (starting with a dot)
+ * are never sharded.
+ * <p>
+ * Files stored before the switch to {@code sharded} keep their flat key until {@code KeyLayoutMigration}
+ * moves them, reads fall back to the flat key meanwhile.
+ */
+@Component
+public class KeyLayout {
+    private final boolean sharded;
+
+    public KeyLayout(@Value("${application.storage.key-layout}") String layout) {
+        this.sharded = switch (layout) {
+            case "flat" -> false;
+            case "sharded" -> true;
+            default -> throw new IllegalArgumentException("Unknown key layout [" + layout + "], expected flat or sharded");
+        };
+    }
+
+    public boolean isSharded() {
+        return sharded;
+    }
+
+    /**
+     * @return the key the file at {@code path} is written to
+     */
+    public String physical(String path) {
+        int slash = path.lastIndexOf('/');
+        if (!sharded || slash == -1 || isInternal(path)) {
+            return path;
+        }
+        return path.substring(0, slash + 1) + shard(path) + path.substring(slash);
+    }
+
+    /**
+     * @return the keys the file at {@code path} may be stored under, the current one first
+     */
+    public List<String> candidates(String path) {
+        String physical = physical(path);
+        return physical.equals(path) ? List.of(path) : List.of(physical, path);
+    }
+
+    /**
+     * @return the path of the file stored under {@code key}, flat keys are paths already
+     */
+    public String path(String key) {
+        int slash = key.lastIndexOf('/');
+        int shardStart = key.lastIndexOf('/', slash - 1) + 1;
+        if (slash == -1 || shardStart == 0 || slash - shardStart != 2 || isInternal(key)) {
+            return key;
+        }
+
+        String path = key.substring(0, shardStart) + key.substring(slash + 1);
+        return key.substring(shardStart, slash).equals(shard(path)) ? path : key;
+    }
+
+    /**
+     * @return whether {@code key} is a flat key that the sharded layout stores elsewhere
+     */
+    public boolean isMisplaced(String key) {
+        return sharded && path(key).equals(key) && !physical(key).equals(key);
+    }
+
+    private static String shard(String path) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(path.getBytes(StandardCharsets.UTF_8));
+        return String.format("%02x", crc32c.getValue() & 0xFF);
+    }
+
+    /**
+     * @return whether {@code key} is one of the service's own, such as dedup blobs, derivatives and upload sessions
+     */
+    public static boolean isInternal(String key) {
+        return key.startsWith(".");
+    }
+}
@@ -0,0 +1,12 @@
+package kz.ai.lab.inlivefilemanager.storage;
+
+import java.time.Instant;
+
+/**
+ * An entry of a {@link StorageBackend#list(String)} listing.
+ */
+public record ObjectSummary(String key,
+                            long size,
+                            String eTag,
+                            Instant lastModified) {
+}
@@ -0,0 +1,505 @@
+package kz.ai.lab.inlivefilemanager.storage;
+
+import kz.ai.lab.inlivefilemanager.dto.FileMetadata;
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import kz.ai.lab.inlivefilemanager.services.DedupService;
+import kz.ai.lab.inlivefilemanager.services.StorageMetrics;
+import kz.ai.lab.inlivefilemanager.services.UploadInspection;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps files in an S3 bucket. Uploads are split into parts as they stream in, files smaller than
+ * one part go out as a single PutObject and everything else as a multipart upload. Deduplicated files
+ * are followed from their pointer to the blob on reads.
+ * <p>
+ * Every PutObject and UploadPart carries the CRC32C of its bytes, computed while they are copied out of
+ * the request buffers, so S3 verifies what it stores and the SDK does not checksum the bytes again.
+ * <p>
+ * Keys are file paths, the {@link KeyLayout} decides which S3 key a path is stored under.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "application.storage.backend", havingValue = "s3", matchIfMissing = true)
+public class S3StorageBackend implements StorageBackend {
+    private static final int MAX_DELETE_KEYS = 1000;
+
+    private final S3AsyncClient s3Client;
+    private final DedupService dedupService;
+    private final StorageMetrics storageMetrics;
+    private final KeyLayout keyLayout;
+    private final String bucketName;
+    private final int partSize;
+    private final int partConcurrency;
+
+    public S3StorageBackend(S3AsyncClient s3Client,
+                            DedupService dedupService,
+                            StorageMetrics storageMetrics,
+                            KeyLayout keyLayout,
+                            @Value("${aws.s3.bucket}") String bucketName,
+                            @Value("${aws.s3.multipart.part-size}") int partSize,
+                            @Value("${aws.s3.multipart.concurrency}") int partConcurrency) {
+        this.s3Client = s3Client;
+        this.dedupService = dedupService;
+        this.storageMetrics = storageMetrics;
+        this.keyLayout = keyLayout;
+        this.bucketName = bucketName;
+        this.partSize = partSize;
+        this.partConcurrency = partConcurrency;
+        log.info("S3StorageBackend initialized with bucket: {}", bucketName);
+    }
+
+    /**
+     * At most (partConcurrency + 1) parts are held in memory per upload regardless of file size.
+     */
+    @Override
+    public Mono<Void> put(String path, Flux<DataBuffer> content, String contentType, Map<String, String> metadata) {
+        String key = keyLayout.physical(path);
+        return splitIntoParts(content)
+                .switchOnFirst((first, all) -> {
+                    if (first.isOnError()) {
+                        return all.then();
+                    }
+                    if (!first.hasValue()) {
+                        return putObject(key, contentType, metadata, Part.EMPTY);
+                    }
+                    if (first.get().bytes().length < partSize) {
+                        return all.concatMap(part -> putObject(key, contentType, metadata, part)).then();
+                    }
+                    return multipartUpload(all, key, contentType, metadata);
+                })
+                .doOnDiscard(Part.class, part -> storageMetrics.released(part.bytes().length))
+                .then();
+    }
+
+    /**
+     * @param crc32c the base64 CRC32C of the bytes, as S3 expects it
+     */
+    private record Part(byte[] bytes, String crc32c) {
+        private static final Part EMPTY = new Part(new byte[0], UploadInspection.crc32cBase64(0));
+    }
+
+    private Flux<Part> splitIntoParts(Flux<DataBuffer> content) {
+        return Flux.defer(() -> {
+            long[] pending = {0};
+
+            return content
+                    .bufferUntil(buffer -> {
+                        pending[0] += buffer.readableByteCount();
+                        if (pending[0] < partSize) {
+                            return false;
+                        }
+                        pending[0] = 0;
+                        return true;
+                    })
+                    .map(buffers -> {
+                        Part part = drain(buffers);
+                        storageMetrics.buffered(part.bytes().length);
+                        return part;
+                    })
+                    .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+        });
+    }
+
+    /**
+     * The checksum follows each buffer as it is copied, while its bytes are still in the CPU cache.
+     */
+    private static Part drain(List<DataBuffer> buffers) {
+        int size = buffers.stream().mapToInt(DataBuffer::readableByteCount).sum();
+        byte[] bytes = new byte[size];
+        CRC32C crc32c = new CRC32C();
+
+        int offset = 0;
+        for (DataBuffer buffer : buffers) {
+            int length = buffer.readableByteCount();
+            buffer.read(bytes, offset, length);
+            crc32c.update(bytes, offset, length);
+            offset += length;
+            DataBufferUtils.release(buffer);
+        }
+
+        return new Part(bytes, UploadInspection.crc32cBase64(crc32c.getValue()));
+    }
+
+    private Mono<Void> putObject(String storagePath,
+                                 String contentType,
+                                 Map<String, String> metadata,
+                                 Part part) {
+        byte[] bytes = part.bytes();
+        Map<String, String> objectMetadata = new HashMap<>(metadata);
+        objectMetadata.put("content-length", String.valueOf(bytes.length));
+
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(storagePath)
+                .contentType(contentType)
+                .contentLength((long) bytes.length)
+                .metadata(objectMetadata)
+                .checksumAlgorithm(ChecksumAlgorithm.CRC32C)
+                .checksumCRC32C(part.crc32c())
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.putObject(putObjectRequest, AsyncRequestBody.fromBytesUnsafe(bytes)))
+                .doFinally(signal -> storageMetrics.released(bytes.length))
+                .then();
+    }
+
+    private Mono<Void> multipartUpload(Flux<Part> parts,
+                                       String storagePath,
+                                       String contentType,
+                                       Map<String, String> metadata) {
+        CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(storagePath)
+                .contentType(contentType)
+                .metadata(metadata)
+                .checksumAlgorithm(ChecksumAlgorithm.CRC32C)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.createMultipartUpload(createRequest))
+                .map(CreateMultipartUploadResponse::uploadId)
+                .flatMap(uploadId -> parts.index()
+                        .flatMap(part -> uploadPart(storagePath, uploadId,
+                                part.getT1().intValue() + 1, part.getT2()), partConcurrency)
+                        .collectSortedList(Comparator.comparing(CompletedPart::partNumber))
+                        .flatMap(completedParts -> completeMultipartUpload(storagePath, uploadId, completedParts))
+                        .onErrorResume(ex -> abortMultipartUpload(storagePath, uploadId).then(Mono.error(ex)))
+                        .doOnCancel(() -> abortMultipartUpload(storagePath, uploadId).subscribe()));
+    }
+
+    private Mono<CompletedPart> uploadPart(String storagePath, String uploadId, int partNumber, Part part) {
+        byte[] bytes = part.bytes();
+        UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                .bucket(bucketName)
+                .key(storagePath)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .contentLength((long) bytes.length)
+                .checksumAlgorithm(ChecksumAlgorithm.CRC32C)
+                .checksumCRC32C(part.crc32c())
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.uploadPart(uploadPartRequest, AsyncRequestBody.fromBytesUnsafe(bytes)))
+                .doFinally(signal -> storageMetrics.released(bytes.length))
+                .map(response -> {
+                    log.debug("Part [{}] of [{}] uploaded, {} bytes", partNumber, storagePath, bytes.length);
+                    storageMetrics.partUploaded(bytes.length);
+                    return CompletedPart.builder()
+                            .partNumber(partNumber)
+                            .eTag(response.eTag())
+                            .checksumCRC32C(part.crc32c())
+                            .build();
+                });
+    }
+
+    private Mono<Void> completeMultipartUpload(String storagePath, String uploadId, List<CompletedPart> parts) {
+        CompleteMultipartUploadRequest completeRequest = CompleteMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(storagePath)
+                .uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.completeMultipartUpload(completeRequest))
+                .then();
+    }
+
+    private Mono<Void> abortMultipartUpload(String storagePath, String uploadId) {
+        AbortMultipartUploadRequest abortRequest = AbortMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(storagePath)
+                .uploadId(uploadId)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.abortMultipartUpload(abortRequest))
+                .doOnError(ex -> log.warn("Unable to abort multipart upload [{}] of [{}]", uploadId, storagePath, ex))
+                .onErrorResume(ex -> Mono.empty())
+                .then();
+    }
+
+    @Override
+    public Mono<S3Blob> get(String key) {
+        return fetch(key, null);
+    }
+
+    /**
+     * The body is read from S3 as it is written to the client, nothing is buffered up front.
+     */
+    @Override
+    public Mono<S3Blob> get(String key, long start, long end) {
+        return fetch(key, String.format("bytes=%d-%d", start, end));
+    }
+
+    /**
+     * A file not found under its key may not have been moved to it yet.
+     */
+    private Mono<S3Blob> fetch(String path, String range) {
+        List<String> candidates = keyLayout.candidates(path);
+        Mono<S3Blob> fetched = fetchObject(candidates.get(0), range);
+        return candidates.size() == 1
+                ? fetched
+                : fetched.switchIfEmpty(Mono.defer(() -> fetchObject(candidates.get(1), range)));
+    }
+
+    /**
+     * A pointer is an empty object, S3 answers any range of it with 416. With deduplication enabled a
+     * ranged read looks at the key first and sends the range only to the object holding the content.
+     */
+    private Mono<S3Blob> fetchObject(String storagePath, String range) {
+        if (range == null || !dedupService.isEnabled()) {
+            return getObject(storagePath, range);
+        }
+
+        return headResponse(storagePath)
+                .flatMap(head -> {
+                    String hash = head.metadata().get(DedupService.HASH_METADATA);
+                    if (hash == null) {
+                        return getObject(storagePath, range);
+                    }
+                    return getObject(dedupService.blobKey(hash), range)
+                            .map(blob -> fromPointer(blob, hash, head.contentType(), head.lastModified()));
+                });
+    }
+
+    /**
+     * Where the content of a file is read from, looked up once for the many ranged reads of one download.
+     *
+     * @param key  the key the file was found under, {@code null} when it was not looked up
+     * @param hash the hash of the blob a deduplicated file points to
+     */
+    public record Source(String path, String key, String hash, String contentType, Instant lastModified) {
+    }
+
+    /**
+     * Without deduplication nothing has to be looked up, the source reads as {@link #get(String, long, long)}.
+     *
+     * @return empty when the file does not exist
+     */
+    public Mono<Source> resolve(String path) {
+        if (!dedupService.isEnabled()) {
+            return Mono.just(new Source(path, null, null, null, null));
+        }
+
+        List<String> candidates = keyLayout.candidates(path);
+        Mono<Source> found = resolveKey(path, candidates.get(0));
+        return candidates.size() == 1
+                ? found
+                : found.switchIfEmpty(Mono.defer(() -> resolveKey(path, candidates.get(1))));
+    }
+
+    private Mono<Source> resolveKey(String path, String key) {
+        return headResponse(key)
+                .map(head -> new Source(path, key, head.metadata().get(DedupService.HASH_METADATA),
+                        head.contentType(), head.lastModified()));
+    }
+
+    /**
+     * The inclusive byte range {@code [start, end]} of a resolved file, read straight from the object
+     * holding its content.
+     *
+     * @return empty when that object no longer exists
+     */
+    public Mono<S3Blob> get(Source source, long start, long end) {
+        String range = String.format("bytes=%d-%d", start, end);
+        if (source.key() == null) {
+            return fetch(source.path(), range);
+        }
+        if (source.hash() == null) {
+            return getObject(source.key(), range);
+        }
+        return getObject(dedupService.blobKey(source.hash()), range)
+                .map(blob -> fromPointer(blob, source.hash(), source.contentType(), source.lastModified()));
+    }
+
+    private Mono<S3Blob> getObject(String storagePath, String range) {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(storagePath)
+                .range(range)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.getObject(getObjectRequest, AsyncResponseTransformer.toPublisher()))
+                .flatMap(responsePublisher -> {
+                    GetObjectResponse response = responsePublisher.response();
+
+                    String hash = response.metadata().get(DedupService.HASH_METADATA);
+                    if (hash != null) {
+                        // a deduplicated file, its content lives in the blob the pointer names
+                        return Flux.from(responsePublisher).then(getObject(dedupService.blobKey(hash), null))
+                                .map(blob -> fromPointer(blob, hash, response.contentType(), response.lastModified()));
+                    }
+
+                    Flux<DataBuffer> content = Flux.from(responsePublisher)
+                            .map(DefaultDataBufferFactory.sharedInstance::wrap);
+
+                    log.debug("Key [{}] fetched, range [{}].", storagePath, range);
+                    return Mono.just(new S3Blob(content,
+                            contentTypeOrDefault(response.contentType()),
+                            response.contentLength(),
+                            response.contentRange(),
+                            response.eTag(),
+                            response.lastModified()));
+                })
+                .onErrorResume(S3StorageBackend::isNotFound, ex -> {
+                    log.debug("Key [{}] not found", storagePath);
+                    return Mono.empty();
+                })
+                .doOnError(ex -> log.error("Error Occurred: [{}]", ex.getMessage(), ex));
+    }
+
+    /**
+     * The content of the blob under the type and modification time of the pointer, tagged with its hash.
+     */
+    private static S3Blob fromPointer(S3Blob blob, String hash, String contentType, Instant lastModified) {
+        return new S3Blob(blob.content(),
+                contentTypeOrDefault(contentType),
+                blob.contentLength(),
+                blob.contentRange(),
+                DedupService.eTag(hash),
+                lastModified);
+    }
+
+    @Override
+    public Mono<FileMetadata> head(String path) {
+        List<String> candidates = keyLayout.candidates(path);
+        Mono<FileMetadata> found = headObject(candidates.get(0));
+        return candidates.size() == 1
+                ? found
+                : found.switchIfEmpty(Mono.defer(() -> headObject(candidates.get(1))));
+    }
+
+    private Mono<FileMetadata> headObject(String key) {
+        return headResponse(key)
+                .map(response -> new FileMetadata(
+                        contentTypeOrDefault(response.contentType()),
+                        contentLength(response),
+                        eTag(response),
+                        response.lastModified()));
+    }
+
+    /**
+     * @return empty when the key does not exist
+     */
+    private Mono<HeadObjectResponse> headResponse(String key) {
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.headObject(headObjectRequest))
+                .onErrorResume(S3StorageBackend::isNotFound, ex -> Mono.empty());
+    }
+
+    /**
+     * Deletes the file under every key it may be stored under.
+     */
+    @Override
+    public Mono<Void> delete(String path) {
+        return Flux.fromIterable(keyLayout.candidates(path))
+                .flatMap(this::deleteObject)
+                .then();
+    }
+
+    private Mono<Void> deleteObject(String key) {
+        DeleteObjectRequest deleteObjectRequest = DeleteObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.deleteObject(deleteObjectRequest)).then();
+    }
+
+    /**
+     * DeleteObjects calls in quiet mode, so only the failed keys come back. With the sharded layout a
+     * file is deleted under both of its keys, which may take two calls for 1000 files.
+     */
+    @Override
+    public Mono<List<String>> delete(List<String> paths) {
+        List<String> keys = paths.stream()
+                .flatMap(path -> keyLayout.candidates(path).stream())
+                .distinct()
+                .toList();
+
+        return Flux.range(0, (keys.size() + MAX_DELETE_KEYS - 1) / MAX_DELETE_KEYS)
+                .map(batch -> keys.subList(batch * MAX_DELETE_KEYS, Math.min(keys.size(), (batch + 1) * MAX_DELETE_KEYS)))
+                .flatMap(this::deleteObjects)
+                .flatMapIterable(failed -> failed)
+                .map(keyLayout::path)
+                .distinct()
+                .collectList();
+    }
+
+    private Mono<List<String>> deleteObjects(List<String> keys) {
+        List<ObjectIdentifier> identifiers = keys.stream()
+                .map(key -> ObjectIdentifier.builder().key(key).build())
+                .toList();
+
+        DeleteObjectsRequest request = DeleteObjectsRequest.builder()
+                .bucket(bucketName)
+                .delete(Delete.builder().objects(identifiers).quiet(true).build())
+                .build();
+
+        return Mono.fromFuture(() -> s3Client.deleteObjects(request))
+                .map(response -> response.errors().stream().map(S3Error::key).toList());
+    }
+
+    @Override
+    public Flux<ObjectSummary> list(String prefix) {
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .prefix(prefix)
+                .build();
+
+        return Flux.from(s3Client.listObjectsV2Paginator(listRequest).contents())
+                .map(object -> new ObjectSummary(keyLayout.path(object.key()), object.size(), object.eTag(),
+                        object.lastModified()));
+    }
+
+    /**
+     * Pointers of deduplicated files are empty objects, their real size is kept in the metadata.
+     */
+    private static long contentLength(HeadObjectResponse response) {
+        if (response.metadata().containsKey(DedupService.HASH_METADATA)) {
+            return Long.parseLong(response.metadata().getOrDefault("content-length", "0"));
+        }
+        return response.contentLength();
+    }
+
+    /**
+     * Every pointer has the ETag of an empty object, a deduplicated file is identified by its content hash.
+     */
+    private static String eTag(HeadObjectResponse response) {
+        String hash = response.metadata().get(DedupService.HASH_METADATA);
+        return hash != null ? DedupService.eTag(hash) : response.eTag();
+    }
+
+    private static boolean isNotFound(Throwable ex) {
+        return ex instanceof NoSuchKeyException
+                || ex instanceof S3Exception s3Exception && s3Exception.statusCode() == 404;
+    }
+
+    private static String contentTypeOrDefault(String contentType) {
+        if (contentType == null || contentType.isBlank()) {
+            return "application/octet-stream";
+        }
+        return contentType;
+    }
+}
@@ -0,0 +1,52 @@
+package kz.ai.lab.inlivefilemanager.storage;
+
+import kz.ai.lab.inlivefilemanager.dto.FileMetadata;
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where file content is kept, selected with {@code application.storage.backend}. Keys are
+ * {@code directory/filename} paths separated by {@code /}.
+ */
+public interface StorageBackend {
+
+    /**
+     * Stores the content under the key, replacing what was there. The content is consumed and released.
+     */
+    Mono<Void> put(String key, Flux<DataBuffer> content, String contentType, Map<String, String> metadata);
+
+    /**
+     * @return the whole object, empty when the key does not exist
+     */
+    Mono<S3Blob> get(String key);
+
+    /**
+     * @return the inclusive byte range {@code [start, end]} of the object, empty when the key does not exist
+     */
+    Mono<S3Blob> get(String key, long start, long end);
+
+    /**
+     * @return empty when the key does not exist
+     */
+    Mono<FileMetadata> head(String key);
+
+    /**
+     * Succeeds for keys that do not exist.
+     */
+    Mono<Void> delete(String key);
+
+    /**
+     * @return keys that could not be deleted
+     */
+    Mono<List<String>> delete(List<String> keys);
+
+    /**
+     * @return every object whose key starts with {@code prefix}
+     */
+    Flux<ObjectSummary> list(String prefix);
+}
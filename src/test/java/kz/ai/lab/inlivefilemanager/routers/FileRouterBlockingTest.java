@@ -0,0 +1,230 @@
+package kz.ai.lab.inlivefilemanager.routers;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import kz.ai.lab.inlivefilemanager.config.CacheControlProperties;
+import kz.ai.lab.inlivefilemanager.services.CompressionService;
+import kz.ai.lab.inlivefilemanager.services.DedupService;
+import kz.ai.lab.inlivefilemanager.services.DeleteBatcher;
+import kz.ai.lab.inlivefilemanager.services.FetchCoalescer;
+import kz.ai.lab.inlivefilemanager.services.FileCache;
+import kz.ai.lab.inlivefilemanager.services.FolderDeletionService;
+import kz.ai.lab.inlivefilemanager.services.ImageDerivativeService;
+import kz.ai.lab.inlivefilemanager.services.MetadataIndex;
+import kz.ai.lab.inlivefilemanager.services.ParallelDownloadService;
+import kz.ai.lab.inlivefilemanager.services.StorageMetrics;
+import kz.ai.lab.inlivefilemanager.services.StorageService;
+import kz.ai.lab.inlivefilemanager.services.UploadAdmission;
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import kz.ai.lab.inlivefilemanager.storage.S3StorageBackend;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.codec.HttpMessageWriter;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.reactive.function.server.MockServerRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.reactive.function.server.HandlerStrategies;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.reactive.result.view.ViewResolver;
+import reactor.blockhound.BlockHound;
+import reactor.blockhound.BlockingOperationError;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.ResponsePublisher;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Runs the storage and router paths on a non-blocking scheduler with BlockHound installed,
+ * so any blocking call on those paths fails the test.
+ */
+class FileRouterBlockingTest {
+    private static final byte[] CONTENT = "hello".getBytes(StandardCharsets.UTF_8);
+    // above the memory tier's object size limit, cached on disk
+    private static final byte[] LARGE_CONTENT = "hello, ".repeat(1024).getBytes(StandardCharsets.UTF_8);
+
+    private static final ServerResponse.Context CONTEXT = new ServerResponse.Context() {
+        @Override
+        public List<HttpMessageWriter<?>> messageWriters() {
+            return HandlerStrategies.withDefaults().messageWriters();
+        }
+
+        @Override
+        public List<ViewResolver> viewResolvers() {
+            return List.of();
+        }
+    };
+
+    private S3AsyncClient s3Client;
+    private StorageService storageService;
+    private FileRouter fileRouter;
+
+    @BeforeAll
+    static void installBlockHound() {
+        BlockHound.install(builder -> builder.allowBlockingCallsInside(ClassLoader.class.getName(), "loadClass"));
+    }
+
+    @BeforeEach
+    void setUp(@TempDir Path cacheDirectory) throws IOException {
+        s3Client = mock(S3AsyncClient.class);
+        FileCache fileCache = new FileCache(1024 * 1024, 1024, 1024 * 1024, 1024 * 1024, cacheDirectory, 100,
+                Duration.ofMinutes(10), new SimpleMeterRegistry());
+        KeyLayout keyLayout = new KeyLayout("flat");
+        DedupService dedupService = new DedupService(s3Client, keyLayout, "bucket", false);
+        FolderDeletionService folderDeletionService = mock(FolderDeletionService.class);
+        StorageMetrics storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+        StorageBackend storageBackend = new S3StorageBackend(s3Client, dedupService, storageMetrics,
+                keyLayout, "bucket", 5 * 1024 * 1024, 2);
+        MetadataIndex metadataIndex = new MetadataIndex(storageBackend, Duration.ofMinutes(10), Duration.ofSeconds(30));
+        storageService = new StorageService(storageBackend, fileCache, dedupService, metadataIndex, storageMetrics,
+                new ParallelDownloadService(storageBackend, 5 * 1024 * 1024, 4, 64 * 1024 * 1024),
+                new FetchCoalescer(new SimpleMeterRegistry(), 128),
+                new DeleteBatcher(storageBackend, new SimpleMeterRegistry(), Duration.ofMillis(10), 4));
+        fileRouter = new FileRouter(storageService, folderDeletionService, mock(ImageDerivativeService.class),
+                mock(CompressionService.class),
+                metadataIndex, storageMetrics, new UploadAdmission(new SimpleMeterRegistry(), 64 * 1024 * 1024,
+                        8, 2, 8, Duration.ofSeconds(1), Duration.ofSeconds(5), 5 * 1024 * 1024, 2),
+                new CacheControlProperties("no-cache", null, null));
+    }
+
+    @Test
+    void blockingCallIsDetected() {
+        Mono<Object> blocking = Mono.fromCallable(() -> {
+            Thread.sleep(1);
+            return "";
+        });
+
+        StepVerifier.create(blocking.subscribeOn(Schedulers.parallel()))
+                .expectErrorMatches(ex -> ex instanceof BlockingOperationError)
+                .verify();
+    }
+
+    @Test
+    void uploadFileDoesNotBlock() {
+        doReturn(CompletableFuture.completedFuture(PutObjectResponse.builder().build()))
+                .when(s3Client).putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+        doReturn(CompletableFuture.completedFuture(HeadObjectResponse.builder()
+                .contentType("text/plain")
+                .contentLength((long) CONTENT.length)
+                .build()))
+                .when(s3Client).headObject(any(HeadObjectRequest.class));
+
+        Flux<DataBuffer> content = Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(CONTENT));
+
+        StepVerifier.create(nonBlocking(() -> storageService.uploadFile(content, "a.txt", "dir", false)))
+                .expectNext("a.txt")
+                .verifyComplete();
+    }
+
+    @Test
+    void fetchFileDoesNotBlock() {
+        stubGetObject(CONTENT);
+
+        StepVerifier.create(nonBlocking(() -> fetch("a.txt")))
+                .assertNext(body -> assertArrayEquals(CONTENT, body))
+                .verifyComplete();
+        // served from the memory tier
+        StepVerifier.create(nonBlocking(() -> fetch("a.txt")))
+                .assertNext(body -> assertArrayEquals(CONTENT, body))
+                .verifyComplete();
+    }
+
+    @Test
+    void fetchFileThroughDiskCacheDoesNotBlock() {
+        stubGetObject(LARGE_CONTENT);
+
+        // streamed to the client and to the disk tier at once
+        StepVerifier.create(nonBlocking(() -> fetch("large.txt")))
+                .assertNext(body -> assertArrayEquals(LARGE_CONTENT, body))
+                .verifyComplete();
+        // served from the file the first fetch wrote
+        StepVerifier.create(nonBlocking(() -> fetch("large.txt")))
+                .assertNext(body -> assertArrayEquals(LARGE_CONTENT, body))
+                .verifyComplete();
+    }
+
+    @Test
+    void deleteFileDoesNotBlock() {
+        doReturn(CompletableFuture.completedFuture(DeleteObjectsResponse.builder().build()))
+                .when(s3Client).deleteObjects(any(DeleteObjectsRequest.class));
+
+        StepVerifier.create(nonBlocking(() -> storageService.deleteFile("a.txt", "dir")))
+                .expectNext("File [a.txt] deleted successfully")
+                .verifyComplete();
+    }
+
+    private void stubGetObject(byte[] content) {
+        GetObjectResponse response = GetObjectResponse.builder()
+                .contentType("text/plain")
+                .contentLength((long) content.length)
+                .eTag("\"etag\"")
+                .build();
+
+        // every fetch gets a fresh body, split like the SDK hands it over
+        doAnswer(invocation -> CompletableFuture.completedFuture(new ResponsePublisher<>(response,
+                SdkPublisher.adapt(Flux.range(0, (content.length + 1023) / 1024)
+                        .map(chunk -> ByteBuffer.wrap(content, chunk * 1024,
+                                Math.min(1024, content.length - chunk * 1024)))))))
+                .when(s3Client).getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class));
+    }
+
+    /**
+     * Handles the request and writes the response, so the body is streamed like it is to a client.
+     */
+    private Mono<byte[]> fetch(String filename) {
+        MockServerRequest request = MockServerRequest.builder()
+                .pathVariable("directory", "dir")
+                .pathVariable("filename", filename)
+                .build();
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/dir/retrieve/files/" + filename));
+
+        return fileRouter.handleFetchFile(request)
+                .doOnNext(serverResponse -> assertEquals(HttpStatus.OK, serverResponse.statusCode()))
+                .flatMap(serverResponse -> serverResponse.writeTo(exchange, CONTEXT))
+                .then(Mono.defer(() -> DataBufferUtils.join(exchange.getResponse().getBody())))
+                .map(joined -> {
+                    byte[] bytes = new byte[joined.readableByteCount()];
+                    joined.read(bytes);
+                    DataBufferUtils.release(joined);
+                    return bytes;
+                });
+    }
+
+    private static <T> Mono<T> nonBlocking(Supplier<Mono<T>> supplier) {
+        return Mono.defer(supplier).subscribeOn(Schedulers.parallel());
+    }
+}
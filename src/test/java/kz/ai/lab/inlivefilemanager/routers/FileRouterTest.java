@@ -0,0 +1,301 @@
+package kz.ai.lab.inlivefilemanager.routers;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import kz.ai.lab.inlivefilemanager.config.CacheControlProperties;
+import kz.ai.lab.inlivefilemanager.s3.FakeS3Server;
+import kz.ai.lab.inlivefilemanager.services.CompressionService;
+import kz.ai.lab.inlivefilemanager.services.DedupService;
+import kz.ai.lab.inlivefilemanager.services.DeleteBatcher;
+import kz.ai.lab.inlivefilemanager.services.FetchCoalescer;
+import kz.ai.lab.inlivefilemanager.services.FileCache;
+import kz.ai.lab.inlivefilemanager.services.FolderDeletionService;
+import kz.ai.lab.inlivefilemanager.services.ImageDerivativeService;
+import kz.ai.lab.inlivefilemanager.services.MetadataIndex;
+import kz.ai.lab.inlivefilemanager.services.ParallelDownloadService;
+import kz.ai.lab.inlivefilemanager.services.StorageMetrics;
+import kz.ai.lab.inlivefilemanager.services.StorageService;
+import kz.ai.lab.inlivefilemanager.services.UploadAdmission;
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import kz.ai.lab.inlivefilemanager.storage.S3StorageBackend;
+import kz.ai.lab.inlivefilemanager.storage.StorageBackend;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Conditional and range requests against {@link FakeS3Server}, through the real storage services.
+ */
+class FileRouterTest {
+    private static final String CONTENT = "0123456789abcdefghij";
+    private static final String URI = "/dir/retrieve/files/a.txt";
+
+    private static FakeS3Server s3Server;
+    private static S3AsyncClient s3Client;
+
+    private WebTestClient client;
+
+    @BeforeAll
+    static void startS3() throws IOException {
+        s3Server = FakeS3Server.start();
+        s3Client = s3Server.newClient();
+    }
+
+    @AfterAll
+    static void stopS3() {
+        s3Client.close();
+        s3Server.close();
+    }
+
+    @BeforeEach
+    void setUp(@TempDir Path cacheDirectory) throws IOException {
+        s3Server.clear();
+        s3Server.putObject("dir/a.txt", CONTENT.getBytes(StandardCharsets.UTF_8), "text/plain");
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        FileCache fileCache = new FileCache(1024 * 1024, 1024, 0, 0, cacheDirectory, 100, Duration.ofMinutes(10),
+                meterRegistry);
+        KeyLayout keyLayout = new KeyLayout("flat");
+        DedupService dedupService = new DedupService(s3Client, keyLayout, FakeS3Server.BUCKET, false);
+        StorageMetrics storageMetrics = new StorageMetrics(meterRegistry);
+        StorageBackend storageBackend = new S3StorageBackend(s3Client, dedupService, storageMetrics,
+                keyLayout, FakeS3Server.BUCKET, 5 * 1024 * 1024, 2);
+        MetadataIndex metadataIndex = new MetadataIndex(storageBackend, Duration.ofMinutes(10), Duration.ofSeconds(30));
+        StorageService storageService = new StorageService(storageBackend, fileCache, dedupService, metadataIndex,
+                storageMetrics, new ParallelDownloadService(storageBackend, 5 * 1024 * 1024, 4, 64 * 1024 * 1024),
+                new FetchCoalescer(meterRegistry, 128),
+                new DeleteBatcher(storageBackend, meterRegistry, Duration.ofMillis(10), 4));
+        FileRouter fileRouter = new FileRouter(storageService, mock(FolderDeletionService.class),
+                mock(ImageDerivativeService.class), mock(CompressionService.class), metadataIndex, storageMetrics,
+                new UploadAdmission(meterRegistry, 64 * 1024 * 1024, 8, 2, 8, Duration.ofSeconds(1),
+                        Duration.ofSeconds(5), 5 * 1024 * 1024, 2),
+                new CacheControlProperties("no-cache", null, null));
+
+        client = WebTestClient.bindToRouterFunction(fileRouter.apiRouterFunction()).build();
+    }
+
+    @Test
+    void matchingETagIsNotModified() {
+        String eTag = fetch().getETag();
+
+        client.get().uri(URI)
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals(HttpHeaders.ETAG, eTag)
+                .expectHeader().valueEquals(HttpHeaders.CACHE_CONTROL, "no-cache")
+                .expectBody().isEmpty();
+
+        // If-None-Match uses the weak comparison
+        client.get().uri(URI)
+                .header(HttpHeaders.IF_NONE_MATCH, "W/" + eTag)
+                .exchange()
+                .expectStatus().isNotModified();
+    }
+
+    @Test
+    void matchingVariantETagIsEchoed() {
+        String eTag = CompressionService.Encoding.GZIP.eTag(fetch().getETag());
+
+        client.get().uri(URI)
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals(HttpHeaders.ETAG, eTag);
+        client.head().uri(URI)
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals(HttpHeaders.ETAG, eTag);
+    }
+
+    @Test
+    void otherETagIsSentInFull() {
+        client.get().uri(URI)
+                .header(HttpHeaders.IF_NONE_MATCH, "\"other\"")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo(CONTENT);
+    }
+
+    @Test
+    void unchangedSinceIsNotModified() {
+        long lastModified = fetch().getLastModified();
+
+        client.get().uri(URI)
+                .header(HttpHeaders.IF_MODIFIED_SINCE, HttpHeaders.formatDate(lastModified))
+                .exchange()
+                .expectStatus().isNotModified();
+    }
+
+    @Test
+    void changedSinceIsSentInFull() {
+        long lastModified = fetch().getLastModified();
+
+        client.get().uri(URI)
+                .header(HttpHeaders.IF_MODIFIED_SINCE, HttpHeaders.formatDate(lastModified - 60_000))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo(CONTENT);
+    }
+
+    @Test
+    void ifNoneMatchTakesPrecedenceOverIfModifiedSince() {
+        long lastModified = fetch().getLastModified();
+
+        client.get().uri(URI)
+                .header(HttpHeaders.IF_NONE_MATCH, "\"other\"")
+                .header(HttpHeaders.IF_MODIFIED_SINCE, HttpHeaders.formatDate(lastModified))
+                .exchange()
+                .expectStatus().isOk();
+    }
+
+    @Test
+    void headAnswersConditionalRequests() {
+        String eTag = fetch().getETag();
+
+        client.head().uri(URI)
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .exchange()
+                .expectStatus().isNotModified();
+        client.head().uri(URI)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentLength(CONTENT.length())
+                .expectHeader().valueEquals(HttpHeaders.ETAG, eTag);
+    }
+
+    @Test
+    void missingFileIsNotFound() {
+        client.get().uri("/dir/retrieve/files/missing.txt")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"etag\"")
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    @Test
+    void rangeIsPartialContent() {
+        expectRange("bytes=2-5", "2345", "bytes 2-5/20");
+        expectRange("bytes=-3", "hij", "bytes 17-19/20");
+        expectRange("bytes=15-", "fghij", "bytes 15-19/20");
+    }
+
+    @Test
+    void rangeOfCachedFileIsPartialContent() {
+        fetch();
+
+        expectRange("bytes=2-5", "2345", "bytes 2-5/20");
+    }
+
+    @Test
+    void unsatisfiableRangeIsRejected() {
+        client.get().uri(URI)
+                .header(HttpHeaders.RANGE, "bytes=30-40")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes */20");
+    }
+
+    @Test
+    void multipleRangesAreSentInFull() {
+        client.get().uri(URI)
+                .header(HttpHeaders.RANGE, "bytes=0-1,4-5")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo(CONTENT);
+    }
+
+    @Test
+    void ifRangeMatchingCurrentVersionIsPartialContent() {
+        HttpHeaders headers = fetch();
+
+        client.get().uri(URI)
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, headers.getETag())
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectBody(String.class).isEqualTo("2345");
+        client.get().uri(URI)
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, HttpHeaders.formatDate(headers.getLastModified()))
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectBody(String.class).isEqualTo("2345");
+    }
+
+    @Test
+    void ifRangeOfOtherVersionIsSentInFull() {
+        HttpHeaders headers = fetch();
+
+        client.get().uri(URI)
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, "\"other\"")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo(CONTENT);
+        // weak validators never satisfy If-Range
+        client.get().uri(URI)
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, "W/" + headers.getETag())
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo(CONTENT);
+        client.get().uri(URI)
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, HttpHeaders.formatDate(headers.getLastModified() - 60_000))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo(CONTENT);
+    }
+
+    @Test
+    void deletingImageDeletesItsDerivatives() {
+        byte[] image = {1, 2, 3};
+        s3Server.putObject("dir/b.png", image, "image/png");
+        s3Server.putObject(".derivatives/dir/b.png/v-w32.png", image, "image/png");
+        s3Server.putObject(".derivatives/dir/b.png/v-w64.png", image, "image/png");
+        s3Server.putObject(".derivatives/dir/b.pngx/v-w32.png", image, "image/png");
+
+        client.delete().uri("/dir/remove/files/b.png")
+                .exchange()
+                .expectStatus().isOk();
+
+        assertFalse(s3Server.containsObject("dir/b.png"));
+        assertFalse(s3Server.containsObject(".derivatives/dir/b.png/v-w32.png"));
+        assertFalse(s3Server.containsObject(".derivatives/dir/b.png/v-w64.png"));
+        assertTrue(s3Server.containsObject(".derivatives/dir/b.pngx/v-w32.png"));
+    }
+
+    private void expectRange(String range, String content, String contentRange) {
+        client.get().uri(URI)
+                .header(HttpHeaders.RANGE, range)
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, contentRange)
+                .expectHeader().contentLength(content.length())
+                .expectBody(String.class).isEqualTo(content);
+    }
+
+    private HttpHeaders fetch() {
+        return client.get().uri(URI)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo(CONTENT)
+                .returnResult()
+                .getResponseHeaders();
+    }
+}
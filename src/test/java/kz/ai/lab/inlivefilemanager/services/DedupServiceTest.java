@@ -0,0 +1,139 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import kz.ai.lab.inlivefilemanager.s3.FakeS3Server;
+import kz.ai.lab.inlivefilemanager.storage.KeyLayout;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.AdditionalAnswers;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Reference counting of deduplicated content against {@link FakeS3Server}.
+ */
+class DedupServiceTest {
+    private static final byte[] CONTENT = "identical content".getBytes(StandardCharsets.UTF_8);
+
+    private static FakeS3Server s3Server;
+    private static S3AsyncClient realClient;
+
+    private S3AsyncClient s3Client;
+    private DedupService dedupService;
+    private String hash;
+
+    @BeforeAll
+    static void startS3() throws IOException {
+        s3Server = FakeS3Server.start();
+        realClient = s3Server.newClient();
+    }
+
+    @AfterAll
+    static void stopS3() {
+        realClient.close();
+        s3Server.close();
+    }
+
+    @BeforeEach
+    void setUp() throws NoSuchAlgorithmException {
+        s3Server.clear();
+        s3Client = mock(S3AsyncClient.class, AdditionalAnswers.delegatesTo(realClient));
+        dedupService = new DedupService(s3Client, new KeyLayout("flat"), FakeS3Server.BUCKET, true);
+        hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+    }
+
+    @Test
+    void blobIsDeletedWithItsLastReference() {
+        commit("dir/a").block();
+        commit("dir/b").block();
+
+        assertEquals(hash, dedupService.referencedHash("dir/b").block());
+        assertTrue(s3Server.containsObject(dedupService.blobKey(hash)));
+
+        dedupService.releaseReference(hash, "dir/a").block();
+        assertTrue(s3Server.containsObject(dedupService.blobKey(hash)));
+
+        dedupService.releaseReference(hash, "dir/b").block();
+        assertFalse(s3Server.containsObject(dedupService.blobKey(hash)));
+        assertFalse(s3Server.containsObject(".dedup/locks/" + hash));
+    }
+
+    @Test
+    void linkToMissingContentLeavesNoReference() {
+        assertNull(dedupService.link(hash, "dir/a", "text/plain", Map.of()).block());
+
+        assertFalse(s3Server.containsObject(".dedup/refs/" + hash + "/dir/a"));
+        assertFalse(s3Server.containsObject("dir/a"));
+    }
+
+    @Test
+    void uploadDuringReleaseOfLastReferenceKeepsBlob() throws Exception {
+        commit("dir/a").block();
+
+        CountDownLatch listing = new CountDownLatch(1);
+        CompletableFuture<Void> proceed = new CompletableFuture<>();
+        doAnswer(invocation -> {
+            listing.countDown();
+            ListObjectsV2Request request = invocation.getArgument(0);
+            return proceed.thenCompose(ignored -> realClient.listObjectsV2(request));
+        }).when(s3Client).listObjectsV2(any(ListObjectsV2Request.class));
+
+        // the last reference is gone and no other one is listed, the blob is about to be deleted
+        CompletableFuture<Void> released = dedupService.releaseReference(hash, "dir/a").toFuture();
+        assertTrue(listing.await(5, SECONDS));
+
+        // identical content is uploaded meanwhile and must not end up pointing at the deleted blob
+        CompletableFuture<Void> committed = commit("dir/b").toFuture();
+        Thread.sleep(200);
+        proceed.complete(null);
+
+        released.get(5, SECONDS);
+        committed.get(5, SECONDS);
+        assertEquals(hash, dedupService.referencedHash("dir/b").block());
+        assertTrue(s3Server.containsObject(dedupService.blobKey(hash)));
+    }
+
+    @Test
+    void presignedOverwriteReleasesBlob() throws InterruptedException {
+        commit("dir/a").block();
+        // references and expectations are told apart by their second-precision modification time
+        Thread.sleep(1100);
+        dedupService.expectOverwrite("dir/a").block();
+
+        // the URL expired without the upload landing
+        dedupService.releaseOverwritten(Instant.now().plusSeconds(1)).block();
+        assertTrue(s3Server.containsObject(dedupService.blobKey(hash)));
+
+        dedupService.expectOverwrite("dir/a").block();
+        s3Server.putObject("dir/a", "new content".getBytes(StandardCharsets.UTF_8), "text/plain");
+        dedupService.releaseOverwritten(Instant.now().plusSeconds(1)).block();
+        assertFalse(s3Server.containsObject(dedupService.blobKey(hash)));
+    }
+
+    private Mono<Void> commit(String storagePath) {
+        String stagingKey = dedupService.stagingKey();
+        s3Server.putObject(stagingKey, CONTENT, "text/plain");
+        return dedupService.commit(stagingKey, hash, storagePath, "text/plain", Map.of(), CONTENT.length);
+    }
+}
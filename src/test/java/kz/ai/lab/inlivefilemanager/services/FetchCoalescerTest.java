@@ -0,0 +1,124 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FetchCoalescerTest {
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final List<String> missed = new ArrayList<>();
+
+    @Test
+    void concurrentRequestsShareOneFetch() throws Exception {
+        FetchCoalescer coalescer = new FetchCoalescer(new SimpleMeterRegistry(), 4);
+        Sinks.Many<DataBuffer> body = Sinks.many().unicast().onBackpressureBuffer();
+        Mono<S3Blob> fetch = fetch(body.asFlux());
+
+        S3Blob first = coalescer.coalesce("dir/a", 0, -1, fetch, this::fetchMissed).block();
+        S3Blob second = coalescer.coalesce("dir/a", 0, -1, fetch, this::fetchMissed).block();
+        CompletableFuture<String> firstBody = read(first).toFuture();
+        CompletableFuture<String> secondBody = read(second).toFuture();
+
+        body.tryEmitNext(buffer("hello "));
+        body.tryEmitNext(buffer("world"));
+        body.tryEmitComplete();
+
+        assertEquals("hello world", firstBody.get(5, SECONDS));
+        assertEquals("hello world", secondBody.get(5, SECONDS));
+        assertEquals(1, fetches.get());
+        assertEquals(List.of(), missed);
+    }
+
+    @Test
+    void joinerPastStartFetchesMissedBytes() throws Exception {
+        // two buffers are replayed, the flight is joinable until the first one has gone by
+        FetchCoalescer coalescer = new FetchCoalescer(new SimpleMeterRegistry(), 2);
+        Sinks.Many<DataBuffer> body = Sinks.many().unicast().onBackpressureBuffer();
+        Mono<S3Blob> fetch = fetch(body.asFlux());
+
+        S3Blob first = coalescer.coalesce("dir/a", 0, -1, fetch, this::fetchMissed).block();
+        S3Blob second = coalescer.coalesce("dir/a", 0, -1, fetch, this::fetchMissed).block();
+        CompletableFuture<String> firstBody = read(first).toFuture();
+
+        body.tryEmitNext(buffer("aaaa"));
+        body.tryEmitNext(buffer("bbbb"));
+        body.tryEmitNext(buffer("cccc"));
+        // the joiner starts reading when the first buffer is no longer replayed
+        CompletableFuture<String> secondBody = read(second).toFuture();
+        body.tryEmitNext(buffer("dddd"));
+        body.tryEmitComplete();
+
+        assertEquals("aaaabbbbccccdddd", firstBody.get(5, SECONDS));
+        assertEquals("aaaabbbbccccdddd", secondBody.get(5, SECONDS));
+        assertEquals(1, fetches.get());
+        assertEquals(List.of("0-3"), missed);
+    }
+
+    @Test
+    void requestPastJoinWindowFetchesAgain() {
+        FetchCoalescer coalescer = new FetchCoalescer(new SimpleMeterRegistry(), 2);
+        Sinks.Many<DataBuffer> body = Sinks.many().unicast().onBackpressureBuffer();
+        Mono<S3Blob> fetch = fetch(body.asFlux());
+
+        S3Blob first = coalescer.coalesce("dir/a", 0, -1, fetch, this::fetchMissed).block();
+        read(first).subscribe();
+        body.tryEmitNext(buffer("aaaa"));
+
+        coalescer.coalesce("dir/a", 0, -1, fetch(Flux.never()), this::fetchMissed).block();
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    void invalidatedOrOtherRangeFetchIsNotJoined() {
+        FetchCoalescer coalescer = new FetchCoalescer(new SimpleMeterRegistry(), 4);
+
+        coalescer.coalesce("dir/a", 0, -1, fetch(Flux.never()), this::fetchMissed).block();
+        coalescer.coalesce("dir/a", 0, 9, fetch(Flux.never()), this::fetchMissed).block();
+        assertEquals(2, fetches.get());
+
+        coalescer.invalidate("dir/a");
+        coalescer.coalesce("dir/a", 0, -1, fetch(Flux.never()), this::fetchMissed).block();
+        assertEquals(3, fetches.get());
+    }
+
+    private Mono<S3Blob> fetch(Flux<DataBuffer> content) {
+        return Mono.fromSupplier(() -> {
+            fetches.incrementAndGet();
+            return new S3Blob(content, "text/plain", 16, null, "\"etag\"", Instant.EPOCH);
+        });
+    }
+
+    private Flux<DataBuffer> fetchMissed(long from, long to) {
+        missed.add(from + "-" + to);
+        return Flux.just(buffer("a".repeat((int) (to - from + 1))));
+    }
+
+    private static DataBuffer buffer(String content) {
+        return DefaultDataBufferFactory.sharedInstance.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Mono<String> read(S3Blob blob) {
+        return DataBufferUtils.join(blob.content())
+                .map(joined -> {
+                    String content = joined.toString(StandardCharsets.UTF_8);
+                    DataBufferUtils.release(joined);
+                    return content;
+                });
+    }
+}
@@ -0,0 +1,165 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import kz.ai.lab.inlivefilemanager.dto.S3Blob;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileCacheTest {
+    private static final byte[] SMALL = "small".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LARGE = "larger than the memory tier takes".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path cacheDirectory;
+
+    @Test
+    void invalidatedEntryIsMissed() throws IOException {
+        FileCache fileCache = fileCache();
+
+        fileCache.put("dir/a", fileCache.generation(), blob(SMALL)).flatMap(FileCacheTest::read).block();
+        assertArrayEquals(SMALL, read(fileCache.get("dir/a")).block());
+        assertNotNull(fileCache.getMetadata("dir/a"));
+
+        fileCache.invalidate("dir/a");
+        assertNull(fileCache.get("dir/a"));
+        assertNull(fileCache.getMetadata("dir/a"));
+    }
+
+    @Test
+    void fetchStartedBeforeInvalidationIsNotCached() throws IOException {
+        FileCache fileCache = fileCache();
+
+        long generation = fileCache.generation();
+        fileCache.invalidate("dir/a");
+        fileCache.put("dir/a", generation, blob(SMALL)).flatMap(FileCacheTest::read).block();
+        assertNull(fileCache.get("dir/a"));
+
+        generation = fileCache.generation();
+        fileCache.invalidatePrefix("dir/");
+        fileCache.put("dir/b", generation, blob(SMALL)).flatMap(FileCacheTest::read).block();
+        assertNull(fileCache.get("dir/b"));
+    }
+
+    @Test
+    void bypassedKeyIsNotCachedUntilDeadline() throws IOException, InterruptedException {
+        FileCache fileCache = fileCache();
+        fileCache.put("dir/a", fileCache.generation(), blob(SMALL)).flatMap(FileCacheTest::read).block();
+
+        fileCache.bypass("dir/a", Instant.now().plusMillis(500));
+        assertNull(fileCache.get("dir/a"));
+        fileCache.put("dir/a", fileCache.generation(), blob(SMALL)).flatMap(FileCacheTest::read).block();
+        assertNull(fileCache.get("dir/a"));
+        assertNull(fileCache.getMetadata("dir/a"));
+
+        Thread.sleep(600);
+        assertFalse(fileCache.isBypassed("dir/a"));
+        fileCache.put("dir/a", fileCache.generation(), blob(SMALL)).flatMap(FileCacheTest::read).block();
+        assertNotNull(fileCache.get("dir/a"));
+    }
+
+    @Test
+    void invalidationWhileStreamingToDiskDropsEntry() throws IOException {
+        FileCache fileCache = fileCache();
+
+        S3Blob streaming = fileCache.put("dir/a", fileCache.generation(), blob(LARGE)).block();
+        fileCache.invalidate("dir/a");
+
+        assertArrayEquals(LARGE, read(streaming).block());
+        assertNull(fileCache.get("dir/a"));
+    }
+
+    @Test
+    void diskEntryIsCachedOnceStreamed() throws IOException {
+        FileCache fileCache = fileCache();
+
+        S3Blob streaming = fileCache.put("dir/a", fileCache.generation(), blob(LARGE)).block();
+        assertNull(fileCache.get("dir/a"));
+
+        assertArrayEquals(LARGE, read(streaming).block());
+        S3Blob cached = fileCache.get("dir/a");
+        assertNotNull(cached);
+        assertNotNull(cached.fileRegion());
+        assertArrayEquals(LARGE, read(cached).block());
+        assertEquals("bytes 2-4/" + LARGE.length, fileCache.get("dir/a", 2, 4).contentRange());
+    }
+
+    @Test
+    void cancelledStreamIsNotCached() throws IOException {
+        FileCache fileCache = fileCache();
+
+        S3Blob streaming = fileCache.put("dir/a", fileCache.generation(), new S3Blob(
+                Flux.just(buffer("larger than "), buffer("the memory tier takes")), "text/plain", LARGE.length,
+                null, "\"etag\"", Instant.EPOCH)).block();
+
+        StepVerifier.create(streaming.content().take(1).doOnNext(DataBufferUtils::release))
+                .expectNextCount(1)
+                .verifyComplete();
+        assertNull(fileCache.get("dir/a"));
+    }
+
+    @Test
+    void oversizedObjectIsNotCached() throws IOException {
+        FileCache fileCache = new FileCache(1024, SMALL.length, 1024, SMALL.length, cacheDirectory, 100,
+                Duration.ofMinutes(10), new SimpleMeterRegistry());
+
+        fileCache.put("dir/a", fileCache.generation(), blob(LARGE)).flatMap(FileCacheTest::read).block();
+        assertNull(fileCache.get("dir/a"));
+        assertNotNull(fileCache.getMetadata("dir/a"));
+    }
+
+    @Test
+    void startupOnlyDeletesCachedFiles() throws IOException {
+        Path unrelated = Files.writeString(cacheDirectory.resolve("unrelated.txt"), "kept");
+        Files.createDirectories(cacheDirectory.resolve("files"));
+        Path leftover = Files.writeString(cacheDirectory.resolve("files").resolve("previous-run.cached"), "gone");
+
+        fileCache();
+
+        assertTrue(Files.exists(unrelated));
+        assertFalse(Files.exists(leftover));
+    }
+
+    private FileCache fileCache() throws IOException {
+        return new FileCache(1024, SMALL.length, 1024, 1024, cacheDirectory, 100, Duration.ofMinutes(10),
+                new SimpleMeterRegistry());
+    }
+
+    private static S3Blob blob(byte[] content) {
+        return new S3Blob(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(content)), "text/plain",
+                content.length, null, "\"etag\"", Instant.EPOCH);
+    }
+
+    private static DataBuffer buffer(String content) {
+        return DefaultDataBufferFactory.sharedInstance.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Mono<byte[]> read(S3Blob blob) {
+        return DataBufferUtils.join(blob.content())
+                .map(joined -> {
+                    byte[] bytes = new byte[joined.readableByteCount()];
+                    joined.read(bytes);
+                    DataBufferUtils.release(joined);
+                    return bytes;
+                });
+    }
+}
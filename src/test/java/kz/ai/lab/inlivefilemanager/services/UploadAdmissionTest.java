@@ -0,0 +1,164 @@
+package kz.ai.lab.inlivefilemanager.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadAdmissionTest {
+    private static final Duration QUEUE_TIMEOUT = Duration.ofMillis(500);
+    private static final Duration RETRY_AFTER = Duration.ofSeconds(5);
+
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void reservationIsReleasedWhenUploadEnds() {
+        UploadAdmission admission = admission(100, 2, 2, 2);
+
+        StepVerifier.create(admission.admit("user", 60, Mono.just("stored")))
+                .expectNext("stored")
+                .verifyComplete();
+        StepVerifier.create(admission.admit("user", 60, Mono.error(new IllegalStateException("failed"))))
+                .expectError(IllegalStateException.class)
+                .verify();
+
+        assertEquals(0, reservedBytes());
+    }
+
+    @Test
+    void queuedUploadsRunInArrivalOrderAsCapacityFrees() {
+        UploadAdmission admission = admission(100, 1, 3, 3);
+        List<String> started = new ArrayList<>();
+        Sinks.One<String> first = Sinks.one();
+
+        admission.admit("a", 10, Mono.fromRunnable(() -> started.add("first")).then(first.asMono())).subscribe();
+        admission.admit("b", 10, Mono.fromCallable(() -> started.add("second")).thenReturn("second")).subscribe();
+        admission.admit("c", 10, Mono.fromCallable(() -> started.add("third")).thenReturn("third")).subscribe();
+        assertEquals(List.of("first"), started);
+        assertEquals(2, queued());
+
+        first.tryEmitValue("first");
+        assertEquals(List.of("first", "second", "third"), started);
+        assertEquals(0, queued());
+        assertEquals(0, reservedBytes());
+    }
+
+    @Test
+    void largeUploadAtHeadIsNotOvertaken() {
+        UploadAdmission admission = admission(100, 3, 3, 3);
+        List<String> started = new ArrayList<>();
+        Sinks.One<String> running = Sinks.one();
+
+        admission.admit("a", 60, running.asMono()).subscribe();
+        admission.admit("b", 60, Mono.fromCallable(() -> started.add("large")).thenReturn("large")).subscribe();
+        // fits the remaining budget, but arrived after the large one
+        admission.admit("c", 10, Mono.fromCallable(() -> started.add("small")).thenReturn("small")).subscribe();
+        assertEquals(List.of(), started);
+
+        running.tryEmitValue("done");
+        assertEquals(List.of("large", "small"), started);
+    }
+
+    @Test
+    void fullQueueIsRejectedAsBusy() {
+        UploadAdmission admission = admission(100, 1, 3, 1);
+
+        admission.admit("a", 10, Mono.never()).subscribe();
+        admission.admit("b", 10, Mono.never()).subscribe();
+
+        StepVerifier.create(admission.admit("c", 10, Mono.just("stored")))
+                .expectErrorSatisfies(ex -> assertRejected(ex, HttpStatus.SERVICE_UNAVAILABLE))
+                .verify();
+    }
+
+    @Test
+    void userOverTheirShareIsRejectedWhileOthersQueue() {
+        UploadAdmission admission = admission(100, 1, 1, 3);
+
+        admission.admit("a", 10, Mono.never()).subscribe();
+
+        StepVerifier.create(admission.admit("a", 10, Mono.just("stored")))
+                .expectErrorSatisfies(ex -> assertRejected(ex, HttpStatus.TOO_MANY_REQUESTS))
+                .verify();
+        admission.admit("b", 10, Mono.never()).subscribe();
+        assertEquals(1, queued());
+    }
+
+    @Test
+    void uploadNotAdmittedInTimeIsRejectedAsBusy() {
+        UploadAdmission admission = admission(100, 1, 3, 3);
+
+        admission.admit("a", 10, Mono.never()).subscribe();
+
+        StepVerifier.create(admission.admit("b", 10, Mono.just("stored")))
+                .expectErrorSatisfies(ex -> assertRejected(ex, HttpStatus.SERVICE_UNAVAILABLE))
+                .verify(Duration.ofSeconds(5));
+        assertEquals(0, queued());
+    }
+
+    @Test
+    void cancelledWaiterLeavesQueueAndItsShare() {
+        UploadAdmission admission = admission(100, 1, 1, 3);
+        Sinks.One<String> running = Sinks.one();
+
+        admission.admit("a", 10, running.asMono()).subscribe();
+        Disposable waiting = admission.admit("b", 10, Mono.just("stored")).subscribe();
+        assertEquals(1, queued());
+
+        waiting.dispose();
+        assertEquals(0, queued());
+
+        running.tryEmitValue("done");
+        StepVerifier.create(admission.admit("b", 10, Mono.just("stored")))
+                .expectNext("stored")
+                .verifyComplete();
+        assertEquals(0, reservedBytes());
+    }
+
+    @Test
+    void reservationIsCappedAtBufferedParts() {
+        UploadAdmission admission = admission(1000, 2, 2, 2);
+
+        // two parts of 100 bytes in flight plus the one being filled
+        assertEquals(300, admission.reservation(OptionalLong.of(10_000)));
+        assertEquals(50, admission.reservation(OptionalLong.of(50)));
+        assertEquals(300, admission.reservation(OptionalLong.empty()));
+    }
+
+    private UploadAdmission admission(long maxInFlightBytes, int maxConcurrentWrites, int maxPerUser, int maxQueue) {
+        return new UploadAdmission(registry, maxInFlightBytes, maxConcurrentWrites, maxPerUser, maxQueue,
+                QUEUE_TIMEOUT, RETRY_AFTER, 100, 2);
+    }
+
+    private double queued() {
+        return registry.get("storage.uploads.admission.queued").gauge().value();
+    }
+
+    private double reservedBytes() {
+        return registry.get("storage.uploads.admission.reserved.bytes").gauge().value();
+    }
+
+    private static void assertRejected(Throwable ex, HttpStatus status) {
+        assertTrue(ex instanceof UploadAdmission.Rejected, () -> "not rejected by admission: " + ex);
+        UploadAdmission.Rejected rejected = (UploadAdmission.Rejected) ex;
+        assertEquals(status, rejected.getStatusCode());
+        assertEquals(RETRY_AFTER, rejected.getRetryAfter());
+    }
+}
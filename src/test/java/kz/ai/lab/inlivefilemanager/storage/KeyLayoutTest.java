@@ -0,0 +1,72 @@
+package kz.ai.lab.inlivefilemanager.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyLayoutTest {
+    private static final List<String> PATHS = List.of("dir/file.txt", "a/b/c.png", "ab/file", "dir/with space.pdf");
+
+    private final KeyLayout flat = new KeyLayout("flat");
+    private final KeyLayout sharded = new KeyLayout("sharded");
+
+    @Test
+    void flatLayoutStoresFilesUnderTheirPath() {
+        for (String path : PATHS) {
+            assertEquals(path, flat.physical(path));
+            assertEquals(path, flat.path(path));
+            assertEquals(List.of(path), flat.candidates(path));
+            assertFalse(flat.isMisplaced(path));
+        }
+    }
+
+    @Test
+    void shardedKeyMapsBackToItsPath() {
+        for (String path : PATHS) {
+            String key = sharded.physical(path);
+            int slash = path.lastIndexOf('/');
+
+            assertTrue(key.matches("\\Q" + path.substring(0, slash + 1) + "\\E[0-9a-f]{2}\\Q" + path.substring(slash)
+                    + "\\E"), key);
+            assertEquals(path, sharded.path(key));
+            assertEquals(List.of(key, path), sharded.candidates(path));
+            assertTrue(sharded.isMisplaced(path));
+            assertFalse(sharded.isMisplaced(key));
+        }
+    }
+
+    @Test
+    void internalKeysAndTopLevelFilesAreNotSharded() {
+        for (String key : List.of(".dedup/ab/cdef", ".derivatives/dir/v1-100x100-file.jpg", ".uploads/id", "file.txt")) {
+            assertEquals(key, sharded.physical(key));
+            assertEquals(key, sharded.path(key));
+            assertEquals(List.of(key), sharded.candidates(key));
+            assertFalse(sharded.isMisplaced(key));
+        }
+    }
+
+    @Test
+    void twoCharacterDirectoryIsNotTakenForShard() {
+        String shard = sharded.physical("dir/file").split("/")[1];
+        String otherShard = shard.equals("00") ? "01" : "00";
+
+        for (String key : List.of("dir/zz/file", "dir/" + otherShard + "/file")) {
+            assertEquals(key, sharded.path(key));
+            assertEquals(key, flat.path(key));
+            // a flat key the sharded layout moves, not a sharded one
+            assertTrue(sharded.isMisplaced(key));
+            assertNotEquals(key, sharded.physical(key));
+        }
+    }
+
+    @Test
+    void unknownLayoutIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new KeyLayout("hashed"));
+    }
+}
@@ -0,0 +1,107 @@
+package kz.ai.lab.inlivefilemanager.auth;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-process stand-in for a Keycloak realm: serves the JSON Web Key Set at the path Keycloak does and
+ * issues RS256 access tokens carrying client roles the way Keycloak puts them into
+ * {@code resource_access}.
+ * <p>
+ * Meant for benchmarks and load tests that have to run offline, the key pair lives as long as the issuer.
+ */
+public final class FakeJwtIssuer implements AutoCloseable {
+    public static final String REALM = "master";
+
+    private final HttpServer server;
+    private final RSAKey key;
+    private final RSASSASigner signer;
+
+    private FakeJwtIssuer(HttpServer server, RSAKey key) throws JOSEException {
+        this.server = server;
+        this.key = key;
+        this.signer = new RSASSASigner(key);
+
+        byte[] jwks = new JWKSet(key.toPublicJWK()).toString().getBytes(StandardCharsets.UTF_8);
+        server.createContext("/realms/" + REALM + "/protocol/openid-connect/certs", exchange -> send(exchange, jwks));
+        server.start();
+    }
+
+    public static FakeJwtIssuer start() throws IOException {
+        try {
+            RSAKey key = new RSAKeyGenerator(2048).keyID("fake").generate();
+            return new FakeJwtIssuer(HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0), key);
+        } catch (JOSEException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return the {@code iss} of the issued tokens, what the application expects as issuer URI
+     */
+    public String issuer() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/realms/" + REALM;
+    }
+
+    public String jwkSetUri() {
+        return issuer() + "/protocol/openid-connect/certs";
+    }
+
+    /**
+     * @param clientRoles roles of {@code clientId}, which the application turns into authorities
+     */
+    public String token(String username, String clientId, List<String> clientRoles, Duration lifetime) {
+        Instant now = Instant.now();
+        JWTClaimsSet claims = new JWTClaimsSet.Builder()
+                .issuer(issuer())
+                .subject(username)
+                .issueTime(Date.from(now))
+                .expirationTime(Date.from(now.plus(lifetime)))
+                .claim("preferred_username", username)
+                .claim("resource_access", Map.of(clientId, Map.of("roles", clientRoles)))
+                .build();
+
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(), claims);
+        try {
+            jwt.sign(signer);
+        } catch (JOSEException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return jwt.serialize();
+    }
+
+    private static void send(HttpExchange exchange, byte[] body) throws IOException {
+        try (exchange) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
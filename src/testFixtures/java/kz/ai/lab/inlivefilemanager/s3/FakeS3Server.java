@@ -0,0 +1,466 @@
+package kz.ai.lab.inlivefilemanager.s3;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.checksums.RequestChecksumCalculation;
+import software.amazon.awssdk.core.checksums.ResponseChecksumValidation;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the parts of the S3 REST API this service uses: object PUT/GET/HEAD/DELETE
+ * with ranges and user metadata, CopyObject, multipart uploads, ListObjectsV2 and DeleteObjects. Writes
+ * honour {@code If-None-Match: *} like S3 conditional writes do.
+ * Objects are kept in memory of a single bucket, path-style addressing only, signatures are not checked.
+ * <p>
+ * Meant for benchmarks and load tests that have to run offline, not as a faithful S3 emulation.
+ */
+public final class FakeS3Server implements AutoCloseable {
+    public static final String BUCKET = "bucket";
+
+    private static final Pattern KEY_ELEMENT = Pattern.compile("<Key>(.*?)</Key>");
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final NavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private record StoredObject(byte[] content, String contentType, Map<String, String> metadata, String eTag,
+                                Instant lastModified) {
+    }
+
+    private record MultipartUpload(String key, String contentType, Map<String, String> metadata,
+                                   NavigableMap<Integer, byte[]> parts) {
+    }
+
+    private FakeS3Server(HttpServer server) {
+        this.server = server;
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public static FakeS3Server start() throws IOException {
+        return new FakeS3Server(HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0));
+    }
+
+    public URI endpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    /**
+     * A client for this server. Checksums are only calculated where S3 requires them, which keeps
+     * bodies unchunked where the SDK allows it.
+     */
+    public S3AsyncClient newClient() {
+        return S3AsyncClient.builder()
+                .endpointOverride(endpoint())
+                .forcePathStyle(true)
+                .region(Region.US_EAST_1)
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("fake", "fake")))
+                .requestChecksumCalculation(RequestChecksumCalculation.WHEN_REQUIRED)
+                .responseChecksumValidation(ResponseChecksumValidation.WHEN_REQUIRED)
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder().maxConcurrency(256))
+                .build();
+    }
+
+    public void putObject(String key, byte[] content, String contentType) {
+        objects.put(key, new StoredObject(content, contentType, Map.of(), nextETag(), now()));
+    }
+
+    public boolean containsObject(String key) {
+        return objects.containsKey(key);
+    }
+
+    public int objectCount() {
+        return objects.size();
+    }
+
+    public void clear() {
+        objects.clear();
+        uploads.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            String key = path.length() > BUCKET.length() + 2 ? path.substring(BUCKET.length() + 2) : "";
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            switch (exchange.getRequestMethod()) {
+                case "GET" -> {
+                    if (key.isEmpty()) {
+                        listObjects(exchange, query);
+                    } else {
+                        getObject(exchange, key, true);
+                    }
+                }
+                case "HEAD" -> getObject(exchange, key, false);
+                case "PUT" -> {
+                    if (query.containsKey("uploadId")) {
+                        uploadPart(exchange, query);
+                    } else if (exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+                        copyObject(exchange, key);
+                    } else {
+                        putObject(exchange, key);
+                    }
+                }
+                case "POST" -> {
+                    if (query.containsKey("delete")) {
+                        deleteObjects(exchange);
+                    } else if (query.containsKey("uploads")) {
+                        createMultipartUpload(exchange, key);
+                    } else if (query.containsKey("uploadId")) {
+                        completeMultipartUpload(exchange, key, query.get("uploadId"));
+                    } else {
+                        sendError(exchange, 400, "InvalidRequest");
+                    }
+                }
+                case "DELETE" -> {
+                    if (query.containsKey("uploadId")) {
+                        uploads.remove(query.get("uploadId"));
+                    } else {
+                        objects.remove(key);
+                    }
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                default -> sendError(exchange, 405, "MethodNotAllowed");
+            }
+        } catch (RuntimeException ex) {
+            sendError(exchange, 500, "InternalError");
+        }
+    }
+
+    private void getObject(HttpExchange exchange, String key, boolean withBody) throws IOException {
+        StoredObject object = objects.get(key);
+        if (object == null) {
+            if (withBody) {
+                sendError(exchange, 404, "NoSuchKey");
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+            return;
+        }
+
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", object.contentType());
+        headers.set("ETag", object.eTag());
+        headers.set("Last-Modified", HTTP_DATE.format(object.lastModified()));
+        headers.set("Accept-Ranges", "bytes");
+        object.metadata().forEach((name, value) -> headers.set("x-amz-meta-" + name, value));
+
+        int length = object.content().length;
+        int start = 0;
+        int end = length - 1;
+        int status = 200;
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            // no range of an empty object is satisfiable, S3 answers 416 for it as well
+            if (length == 0) {
+                sendError(exchange, 416, "InvalidRange");
+                return;
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-", 2);
+            if (bounds[0].isEmpty()) {
+                start = Math.max(0, length - Integer.parseInt(bounds[1]));
+            } else {
+                start = Integer.parseInt(bounds[0]);
+                end = bounds[1].isEmpty() ? end : Math.min(end, Integer.parseInt(bounds[1]));
+            }
+            if (start > end) {
+                sendError(exchange, 416, "InvalidRange");
+                return;
+            }
+            headers.set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            status = 206;
+        }
+
+        int count = length == 0 ? 0 : end - start + 1;
+        if (!withBody) {
+            headers.set("Content-Length", String.valueOf(count));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+
+        exchange.sendResponseHeaders(status, count == 0 ? -1 : count);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(object.content(), start, count);
+        }
+    }
+
+    private void putObject(HttpExchange exchange, String key) throws IOException {
+        StoredObject object = new StoredObject(readBody(exchange), contentType(exchange), userMetadata(exchange),
+                nextETag(), now());
+        if (!store(exchange, key, object)) {
+            return;
+        }
+
+        exchange.getResponseHeaders().set("ETag", object.eTag());
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void copyObject(HttpExchange exchange, String key) throws IOException {
+        String source = URLDecoder.decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source"), StandardCharsets.UTF_8);
+        source = source.startsWith("/") ? source.substring(1) : source;
+        StoredObject original = objects.get(source.substring(BUCKET.length() + 1));
+        if (original == null) {
+            sendError(exchange, 404, "NoSuchKey");
+            return;
+        }
+
+        StoredObject copy = new StoredObject(original.content(), original.contentType(), original.metadata(),
+                nextETag(), now());
+        objects.put(key, copy);
+
+        sendXml(exchange, 200, "<CopyObjectResult><ETag>" + escape(copy.eTag()) + "</ETag><LastModified>"
+                + copy.lastModified() + "</LastModified></CopyObjectResult>");
+    }
+
+    private void createMultipartUpload(HttpExchange exchange, String key) throws IOException {
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new MultipartUpload(key, contentType(exchange), userMetadata(exchange),
+                new ConcurrentSkipListMap<>()));
+
+        sendXml(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + BUCKET + "</Bucket><Key>" + escape(key)
+                + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(HttpExchange exchange, Map<String, String> query) throws IOException {
+        MultipartUpload upload = uploads.get(query.get("uploadId"));
+        if (upload == null) {
+            sendError(exchange, 404, "NoSuchUpload");
+            return;
+        }
+
+        upload.parts().put(Integer.parseInt(query.get("partNumber")), readBody(exchange));
+        exchange.getResponseHeaders().set("ETag", nextETag());
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void completeMultipartUpload(HttpExchange exchange, String key, String uploadId) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+
+        MultipartUpload upload = uploads.remove(uploadId);
+        if (upload == null) {
+            sendError(exchange, 404, "NoSuchUpload");
+            return;
+        }
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        upload.parts().values().forEach(content::writeBytes);
+        StoredObject object = new StoredObject(content.toByteArray(), upload.contentType(), upload.metadata(),
+                nextETag(), now());
+        if (!store(exchange, key, object)) {
+            return;
+        }
+
+        sendXml(exchange, 200, "<CompleteMultipartUploadResult><Bucket>" + BUCKET + "</Bucket><Key>" + escape(key)
+                + "</Key><ETag>" + escape(object.eTag()) + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    /**
+     * @return whether the object was stored, a failed {@code If-None-Match: *} precondition has been answered
+     */
+    private boolean store(HttpExchange exchange, String key, StoredObject object) throws IOException {
+        if (!"*".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            objects.put(key, object);
+            return true;
+        }
+        if (objects.putIfAbsent(key, object) != null) {
+            sendError(exchange, 412, "PreconditionFailed");
+            return false;
+        }
+        return true;
+    }
+
+    private void deleteObjects(HttpExchange exchange) throws IOException {
+        String body = new String(readBody(exchange), StandardCharsets.UTF_8);
+
+        Matcher matcher = KEY_ELEMENT.matcher(body);
+        StringBuilder deleted = new StringBuilder();
+        while (matcher.find()) {
+            String key = unescape(matcher.group(1));
+            objects.remove(key);
+            if (!body.contains("<Quiet>true</Quiet>")) {
+                deleted.append("<Deleted><Key>").append(escape(key)).append("</Key></Deleted>");
+            }
+        }
+
+        sendXml(exchange, 200, "<DeleteResult>" + deleted + "</DeleteResult>");
+    }
+
+    private void listObjects(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String prefix = query.getOrDefault("prefix", "");
+        int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+        String after = query.getOrDefault("continuation-token", query.get("start-after"));
+
+        NavigableMap<String, StoredObject> candidates = after != null ? objects.tailMap(after, false) : objects;
+
+        StringBuilder contents = new StringBuilder();
+        int count = 0;
+        String lastKey = null;
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> entry : candidates.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            StoredObject object = entry.getValue();
+            contents.append("<Contents><Key>").append(escape(entry.getKey()))
+                    .append("</Key><LastModified>").append(object.lastModified())
+                    .append("</LastModified><ETag>").append(escape(object.eTag()))
+                    .append("</ETag><Size>").append(object.content().length)
+                    .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+            lastKey = entry.getKey();
+            count++;
+        }
+
+        sendXml(exchange, 200, "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Name>" + BUCKET
+                + "</Name><Prefix>" + escape(prefix) + "</Prefix><KeyCount>" + count + "</KeyCount><MaxKeys>" + maxKeys
+                + "</MaxKeys><IsTruncated>" + truncated + "</IsTruncated>"
+                + (truncated ? "<NextContinuationToken>" + escape(lastKey) + "</NextContinuationToken>" : "")
+                + contents + "</ListBucketResult>");
+    }
+
+    /**
+     * Streaming uploads may arrive in aws-chunked encoding, the chunk signatures and trailers are dropped.
+     */
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        byte[] body = exchange.getRequestBody().readAllBytes();
+
+        Headers headers = exchange.getRequestHeaders();
+        String contentSha256 = headers.getFirst("x-amz-content-sha256");
+        String contentEncoding = headers.getFirst("Content-Encoding");
+        boolean chunked = contentSha256 != null && contentSha256.startsWith("STREAMING-")
+                || contentEncoding != null && contentEncoding.contains("aws-chunked");
+
+        return chunked ? decodeAwsChunked(body) : body;
+    }
+
+    private static byte[] decodeAwsChunked(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        int position = 0;
+        while (position < body.length) {
+            int lineEnd = indexOfCrlf(body, position);
+            String header = new String(body, position, lineEnd - position, StandardCharsets.US_ASCII);
+            int size = Integer.parseInt(header.split(";", 2)[0].trim(), 16);
+            position = lineEnd + 2;
+            if (size == 0) {
+                break;
+            }
+            out.write(body, position, size);
+            position += size + 2;
+        }
+        return out.toByteArray();
+    }
+
+    private static int indexOfCrlf(byte[] body, int from) {
+        for (int i = from; i < body.length - 1; i++) {
+            if (body[i] == '\r' && body[i + 1] == '\n') {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Malformed aws-chunked body");
+    }
+
+    private static String contentType(HttpExchange exchange) {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        return contentType != null ? contentType : "binary/octet-stream";
+    }
+
+    private static Map<String, String> userMetadata(HttpExchange exchange) {
+        Map<String, String> metadata = new HashMap<>();
+        exchange.getRequestHeaders().forEach((name, values) -> {
+            String lowerCase = name.toLowerCase(Locale.ROOT);
+            if (lowerCase.startsWith("x-amz-meta-")) {
+                metadata.put(lowerCase.substring("x-amz-meta-".length()), values.get(0));
+            }
+        });
+        return metadata;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new TreeMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            String[] pair = parameter.split("=", 2);
+            query.put(URLDecoder.decode(pair[0], StandardCharsets.UTF_8),
+                    pair.length > 1 ? URLDecoder.decode(pair[1], StandardCharsets.UTF_8) : "");
+        }
+        return query;
+    }
+
+    private static void sendXml(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code) throws IOException {
+        sendXml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + code + "</Message></Error>");
+    }
+
+    private String nextETag() {
+        return "\"" + Long.toHexString(sequence.incrementAndGet()) + "\"";
+    }
+
+    private static Instant now() {
+        // S3 keeps second precision, Last-Modified headers could not carry more anyway
+        return Instant.now().truncatedTo(ChronoUnit.SECONDS);
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String unescape(String value) {
+        return value.replace("&quot;", "\"").replace("&gt;", ">").replace("&lt;", "<").replace("&amp;", "&");
+    }
+}